@@ -0,0 +1,154 @@
+package com.bronto.ncsu.redis.benchmark;
+
+import com.bronto.ncsu.redis.codec.Codecs;
+import com.bronto.ncsu.redis.queue.AsyncWorkQueue;
+import com.bronto.ncsu.redis.queue.CommandPipeline;
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.ReliableWorkQueue;
+import com.bronto.ncsu.redis.tests.TestBase;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Compares consuming with blocking calls from a pool of threads against
+ * consuming with AsyncWorkQueue from a couple of threads, each keeping a
+ * window of dequeue and release calls in flight through one pipeline.
+ */
+public class AsyncBenchmark extends TestBase {
+
+  private static final int SIZE = 50000;
+  private static final int SYNC_CONSUMERS = 16;
+  private static final int ASYNC_CONSUMERS = 2;
+  private static final int WINDOW = 256;
+  private static final String VALUE = "0123456789abcdef";
+
+  @Test
+  public void testThroughput() throws Exception {
+    for (int i = 0; i < 2; i++) {
+      // The first pass warms up the JIT and the connection pool
+      long syncMillis = consumeSync(createReliableQueue());
+      CommandPipeline pipeline = new CommandPipeline(connections());
+      long asyncMillis;
+      try {
+        asyncMillis = consumeAsync(createReliableQueue(), pipeline);
+      } finally {
+        pipeline.close();
+      }
+      if (i > 0) {
+        System.out.println(String.format("throughput: %d sync threads %.0f items/s, "
+            + "%d async threads %.0f items/s (%.1f calls per round trip)",
+            SYNC_CONSUMERS, SIZE * 1e3 / syncMillis, ASYNC_CONSUMERS, SIZE * 1e3 / asyncMillis,
+            (double) pipeline.getCallCount() / pipeline.getBatchCount()));
+      }
+    }
+  }
+
+  private long consumeSync(final ReliableWorkQueue<String> queue) throws Exception {
+    Stopwatch sw = Stopwatch.createStarted();
+    List<Future<?>> consumers = new ArrayList<Future<?>>();
+    for (int i = 0; i < SYNC_CONSUMERS; i++) {
+      consumers.add(ex.submit(new Runnable() {
+        @Override
+        public void run() {
+          Item<String> item;
+          while ((item = queue.dequeue()) != null) {
+            queue.release(item);
+          }
+        }
+      }));
+    }
+    for (Future<?> consumer : consumers) {
+      consumer.get();
+    }
+    return sw.elapsed(TimeUnit.MILLISECONDS);
+  }
+
+  private long consumeAsync(ReliableWorkQueue<String> queue, CommandPipeline pipeline) throws Exception {
+    final AsyncWorkQueue<String> asyncQueue = new AsyncWorkQueue<String>(queue, pipeline);
+    Stopwatch sw = Stopwatch.createStarted();
+    List<Future<?>> consumers = new ArrayList<Future<?>>();
+    for (int i = 0; i < ASYNC_CONSUMERS; i++) {
+      consumers.add(ex.submit(new AsyncConsumer(asyncQueue)));
+    }
+    for (Future<?> consumer : consumers) {
+      consumer.get();
+    }
+    return sw.elapsed(TimeUnit.MILLISECONDS);
+  }
+
+  private ReliableWorkQueue<String> createReliableQueue() {
+    ReliableWorkQueue<String> queue = new ReliableWorkQueue<String>(connections(), randomQueueName(),
+        Codecs.utf8());
+    List<Item<String>> items = new ArrayList<Item<String>>(SIZE);
+    for (int i = 0; i < SIZE; i++) {
+      items.add(createItem(VALUE));
+    }
+    queue.enqueueAll(items);
+    return queue;
+  }
+
+  /**
+   * Keeps up to WINDOW dequeue and release pairs in flight until a dequeue
+   * finds the queue empty.
+   */
+  private static class AsyncConsumer implements Runnable {
+    private final AsyncWorkQueue<String> queue;
+    private final Semaphore window = new Semaphore(WINDOW);
+    private final AtomicBoolean empty = new AtomicBoolean();
+
+    private AsyncConsumer(AsyncWorkQueue<String> queue) {
+      this.queue = queue;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!empty.get()) {
+          window.acquire();
+          Futures.addCallback(queue.dequeueAsync(), new FutureCallback<Item<String>>() {
+            @Override
+            public void onSuccess(Item<String> item) {
+              if (item == null) {
+                empty.set(true);
+                window.release();
+              } else {
+                Futures.addCallback(queue.releaseAsync(item), new FutureCallback<Void>() {
+                  @Override
+                  public void onSuccess(Void result) {
+                    window.release();
+                  }
+
+                  @Override
+                  public void onFailure(Throwable t) {
+                    window.release();
+                  }
+                });
+              }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              empty.set(true);
+              window.release();
+            }
+          });
+        }
+        // Wait for the calls in flight
+        window.acquire(WINDOW);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package com.bronto.ncsu.redis.benchmark;
+
+import com.bronto.ncsu.redis.codec.Codecs;
+import com.bronto.ncsu.redis.queue.CommandPipeline;
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.ReliableWorkQueue;
+import com.bronto.ncsu.redis.tests.TestBase;
+
+import com.google.common.base.Stopwatch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of threads which each enqueue, dequeue and
+ * release items one at a time, for increasing numbers of threads, with each
+ * call on its own pooled connection and with calls coalesced by a
+ * CommandPipeline with various windows.
+ */
+public class CoalescingBenchmark extends TestBase {
+
+  private static final int OPERATIONS = 30000;
+  private static final int[] THREADS = {1, 4, 16, 32};
+  private static final long[] WINDOW_MICROS = {0, 100, 1000};
+  private static final int MAX_BATCH_SIZE = 1000;
+  private static final String VALUE = "0123456789abcdef";
+
+  @Test
+  public void testThroughput() throws Exception {
+    // Warm up the JIT and the connection pool
+    run(4, null);
+
+    StringBuilder header = new StringBuilder("threads   direct");
+    for (long window : WINDOW_MICROS) {
+      header.append(String.format(" %9s", window + "us"));
+    }
+    System.out.println("operations/s by window, each thread enqueueing, dequeueing and releasing");
+    System.out.println(header);
+    for (int threads : THREADS) {
+      StringBuilder row = new StringBuilder(String.format("%7d %8.0f", threads, run(threads, null)));
+      for (long window : WINDOW_MICROS) {
+        CommandPipeline pipeline = new CommandPipeline(connections(), MAX_BATCH_SIZE, window,
+            TimeUnit.MICROSECONDS);
+        try {
+          row.append(String.format(" %9.0f", run(threads, pipeline)));
+        } finally {
+          pipeline.close();
+        }
+      }
+      System.out.println(row);
+    }
+  }
+
+  /**
+   * Runs the threads and returns the operations per second.
+   */
+  private double run(int threads, CommandPipeline pipeline) throws Exception {
+    final ReliableWorkQueue<String> queue = new ReliableWorkQueue<String>(connections(), pipeline,
+        randomQueueName(), Codecs.utf8(), 0, 0);
+    final int perThread = OPERATIONS / 3 / threads;
+
+    Stopwatch sw = Stopwatch.createStarted();
+    List<Future<?>> workers = new ArrayList<Future<?>>();
+    for (int i = 0; i < threads; i++) {
+      workers.add(ex.submit(new Runnable() {
+        @Override
+        public void run() {
+          for (int j = 0; j < perThread; j++) {
+            queue.enqueue(createItem(VALUE));
+            Item<String> item = queue.dequeue();
+            queue.release(item);
+          }
+        }
+      }));
+    }
+    for (Future<?> worker : workers) {
+      worker.get();
+    }
+    return perThread * threads * 3 * 1e3 / sw.elapsed(TimeUnit.MILLISECONDS);
+  }
+}
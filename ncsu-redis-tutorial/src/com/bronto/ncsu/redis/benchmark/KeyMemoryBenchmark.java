@@ -0,0 +1,104 @@
+package com.bronto.ncsu.redis.benchmark;
+
+import com.bronto.ncsu.redis.codec.Codecs;
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.ReliableWorkQueue;
+import com.bronto.ncsu.redis.queue.WorkQueue;
+import com.bronto.ncsu.redis.tests.TestBase;
+import com.bronto.ncsu.redis.util.ItemIds;
+import com.bronto.ncsu.redis.util.Utils;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Compares the Redis memory used per item with 32 character hex keys, as
+ * produced by Utils.randomBytesString(16), with 11 character ItemIds keys,
+ * and with ItemIds keys and values stored inline. Memory is measured with
+ * MEMORY USAGE, once while the items are queued and once while they are all
+ * dequeued, and scaled to a million items.
+ */
+public class KeyMemoryBenchmark extends TestBase {
+
+  private static final int TEST_SIZE = 100000;
+  private static final int BATCH_SIZE = 10000;
+  private static final String VALUE = "0123456789abcdef";
+  private static final int INLINE_MAX_BYTES = 64;
+
+  private static final String MEMORY_USAGE =
+      "local total = 0\n"
+      + "for i, key in ipairs(KEYS) do\n"
+      + "  total = total + (redis.call('MEMORY', 'USAGE', key, 'SAMPLES', '0') or 0)\n"
+      + "end\n"
+      + "return total";
+
+  @Test
+  public void testMemoryPerMillionItems() {
+    final ItemIds ids = new ItemIds(0);
+    KeyGenerator itemIds = new KeyGenerator() {
+      @Override
+      public String next() {
+        return ids.next();
+      }
+    };
+    String queueName = randomQueueName();
+    measure("hex key", queueName, createQueue(queueName), new KeyGenerator() {
+      @Override
+      public String next() {
+        return Utils.randomBytesString(16);
+      }
+    });
+    queueName = randomQueueName();
+    measure("ItemIds key", queueName, createQueue(queueName), itemIds);
+    queueName = randomQueueName();
+    measure("ItemIds key, inline", queueName,
+        new ReliableWorkQueue<String>(connections(), queueName, Codecs.utf8(), INLINE_MAX_BYTES), itemIds);
+  }
+
+  private void measure(String label, final String queueName, WorkQueue<String> queue, KeyGenerator keys) {
+    for (int i = 0; i < TEST_SIZE; i += BATCH_SIZE) {
+      List<Item<String>> items = new ArrayList<Item<String>>(BATCH_SIZE);
+      for (int j = 0; j < BATCH_SIZE; j++) {
+        items.add(new Item<String>(keys.next(), VALUE));
+      }
+      queue.enqueueAll(items);
+    }
+    long queued = memoryUsage(queueName);
+
+    while (!queue.dequeueBatch(BATCH_SIZE).isEmpty()) {
+      // Dequeue everything into the working set
+    }
+    long dequeued = memoryUsage(queueName);
+
+    System.out.println(String.format("%s: queued %.1f MB, dequeued %.1f MB per million items",
+        label, queued * 1e6 / TEST_SIZE / 1e6, dequeued * 1e6 / TEST_SIZE / 1e6));
+
+    withConnection(new JedisOperation<Long>() {
+      @Override
+      public Long execute(Jedis conn) {
+        return conn.del(queueName, queueName + "working", queueName + "values");
+      }
+    });
+  }
+
+  private long memoryUsage(String queueName) {
+    final List<String> keys = ImmutableList.of(queueName, queueName + "working", queueName + "values");
+    return withConnection(new JedisOperation<Long>() {
+      @Override
+      public Long execute(Jedis conn) {
+        return (Long) conn.eval(MEMORY_USAGE, keys, Collections.<String>emptyList());
+      }
+    });
+  }
+
+  private interface KeyGenerator {
+    String next();
+  }
+}
@@ -0,0 +1,101 @@
+package com.bronto.ncsu.redis.benchmark;
+
+import com.bronto.ncsu.redis.codec.Codecs;
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.PriorityWorkQueue;
+import com.bronto.ncsu.redis.queue.ReliableWorkQueue;
+import com.bronto.ncsu.redis.queue.WorkQueue;
+import com.bronto.ncsu.redis.tests.TestBase;
+import com.bronto.ncsu.redis.util.Utils;
+
+import com.google.common.base.Stopwatch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares consumer throughput of a PriorityWorkQueue with the plain first
+ * in first out ReliableWorkQueue. Items are spread evenly over the
+ * priorities, so as the queue drains dequeue tries more empty lists.
+ */
+public class PriorityBenchmark extends TestBase {
+
+  private static final int[] LEVEL_COUNTS = {1, 4, 16};
+
+  private static final int TEST_SIZE = 50000;
+  private static final int CONSUMERS = 8;
+
+  @Test
+  public void testPriorityThroughput() throws Exception {
+    ReliableWorkQueue<String> fifo = new ReliableWorkQueue<String>(connections(), randomQueueName(), Codecs.utf8());
+
+    // The first pass warms up the JIT and the connection pool
+    for (int i = 0; i < 2; i++) {
+      enqueueAll(fifo, Utils.randomByteStrings(16, TEST_SIZE));
+      long millis = consume(fifo);
+      if (i > 0) {
+        report("fifo", millis);
+      }
+    }
+
+    for (int levels : LEVEL_COUNTS) {
+      PriorityWorkQueue<String> queue =
+          new PriorityWorkQueue<String>(connections(), randomQueueName(), Codecs.utf8(), levels);
+      enqueueAtLevels(queue, levels);
+      report("priority, levels=" + levels, consume(queue));
+    }
+
+    int[] weights = {1, 2, 4, 8};
+    PriorityWorkQueue<String> weighted =
+        new PriorityWorkQueue<String>(connections(), randomQueueName(), Codecs.utf8(), weights);
+    enqueueAtLevels(weighted, weights.length);
+    report("weighted, levels=" + weights.length, consume(weighted));
+  }
+
+  private static void enqueueAtLevels(PriorityWorkQueue<String> queue, int levels) {
+    List<String> values = Utils.randomByteStrings(16, TEST_SIZE);
+    for (int level = 0; level < levels; level++) {
+      List<Item<String>> items = new ArrayList<Item<String>>();
+      for (int i = level; i < values.size(); i += levels) {
+        items.add(createItem(values.get(i)));
+      }
+      queue.enqueueAll(items, level);
+    }
+  }
+
+  private long consume(WorkQueue<String> queue) throws Exception {
+    Stopwatch sw = Stopwatch.createStarted();
+    List<Future<?>> consumers = new ArrayList<Future<?>>();
+    for (int i = 0; i < CONSUMERS; i++) {
+      consumers.add(ex.submit(new Consumer(queue)));
+    }
+    for (Future<?> consumer : consumers) {
+      consumer.get();
+    }
+    return sw.elapsed(TimeUnit.MILLISECONDS);
+  }
+
+  private static void report(String label, long millis) {
+    System.out.println(String.format("%s: %.0f items/s", label, TEST_SIZE * 1e3 / millis));
+  }
+
+  private static class Consumer implements Runnable {
+    private final WorkQueue<String> queue;
+
+    private Consumer(WorkQueue<String> queue) {
+      this.queue = queue;
+    }
+
+    @Override
+    public void run() {
+      Item<String> item;
+      while ((item = queue.dequeue()) != null) {
+        queue.release(item);
+      }
+    }
+  }
+}
@@ -0,0 +1,34 @@
+package com.bronto.ncsu.redis.benchmark;
+
+import org.junit.runner.JUnitCore;
+
+/**
+ * Runs the benchmarks, which are written as tests against the same Redis
+ * server as RunTests. See WorkQueueBenchmark for per-operation numbers.
+ */
+public class RunBenchmarks {
+  public static void main(String[] args) throws Exception {
+    System.out.println("Running sharding benchmark...");
+    JUnitCore.runClasses(ShardingBenchmark.class);
+
+    System.out.println();
+    System.out.println("Running key memory benchmark...");
+    JUnitCore.runClasses(KeyMemoryBenchmark.class);
+
+    System.out.println();
+    System.out.println("Running priority benchmark...");
+    JUnitCore.runClasses(PriorityBenchmark.class);
+
+    System.out.println();
+    System.out.println("Running stream benchmark...");
+    JUnitCore.runClasses(StreamBenchmark.class);
+
+    System.out.println();
+    System.out.println("Running async benchmark...");
+    JUnitCore.runClasses(AsyncBenchmark.class);
+
+    System.out.println();
+    System.out.println("Running coalescing benchmark...");
+    JUnitCore.runClasses(CoalescingBenchmark.class);
+  }
+}
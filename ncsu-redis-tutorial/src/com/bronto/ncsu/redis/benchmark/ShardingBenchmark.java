@@ -0,0 +1,79 @@
+package com.bronto.ncsu.redis.benchmark;
+
+import com.bronto.ncsu.redis.queue.ConnectionProvider;
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.ShardedWorkQueue;
+import com.bronto.ncsu.redis.queue.WorkQueue;
+import com.bronto.ncsu.redis.tests.TestBase;
+import com.bronto.ncsu.redis.util.Utils;
+
+import com.google.common.base.Stopwatch;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures consumer throughput of a ShardedWorkQueue as the number of shards
+ * grows. A single Redis server runs commands on one core, so for the numbers
+ * to scale the shards must be spread over several servers. Start extra local
+ * servers with
+ *
+ *     redis-server --save '' --port 6380 --daemonize yes
+ *
+ * and so on, and list their ports in REDIS_PORTS.
+ */
+public class ShardingBenchmark extends TestBase {
+
+  private static final int[] REDIS_PORTS = {6379};
+  private static final int[] SHARD_COUNTS = {1, 2, 4, 8};
+
+  private static final int TEST_SIZE = 50000;
+  private static final int CONSUMERS_PER_SHARD = 4;
+
+  @Test
+  public void testShardScaling() throws Exception {
+    List<ConnectionProvider> connections = new ArrayList<ConnectionProvider>();
+    for (int port : REDIS_PORTS) {
+      connections.add(connections(port));
+    }
+
+    for (int shardCount : SHARD_COUNTS) {
+      ShardedWorkQueue queue = new ShardedWorkQueue(connections, randomQueueName(), shardCount);
+      enqueueAll(queue, Utils.randomByteStrings(16, TEST_SIZE));
+
+      Stopwatch sw = Stopwatch.createStarted();
+      List<Future<?>> consumers = new ArrayList<Future<?>>();
+      for (int i = 0; i < shardCount * CONSUMERS_PER_SHARD; i++) {
+        consumers.add(ex.submit(new Consumer(queue)));
+      }
+      for (Future<?> consumer : consumers) {
+        consumer.get();
+      }
+      sw.stop();
+
+      double perSecond = TEST_SIZE * 1e3 / sw.elapsed(TimeUnit.MILLISECONDS);
+      System.out.println(String.format("shards=%d, servers=%d: %.0f items/s",
+          shardCount, Math.min(shardCount, REDIS_PORTS.length), perSecond));
+    }
+  }
+
+  private static class Consumer implements Runnable {
+    private final WorkQueue<String> queue;
+
+    private Consumer(WorkQueue<String> queue) {
+      this.queue = queue;
+    }
+
+    @Override
+    public void run() {
+      Item<String> item;
+      while ((item = queue.dequeue()) != null) {
+        queue.release(item);
+      }
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package com.bronto.ncsu.redis.benchmark;
+
+import com.bronto.ncsu.redis.codec.Codecs;
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.ReliableWorkQueue;
+import com.bronto.ncsu.redis.queue.StreamWorkQueue;
+import com.bronto.ncsu.redis.queue.WorkQueue;
+import com.bronto.ncsu.redis.tests.TestBase;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Compares StreamWorkQueue with ReliableWorkQueue: consumer throughput,
+ * Redis memory per item while queued and while dequeued, and the time to
+ * sweep a large number of abandoned items.
+ */
+public class StreamBenchmark extends TestBase {
+
+  private static final int THROUGHPUT_SIZE = 50000;
+  private static final int CONSUMERS = 8;
+  private static final int PENDING_SIZE = 1000000;
+  private static final int BATCH_SIZE = 10000;
+  private static final String VALUE = "0123456789abcdef";
+
+  private static final String MEMORY_USAGE =
+      "local total = 0\n"
+      + "for i, key in ipairs(KEYS) do\n"
+      + "  total = total + (redis.call('MEMORY', 'USAGE', key, 'SAMPLES', '0') or 0)\n"
+      + "end\n"
+      + "return total";
+
+  @Test
+  public void testThroughput() throws Exception {
+    for (int i = 0; i < 2; i++) {
+      // The first pass warms up the JIT and the connection pool
+      long reliableMillis = consume(createReliableQueue(randomQueueName()));
+      long streamMillis = consume(new StreamWorkQueue(connections(), randomQueueName()));
+      if (i > 0) {
+        System.out.println(String.format("throughput: reliable %.0f items/s, stream %.0f items/s",
+            THROUGHPUT_SIZE * 1e3 / reliableMillis, THROUGHPUT_SIZE * 1e3 / streamMillis));
+      }
+    }
+  }
+
+  // Fills each queue with PENDING_SIZE dequeued items, measuring memory on
+  // the way, then times sweeping all of them
+  @Test
+  public void testMemoryAndSweep() {
+    String queueName = randomQueueName();
+    measure("reliable", createReliableQueue(queueName),
+        ImmutableList.of(queueName, queueName + "working", queueName + "values"));
+    queueName = randomQueueName();
+    measure("stream", new StreamWorkQueue(connections(), queueName), ImmutableList.of(queueName));
+  }
+
+  private void measure(String label, WorkQueue<String> queue, List<String> keys) {
+    for (int i = 0; i < PENDING_SIZE; i += BATCH_SIZE) {
+      List<Item<String>> items = new ArrayList<Item<String>>(BATCH_SIZE);
+      for (int j = 0; j < BATCH_SIZE; j++) {
+        items.add(createItem(VALUE));
+      }
+      queue.enqueueAll(items);
+    }
+    long queued = memoryUsage(keys);
+
+    while (!queue.dequeueBatch(BATCH_SIZE).isEmpty()) {
+      // Dequeue everything so it is abandoned
+    }
+    long dequeued = memoryUsage(keys);
+
+    Stopwatch sw = Stopwatch.createStarted();
+    long swept = queue.sweep(0);
+    long sweepMillis = sw.elapsed(TimeUnit.MILLISECONDS);
+
+    System.out.println(String.format("%s: queued %.1f MB, dequeued %.1f MB per million items; "
+        + "swept %d in %d ms", label, queued * 1e6 / PENDING_SIZE / 1e6, dequeued * 1e6 / PENDING_SIZE / 1e6,
+        swept, sweepMillis));
+
+    del(keys);
+  }
+
+  private long consume(WorkQueue<String> queue) throws Exception {
+    List<Item<String>> items = new ArrayList<Item<String>>(THROUGHPUT_SIZE);
+    for (int i = 0; i < THROUGHPUT_SIZE; i++) {
+      items.add(createItem(VALUE));
+    }
+    queue.enqueueAll(items);
+
+    Stopwatch sw = Stopwatch.createStarted();
+    List<Future<?>> consumers = new ArrayList<Future<?>>();
+    for (int i = 0; i < CONSUMERS; i++) {
+      consumers.add(ex.submit(new Consumer(queue)));
+    }
+    for (Future<?> consumer : consumers) {
+      consumer.get();
+    }
+    return sw.elapsed(TimeUnit.MILLISECONDS);
+  }
+
+  private ReliableWorkQueue<String> createReliableQueue(String queueName) {
+    return new ReliableWorkQueue<String>(connections(), queueName, Codecs.utf8());
+  }
+
+  private long memoryUsage(final List<String> keys) {
+    return withConnection(new JedisOperation<Long>() {
+      @Override
+      public Long execute(Jedis conn) {
+        return (Long) conn.eval(MEMORY_USAGE, keys, Collections.<String>emptyList());
+      }
+    });
+  }
+
+  private void del(final List<String> keys) {
+    withConnection(new JedisOperation<Long>() {
+      @Override
+      public Long execute(Jedis conn) {
+        return conn.del(keys.toArray(new String[keys.size()]));
+      }
+    });
+  }
+
+  private static class Consumer implements Runnable {
+    private final WorkQueue<String> queue;
+
+    private Consumer(WorkQueue<String> queue) {
+      this.queue = queue;
+    }
+
+    @Override
+    public void run() {
+      Item<String> item;
+      while ((item = queue.dequeue()) != null) {
+        queue.release(item);
+      }
+    }
+  }
+}
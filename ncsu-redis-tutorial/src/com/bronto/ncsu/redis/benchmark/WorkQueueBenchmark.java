@@ -0,0 +1,332 @@
+package com.bronto.ncsu.redis.benchmark;
+
+import com.bronto.ncsu.redis.codec.Codecs;
+import com.bronto.ncsu.redis.queue.InMemoryWorkQueue;
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.PooledConnectionProvider;
+import com.bronto.ncsu.redis.queue.ReliableWorkQueue;
+import com.bronto.ncsu.redis.queue.WorkQueue;
+import com.bronto.ncsu.redis.util.ItemIds;
+import com.bronto.ncsu.redis.util.LatencyHistogram;
+import com.bronto.ncsu.redis.util.Utils;
+
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Measures the throughput and latency of each WorkQueue operation over a range
+ * of payload sizes and thread counts.
+ *
+ * Every scenario runs against a fresh queue. Each thread first sets up the
+ * queue state its operation needs (for example dequeuing items to release)
+ * and then all threads run the operation together. Each scenario is run
+ * WARMUP_ROUNDS times untimed before the measured round so the JIT and the
+ * server's script cache are warm.
+ *
+ * Usage: WorkQueueBenchmark [host [port]]
+ *        WorkQueueBenchmark memory
+ *
+ * The second form runs against InMemoryWorkQueue, as a baseline without any
+ * network or Redis overhead.
+ */
+public class WorkQueueBenchmark {
+  private static final int[] PAYLOAD_SIZES = {16, 256, 4096};
+  private static final int[] THREAD_COUNTS = {1, 4, 16};
+  private static final int OPS_PER_THREAD = 2000;
+  private static final int BATCH_SIZE = 100;
+  private static final int WARMUP_ROUNDS = 1;
+
+  private static final List<Operation> OPERATIONS = Arrays.asList(
+      new Operation("enqueue", 1) {
+        @Override
+        void execute(WorkQueue<String> queue, List<Item<String>> items, int i) {
+          queue.enqueue(items.get(i));
+        }
+      },
+      new Operation("enqueueAll", BATCH_SIZE) {
+        @Override
+        void execute(WorkQueue<String> queue, List<Item<String>> items, int i) {
+          queue.enqueueAll(batch(items, i));
+        }
+      },
+      new Operation("dequeue", 1) {
+        @Override
+        void prepare(WorkQueue<String> queue, List<Item<String>> items) {
+          queue.enqueueAll(items);
+        }
+
+        @Override
+        void execute(WorkQueue<String> queue, List<Item<String>> items, int i) {
+          queue.dequeue();
+        }
+      },
+      new Operation("dequeueBatch", BATCH_SIZE) {
+        @Override
+        void prepare(WorkQueue<String> queue, List<Item<String>> items) {
+          queue.enqueueAll(items);
+        }
+
+        @Override
+        void execute(WorkQueue<String> queue, List<Item<String>> items, int i) {
+          queue.dequeueBatch(BATCH_SIZE);
+        }
+      },
+      new Operation("release", 1) {
+        @Override
+        void prepare(WorkQueue<String> queue, List<Item<String>> items) {
+          checkOut(queue, items);
+        }
+
+        @Override
+        void execute(WorkQueue<String> queue, List<Item<String>> items, int i) {
+          queue.release(items.get(i));
+        }
+      },
+      new Operation("releaseAll", BATCH_SIZE) {
+        @Override
+        void prepare(WorkQueue<String> queue, List<Item<String>> items) {
+          checkOut(queue, items);
+        }
+
+        @Override
+        void execute(WorkQueue<String> queue, List<Item<String>> items, int i) {
+          queue.releaseAll(batch(items, i));
+        }
+      },
+      new Operation("requeue", 1) {
+        @Override
+        void prepare(WorkQueue<String> queue, List<Item<String>> items) {
+          checkOut(queue, items);
+        }
+
+        @Override
+        void execute(WorkQueue<String> queue, List<Item<String>> items, int i) {
+          queue.requeue(items.get(i));
+        }
+      },
+      new Operation("requeueAll", BATCH_SIZE) {
+        @Override
+        void prepare(WorkQueue<String> queue, List<Item<String>> items) {
+          checkOut(queue, items);
+        }
+
+        @Override
+        void execute(WorkQueue<String> queue, List<Item<String>> items, int i) {
+          queue.requeueAll(batch(items, i));
+        }
+      },
+      new Operation("sweep", BATCH_SIZE) {
+        @Override
+        void prepare(WorkQueue<String> queue, List<Item<String>> items) {
+          checkOut(queue, items);
+        }
+
+        @Override
+        void execute(WorkQueue<String> queue, List<Item<String>> items, int i) {
+          queue.sweep(0, BATCH_SIZE);
+        }
+      }
+  );
+
+  private final QueueFactory factory;
+  private final ExecutorService ex;
+
+  public WorkQueueBenchmark(QueueFactory factory, int maxThreads) {
+    this.factory = factory;
+    this.ex = Executors.newFixedThreadPool(maxThreads,
+        new ThreadFactoryBuilder()
+            .setNameFormat("Benchmark-%d")
+            .setDaemon(true)
+            .build());
+  }
+
+  public static void main(String[] args) throws Exception {
+    String host = args.length > 0 ? args[0] : "localhost";
+    int port = args.length > 1 ? Integer.parseInt(args[1]) : 6379;
+    int maxThreads = THREAD_COUNTS[THREAD_COUNTS.length - 1];
+
+    if (host.equals("memory")) {
+      new WorkQueueBenchmark(new QueueFactory() {
+        @Override
+        public WorkQueue<String> create(String name) {
+          return new InMemoryWorkQueue<String>(name);
+        }
+      }, maxThreads).runAll();
+      return;
+    }
+
+    final JedisPool pool = new JedisPool(PooledConnectionProvider.poolConfig(maxThreads), host, port);
+    try {
+      new WorkQueueBenchmark(new QueueFactory() {
+        @Override
+        public WorkQueue<String> create(String name) {
+          return new ReliableWorkQueue<String>(pool, name, Codecs.utf8());
+        }
+      }, maxThreads).runAll();
+    } finally {
+      pool.close();
+    }
+  }
+
+  /**
+   * Runs every scenario and prints a line of results for each.
+   */
+  public void runAll() throws InterruptedException {
+    System.out.println(String.format("%-13s %8s %8s %12s %12s %10s %10s %10s %10s %10s",
+        "operation", "payload", "threads", "calls/s", "items/s",
+        "p50(us)", "p90(us)", "p99(us)", "p99.9(us)", "max(us)"));
+    try {
+      for (Operation operation : OPERATIONS) {
+        for (int payloadSize : PAYLOAD_SIZES) {
+          for (int threads : THREAD_COUNTS) {
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+              run(operation, payloadSize, threads);
+            }
+            System.out.println(run(operation, payloadSize, threads));
+          }
+        }
+      }
+    } finally {
+      ex.shutdownNow();
+    }
+  }
+
+  private Result run(final Operation operation, int payloadSize, int threads) throws InterruptedException {
+    final WorkQueue<String> queue = factory.create("bench-" + Utils.randomBytesString(8));
+    final String payload = Strings.repeat("x", payloadSize);
+    final CyclicBarrier start = new CyclicBarrier(threads + 1);
+    final CyclicBarrier done = new CyclicBarrier(threads + 1);
+    final int calls = OPS_PER_THREAD / operation.batchSize;
+
+    List<Future<LatencyHistogram>> futures = Lists.newArrayList();
+    for (int t = 0; t < threads; t++) {
+      futures.add(ex.submit(new Callable<LatencyHistogram>() {
+        @Override
+        public LatencyHistogram call() throws Exception {
+          List<Item<String>> items = Lists.newArrayListWithCapacity(OPS_PER_THREAD);
+          for (int i = 0; i < OPS_PER_THREAD; i++) {
+            items.add(new Item<String>(ItemIds.nextKey(), payload));
+          }
+          operation.prepare(queue, items);
+
+          LatencyHistogram histogram = new LatencyHistogram();
+          start.await();
+          for (int i = 0; i < calls; i++) {
+            long begin = System.nanoTime();
+            operation.execute(queue, items, i);
+            histogram.record(System.nanoTime() - begin);
+          }
+          done.await();
+          return histogram;
+        }
+      }));
+    }
+
+    long elapsedNanos;
+    try {
+      start.await();
+      long begin = System.nanoTime();
+      done.await();
+      elapsedNanos = System.nanoTime() - begin;
+
+      LatencyHistogram histogram = new LatencyHistogram();
+      for (Future<LatencyHistogram> future : futures) {
+        histogram.add(future.get());
+      }
+      return new Result(operation, payloadSize, threads, elapsedNanos, histogram);
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    } catch (Exception e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  /**
+   * Creates the queue each benchmark scenario runs against.
+   */
+  public interface QueueFactory {
+    WorkQueue<String> create(String name);
+  }
+
+  private abstract static class Operation {
+    private final String name;
+    private final int batchSize;
+
+    private Operation(String name, int batchSize) {
+      this.name = name;
+      this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets up the queue state needed before the timed calls. Called by each
+     * thread with the items it will use.
+     */
+    void prepare(WorkQueue<String> queue, List<Item<String>> items) {
+    }
+
+    /**
+     * Makes the i'th timed call.
+     */
+    abstract void execute(WorkQueue<String> queue, List<Item<String>> items, int i);
+
+    /**
+     * Enqueues and dequeues the given number of items, replacing the contents
+     * of items with the items now checked out by this thread.
+     */
+    static void checkOut(WorkQueue<String> queue, List<Item<String>> items) {
+      int count = items.size();
+      queue.enqueueAll(items);
+      items.clear();
+      while (items.size() < count) {
+        items.addAll(queue.dequeueBatch(Math.min(1000, count - items.size())));
+      }
+    }
+
+    static List<Item<String>> batch(List<Item<String>> items, int i) {
+      return items.subList(i * BATCH_SIZE, (i + 1) * BATCH_SIZE);
+    }
+  }
+
+  private static final class Result {
+    private final Operation operation;
+    private final int payloadSize;
+    private final int threads;
+    private final long elapsedNanos;
+    private final LatencyHistogram histogram;
+
+    private Result(Operation operation, int payloadSize, int threads, long elapsedNanos,
+        LatencyHistogram histogram) {
+      this.operation = operation;
+      this.payloadSize = payloadSize;
+      this.threads = threads;
+      this.elapsedNanos = elapsedNanos;
+      this.histogram = histogram;
+    }
+
+    private double percentileMicros(double percentile) {
+      return histogram.getValueAtPercentile(percentile) / 1e3;
+    }
+
+    @Override
+    public String toString() {
+      double callsPerSecond = histogram.getTotalCount() * 1e9 / elapsedNanos;
+      return String.format("%-13s %8d %8d %12.0f %12.0f %10.1f %10.1f %10.1f %10.1f %10.1f",
+          operation.name, payloadSize, threads, callsPerSecond, callsPerSecond * operation.batchSize,
+          percentileMicros(50), percentileMicros(90), percentileMicros(99), percentileMicros(99.9),
+          histogram.getMax() / 1e3);
+    }
+  }
+}
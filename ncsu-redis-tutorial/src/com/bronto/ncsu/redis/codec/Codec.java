@@ -0,0 +1,26 @@
+package com.bronto.ncsu.redis.codec;
+
+/**
+ * Converts queue item values to and from the bytes stored in Redis.
+ * Implementations must be thread safe.
+ *
+ * @param <T>
+ */
+public interface Codec<T> {
+
+  /**
+   * Encodes a value.
+   *
+   * @param value
+   * @return the encoded bytes, which the caller may keep
+   */
+  byte[] encode(T value);
+
+  /**
+   * Decodes a value encoded by encode.
+   *
+   * @param bytes
+   * @return
+   */
+  T decode(byte[] bytes);
+}
@@ -0,0 +1,52 @@
+package com.bronto.ncsu.redis.codec;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Codecs for common value types.
+ */
+public final class Codecs {
+  private static final Codec<byte[]> BYTES = new Codec<byte[]>() {
+    @Override
+    public byte[] encode(byte[] value) {
+      return value;
+    }
+
+    @Override
+    public byte[] decode(byte[] bytes) {
+      return bytes;
+    }
+  };
+
+  private static final Codec<String> UTF8 = new Codec<String>() {
+    @Override
+    public byte[] encode(String value) {
+      return value.getBytes(Charsets.UTF_8);
+    }
+
+    @Override
+    public String decode(byte[] bytes) {
+      return new String(bytes, Charsets.UTF_8);
+    }
+  };
+
+  private Codecs() {}
+
+  /**
+   * Gets a codec which stores byte arrays as they are, without copying them.
+   *
+   * @return
+   */
+  public static Codec<byte[]> bytes() {
+    return BYTES;
+  }
+
+  /**
+   * Gets a codec which stores strings as UTF-8.
+   *
+   * @return
+   */
+  public static Codec<String> utf8() {
+    return UTF8;
+  }
+}
@@ -0,0 +1,74 @@
+package com.bronto.ncsu.redis.codec;
+
+/**
+ * A codec for values made up of several fields, written one after another
+ * in a compact binary form. Integers are written as variable length
+ * integers and strings and byte arrays are prefixed by their length, so
+ * small values take few bytes and no field names or separators are stored.
+ *
+ * Values are encoded into a buffer kept by each thread and reused from one
+ * call to the next, so encoding allocates only the returned array.
+ *
+ * For example, a codec for a simple email job:
+ *
+ * <pre>
+ * new RecordCodec&lt;Email&gt;() {
+ *   protected void write(Email email, RecordWriter out) {
+ *     out.writeVarint(email.getContactId());
+ *     out.writeString(email.getSubject());
+ *   }
+ *
+ *   protected Email read(RecordReader in) {
+ *     return new Email(in.readVarint(), in.readString());
+ *   }
+ * }
+ * </pre>
+ *
+ * @param <T>
+ */
+public abstract class RecordCodec<T> implements Codec<T> {
+  private static final ThreadLocal<RecordWriter> WRITERS = new ThreadLocal<RecordWriter>() {
+    @Override
+    protected RecordWriter initialValue() {
+      return new RecordWriter();
+    }
+  };
+
+  @Override
+  public final byte[] encode(T value) {
+    RecordWriter out = WRITERS.get();
+    if (out.inUse) {
+      // A record codec called from within another's write method
+      out = new RecordWriter();
+    }
+    out.reset();
+    out.inUse = true;
+    try {
+      write(value, out);
+      return out.toByteArray();
+    } finally {
+      out.inUse = false;
+    }
+  }
+
+  @Override
+  public final T decode(byte[] bytes) {
+    return read(new RecordReader(bytes));
+  }
+
+  /**
+   * Writes the fields of a value.
+   *
+   * @param value
+   * @param out
+   */
+  protected abstract void write(T value, RecordWriter out);
+
+  /**
+   * Reads the fields of a value in the order they were written.
+   *
+   * @param in
+   * @return
+   */
+  protected abstract T read(RecordReader in);
+}
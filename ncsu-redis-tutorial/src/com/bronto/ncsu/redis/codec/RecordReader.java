@@ -0,0 +1,94 @@
+package com.bronto.ncsu.redis.codec;
+
+import com.google.common.base.Charsets;
+
+import java.util.Arrays;
+
+/**
+ * Reads the fields of a record written by RecordWriter. See RecordCodec.
+ */
+public final class RecordReader {
+  private final byte[] buffer;
+  private int position;
+
+  RecordReader(byte[] buffer) {
+    this.buffer = buffer;
+  }
+
+  /**
+   * Reads an unsigned variable length integer.
+   *
+   * @return
+   * @throws IllegalArgumentException if the record is truncated or malformed
+   */
+  public long readVarint() {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      checkRemaining(1);
+      byte b = buffer[position++];
+      value |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint");
+  }
+
+  /**
+   * Reads a zigzag encoded signed variable length integer.
+   *
+   * @return
+   */
+  public long readSignedVarint() {
+    long value = readVarint();
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /**
+   * Reads a length prefixed byte array.
+   *
+   * @return
+   */
+  public byte[] readBytes() {
+    int length = readLength();
+    byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+    position += length;
+    return bytes;
+  }
+
+  /**
+   * Reads a length prefixed UTF-8 string.
+   *
+   * @return
+   */
+  public String readString() {
+    int length = readLength();
+    String value = new String(buffer, position, length, Charsets.UTF_8);
+    position += length;
+    return value;
+  }
+
+  /**
+   * Returns true if there are fields left to read. Fields added to the end
+   * of a record can be read only when present, so old records still decode.
+   *
+   * @return
+   */
+  public boolean hasRemaining() {
+    return position < buffer.length;
+  }
+
+  private int readLength() {
+    long length = readVarint();
+    if (length < 0 || length > buffer.length - position) {
+      throw new IllegalArgumentException("Truncated record");
+    }
+    return (int) length;
+  }
+
+  private void checkRemaining(int count) {
+    if (buffer.length - position < count) {
+      throw new IllegalArgumentException("Truncated record");
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package com.bronto.ncsu.redis.codec;
+
+import com.google.common.base.Charsets;
+
+import java.util.Arrays;
+
+/**
+ * Writes the fields of a record into a growable buffer. See RecordCodec.
+ */
+public final class RecordWriter {
+  private static final int INITIAL_CAPACITY = 256;
+
+  // Buffers which grew beyond this are dropped on reset rather than kept
+  // for the life of the thread
+  private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+  private byte[] buffer = new byte[INITIAL_CAPACITY];
+  private int position;
+
+  // Set while a RecordCodec is encoding into this writer
+  boolean inUse;
+
+  RecordWriter() {
+  }
+
+  /**
+   * Writes an unsigned variable length integer, seven bits per byte. Values
+   * below 128 take a single byte. Negative values take ten bytes; use
+   * writeSignedVarint for values which may be negative.
+   *
+   * @param value
+   */
+  public void writeVarint(long value) {
+    ensureCapacity(10);
+    while ((value & ~0x7FL) != 0) {
+      buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer[position++] = (byte) value;
+  }
+
+  /**
+   * Writes a signed variable length integer, zigzag encoded so values near
+   * zero take a single byte whatever their sign.
+   *
+   * @param value
+   */
+  public void writeSignedVarint(long value) {
+    writeVarint((value << 1) ^ (value >> 63));
+  }
+
+  /**
+   * Writes a byte array prefixed by its length.
+   *
+   * @param bytes
+   */
+  public void writeBytes(byte[] bytes) {
+    writeVarint(bytes.length);
+    ensureCapacity(bytes.length);
+    System.arraycopy(bytes, 0, buffer, position, bytes.length);
+    position += bytes.length;
+  }
+
+  /**
+   * Writes a string as UTF-8 prefixed by its length in bytes. ASCII strings
+   * are copied straight into the buffer.
+   *
+   * @param value
+   */
+  public void writeString(String value) {
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      if (value.charAt(i) >= 0x80) {
+        writeBytes(value.getBytes(Charsets.UTF_8));
+        return;
+      }
+    }
+
+    writeVarint(length);
+    ensureCapacity(length);
+    for (int i = 0; i < length; i++) {
+      buffer[position++] = (byte) value.charAt(i);
+    }
+  }
+
+  void reset() {
+    if (buffer.length > MAX_RETAINED_CAPACITY) {
+      buffer = new byte[INITIAL_CAPACITY];
+    }
+    position = 0;
+  }
+
+  byte[] toByteArray() {
+    return Arrays.copyOf(buffer, position);
+  }
+
+  private void ensureCapacity(int extra) {
+    if (position + extra > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+    }
+  }
+}
@@ -0,0 +1,194 @@
+package com.bronto.ncsu.redis.queue;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An asynchronous view of a ReliableWorkQueue. Each operation is sent
+ * through a CommandPipeline and returns a future at once instead of holding a
+ * thread while it waits on Redis, so a few threads can keep many operations
+ * in flight. Operations from every thread sharing the pipeline are coalesced
+ * into batches, each written to the connection at once.
+ *
+ * Operations run the same scripts as the underlying queue, so items may be
+ * enqueued or dequeued by either and the two can be used side by side, e.g.
+ * with the underlying queue for blocking dequeues, which are not offered
+ * here.
+ *
+ * Futures are completed, and their results decoded, on the pipeline's
+ * writer thread. See CommandPipeline for what listeners may do there.
+ * Operations on the same pipeline are sent in the order they were called,
+ * and each fails with the exception of its script call.
+ *
+ * @param <T>
+ */
+public class AsyncWorkQueue<T> {
+  private final ReliableWorkQueue<T> queue;
+  private final CommandPipeline pipeline;
+
+  private final Function<Object, List<Item<T>>> toItems = new Function<Object, List<Item<T>>>() {
+    @Override
+    public List<Item<T>> apply(Object result) {
+      return queue.toItems(result);
+    }
+  };
+
+  public AsyncWorkQueue(ReliableWorkQueue<T> queue, CommandPipeline pipeline) {
+    this.queue = queue;
+    this.pipeline = pipeline;
+  }
+
+  /**
+   * Enqueues an item. If the queue has a depth limit which does not drop
+   * old items, the future fails with a QueueFullException when the item does
+   * not fit. Limits which block are not retried, since that would hold up the
+   * pipeline, so they reject as well.
+   *
+   * @param item
+   * @return
+   */
+  public ListenableFuture<Void> enqueueAsync(Item<T> item) {
+    return enqueueAllAsync(ImmutableList.of(item));
+  }
+
+  /**
+   * Enqueues the items, either all of them or, if the queue is full, none,
+   * as enqueueAsync.
+   *
+   * @param items
+   * @return
+   */
+  public ListenableFuture<Void> enqueueAllAsync(Collection<Item<T>> items) {
+    if (items.isEmpty()) {
+      return Futures.immediateFuture(null);
+    }
+    return Futures.transform(pipeline.submit(queue.enqueueCall(items)), new Function<Object, Void>() {
+      @Override
+      public Void apply(Object result) {
+        queue.checkEnqueued(result);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Dequeues an item as WorkQueue.dequeue.
+   *
+   * @return a future for the item, or null if the queue is empty
+   */
+  public ListenableFuture<Item<T>> dequeueAsync() {
+    return dequeueWithLeaseAsync(0);
+  }
+
+  /**
+   * Dequeues an item as WorkQueue.dequeueWithLease.
+   *
+   * @param leaseMillis
+   * @return a future for the item, or null if the queue is empty
+   */
+  public ListenableFuture<Item<T>> dequeueWithLeaseAsync(long leaseMillis) {
+    return Futures.transform(pipeline.submit(queue.dequeueCall(1, leaseMillis)),
+        new Function<Object, Item<T>>() {
+          @Override
+          public Item<T> apply(Object result) {
+            List<Item<T>> items = queue.toItems(result);
+            return items.isEmpty() ? null : items.get(0);
+          }
+        });
+  }
+
+  public ListenableFuture<List<Item<T>>> dequeueBatchAsync(int max) {
+    if (max <= 0) {
+      return Futures.immediateFuture(Collections.<Item<T>>emptyList());
+    }
+    return Futures.transform(pipeline.submit(queue.dequeueCall(max, 0)), toItems);
+  }
+
+  public ListenableFuture<Void> releaseAsync(Item<T> item) {
+    return toVoid(pipeline.submit(queue.releaseCall(ImmutableList.of(item))));
+  }
+
+  public ListenableFuture<Void> releaseAllAsync(Collection<Item<T>> items) {
+    if (items.isEmpty()) {
+      return Futures.immediateFuture(null);
+    }
+    return toVoid(pipeline.submit(queue.releaseCall(items)));
+  }
+
+  public ListenableFuture<Void> requeueAsync(Item<T> item) {
+    return toVoid(pipeline.submit(queue.requeueCall(ImmutableList.of(item))));
+  }
+
+  public ListenableFuture<Void> requeueAllAsync(Collection<Item<T>> items) {
+    if (items.isEmpty()) {
+      return Futures.immediateFuture(null);
+    }
+    return toVoid(pipeline.submit(queue.requeueCall(items)));
+  }
+
+  public ListenableFuture<Void> requeueAsync(Item<T> item, Backoff backoff) {
+    return toVoid(pipeline.submit(queue.requeueCall(item, backoff)));
+  }
+
+  /**
+   * Extends the lease of a dequeued item as WorkQueue.extendLease.
+   *
+   * @param item
+   * @param millis
+   * @return a future for whether the item was still dequeued
+   */
+  public ListenableFuture<Boolean> extendLeaseAsync(Item<T> item, long millis) {
+    return Futures.transform(extendLeaseAllAsync(ImmutableList.of(item), millis),
+        new Function<Integer, Boolean>() {
+          @Override
+          public Boolean apply(Integer count) {
+            return count == 1;
+          }
+        });
+  }
+
+  public ListenableFuture<Integer> extendLeaseAllAsync(Collection<Item<T>> items, long millis) {
+    if (items.isEmpty()) {
+      return Futures.immediateFuture(0);
+    }
+    return toInteger(pipeline.submit(queue.extendLeaseCall(items, millis)));
+  }
+
+  /**
+   * Requeues up to limit abandoned items as WorkQueue.sweep(long, int).
+   *
+   * @param abandonedMillis
+   * @param limit
+   * @return a future for the number of items requeued
+   */
+  public ListenableFuture<Integer> sweepAsync(long abandonedMillis, int limit) {
+    if (limit <= 0) {
+      return Futures.immediateFuture(0);
+    }
+    return toInteger(pipeline.submit(queue.sweepCall(abandonedMillis, limit)));
+  }
+
+  public String getName() {
+    return queue.getName();
+  }
+
+  private static ListenableFuture<Void> toVoid(ListenableFuture<Object> future) {
+    return Futures.transform(future, Functions.<Void>constant(null));
+  }
+
+  private static ListenableFuture<Integer> toInteger(ListenableFuture<Object> future) {
+    return Futures.transform(future, new Function<Object, Integer>() {
+      @Override
+      public Integer apply(Object result) {
+        return ((Long) result).intValue();
+      }
+    });
+  }
+}
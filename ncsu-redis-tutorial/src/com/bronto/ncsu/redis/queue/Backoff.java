@@ -0,0 +1,89 @@
+package com.bronto.ncsu.redis.queue;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long to delay an item requeued after a failed attempt, by the number of
+ * times it has been requeued. The first requeue is delayed by the initial
+ * delay and each later one by multiplier times the one before, up to the
+ * maximum delay.
+ *
+ * Queues count requeues with a delay or backoff for each item until it is
+ * released, so items which keep failing wait longer and longer rather than
+ * being dequeued again straight away.
+ */
+public final class Backoff {
+  private final long initialMillis;
+  private final double multiplier;
+  private final long maxMillis;
+
+  /**
+   * @param initialMillis the delay of the first requeue
+   * @param multiplier how much each delay grows over the one before, at
+   *     least 1
+   * @param maxMillis the longest delay
+   */
+  public Backoff(long initialMillis, double multiplier, long maxMillis) {
+    Preconditions.checkArgument(initialMillis >= 0, "negative initial delay");
+    Preconditions.checkArgument(multiplier >= 1, "multiplier less than 1");
+    Preconditions.checkArgument(maxMillis >= initialMillis, "maximum delay less than initial delay");
+    this.initialMillis = initialMillis;
+    this.multiplier = multiplier;
+    this.maxMillis = maxMillis;
+  }
+
+  /**
+   * Creates a backoff which delays every requeue by the same time.
+   *
+   * @param delay
+   * @param unit
+   * @return
+   */
+  public static Backoff fixed(long delay, TimeUnit unit) {
+    long millis = unit.toMillis(delay);
+    return new Backoff(millis, 1, millis);
+  }
+
+  /**
+   * Creates a backoff which doubles the delay on each requeue.
+   *
+   * @param initial
+   * @param max
+   * @param unit
+   * @return
+   */
+  public static Backoff exponential(long initial, long max, TimeUnit unit) {
+    return new Backoff(unit.toMillis(initial), 2, unit.toMillis(max));
+  }
+
+  public long getInitialMillis() {
+    return initialMillis;
+  }
+
+  public double getMultiplier() {
+    return multiplier;
+  }
+
+  public long getMaxMillis() {
+    return maxMillis;
+  }
+
+  /**
+   * Gets the delay of the given requeue of an item.
+   *
+   * @param attempt the number of times the item has been requeued,
+   *     including this one
+   * @return the delay in milliseconds
+   */
+  public long getDelayMillis(int attempt) {
+    double delay = initialMillis * Math.pow(multiplier, Math.max(0, attempt - 1));
+    return delay >= maxMillis ? maxMillis : (long) delay;
+  }
+
+  @Override
+  public String toString() {
+    return "Backoff[initial=" + initialMillis + "ms, multiplier=" + multiplier + ", max=" + maxMillis + "ms]";
+  }
+}
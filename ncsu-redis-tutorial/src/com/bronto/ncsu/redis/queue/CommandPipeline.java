@@ -0,0 +1,368 @@
+package com.bronto.ncsu.redis.queue;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * Sends script calls from any number of threads over a single connection,
+ * without a thread waiting on each call. A writer thread takes every call
+ * which is pending, up to maxBatchSize, writes them all to the connection
+ * with a single flush, then reads the replies in order and completes each
+ * call's future. Calls submitted while a batch is in flight make up the next
+ * batch, so the more callers there are, the more calls share each round
+ * trip, and a few threads can keep the server busy.
+ *
+ * Optionally, the writer waits up to a window after the first call of a
+ * batch for more calls to arrive, sending early once it has maxBatchSize.
+ * This delays each call by up to the window, but when callers each wait for
+ * their result, as through a ReliableWorkQueue given a pipeline, it lets
+ * their calls meet in one batch rather than trickling out one at a time.
+ * With no window, batches only form while the previous one is in flight.
+ *
+ * Calls are sent in the order they were submitted. Each script is loaded
+ * before its first call is sent on a connection. If the server's script
+ * cache is flushed later, calls of the script are retried in the next batch,
+ * after calls submitted after them. If the connection fails, every call in
+ * the batch fails with the connection exception, since they may or may not
+ * have run, and another connection is borrowed for the next batch.
+ *
+ * The connection is borrowed from the ConnectionProvider when the first
+ * batch is sent and held until close, so a SingleConnectionProvider given to
+ * a pipeline can not be used for anything else meanwhile.
+ *
+ * Futures are completed on the writer thread. Listeners which run on the
+ * completing thread hold up every call behind them, so they must not block,
+ * and in particular must not wait on another call of the same pipeline.
+ *
+ * Call close to stop accepting calls. Calls already submitted are still
+ * sent.
+ *
+ * If the writer fails with anything other than a connection error, such as
+ * an Error or an exception from the ConnectionProvider while giving up a
+ * broken connection, the pipeline is dead: every call in flight or pending
+ * fails with an IllegalStateException caused by the failure, as does every
+ * call submitted afterwards, so no caller waits forever.
+ */
+public class CommandPipeline implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(CommandPipeline.class);
+
+  private static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+  private static final long IDLE_MILLIS = 50;
+
+  private final ConnectionProvider connections;
+  private final int maxBatchSize;
+  private final long windowNanos;
+  private final BlockingQueue<Call> pending = new LinkedBlockingQueue<Call>();
+  private final ExecutorService writer;
+
+  private final AtomicLong batchCount = new AtomicLong();
+  private final AtomicLong callCount = new AtomicLong();
+
+  // Only used by the writer thread
+  private Jedis conn;
+  private final Set<LuaScript> loaded = Sets.newHashSet();
+
+  private volatile boolean closed;
+  private volatile Throwable failure;
+
+  public CommandPipeline(ConnectionProvider connections) {
+    this(connections, DEFAULT_MAX_BATCH_SIZE);
+  }
+
+  /**
+   * Creates a pipeline which sends at most maxBatchSize calls per round
+   * trip, so a burst of calls does not build up an unbounded output buffer.
+   *
+   * @param connections
+   * @param maxBatchSize
+   */
+  public CommandPipeline(ConnectionProvider connections, int maxBatchSize) {
+    this(connections, maxBatchSize, 0, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Creates a pipeline which waits up to window after the first call of each
+   * batch for more calls, unless it has maxBatchSize calls sooner.
+   *
+   * @param connections
+   * @param maxBatchSize
+   * @param window how long to wait for more calls, or 0 to send at once
+   * @param unit
+   */
+  public CommandPipeline(ConnectionProvider connections, int maxBatchSize, long window, TimeUnit unit) {
+    Preconditions.checkArgument(maxBatchSize > 0, "maxBatchSize must be positive");
+    Preconditions.checkArgument(window >= 0, "negative window");
+    this.connections = connections;
+    this.maxBatchSize = maxBatchSize;
+    this.windowNanos = unit.toNanos(window);
+    this.writer = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder()
+            .setNameFormat("CommandPipeline-%d")
+            .setDaemon(true)
+            .build());
+    writer.execute(new Writer());
+  }
+
+  /**
+   * Queues a call to be sent with the next batch.
+   *
+   * @param call
+   * @return a future for the raw script result, as returned by Jedis
+   */
+  ListenableFuture<Object> submit(ScriptCall call) {
+    if (closed || failure != null) {
+      return Futures.immediateFailedFuture(stoppedException());
+    }
+    Call pendingCall = new Call(call);
+    pending.add(pendingCall);
+
+    // If the pipeline was closed or failed meanwhile, the writer may already
+    // have stopped. Whoever removes the call from the queue completes it.
+    if ((closed || failure != null) && pending.remove(pendingCall)) {
+      return Futures.immediateFailedFuture(stoppedException());
+    }
+    return pendingCall.future;
+  }
+
+  /**
+   * Submits a call and waits for its result, for callers which need it before
+   * going on. Exceptions are thrown as if the script had been run directly.
+   *
+   * @param call
+   * @return the raw script result, as returned by Jedis
+   */
+  Object call(ScriptCall call) {
+    try {
+      return Uninterruptibles.getUninterruptibly(submit(call));
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  /**
+   * Gets the number of batches sent, each a single round trip.
+   *
+   * @return
+   */
+  public long getBatchCount() {
+    return batchCount.get();
+  }
+
+  /**
+   * Gets the number of calls sent, counting retries.
+   *
+   * @return
+   */
+  public long getCallCount() {
+    return callCount.get();
+  }
+
+  /**
+   * Stops accepting calls and waits for those already submitted to be sent.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    writer.shutdown();
+    boolean interrupted = false;
+    try {
+      writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      interrupted = true;
+    }
+
+    // Fail anything submitted after the writer's last check
+    failPending(stoppedException());
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Gets whether the writer has failed, so every call fails.
+   *
+   * @return
+   */
+  public boolean isFailed() {
+    return failure != null;
+  }
+
+  private IllegalStateException stoppedException() {
+    Throwable cause = failure;
+    return cause == null
+        ? new IllegalStateException("pipeline closed")
+        : new IllegalStateException("pipeline failed", cause);
+  }
+
+  private void failPending(Throwable t) {
+    Call call;
+    while ((call = pending.poll()) != null) {
+      call.future.setException(t);
+    }
+  }
+
+  /**
+   * Sends a batch of calls and completes their futures, adding calls whose
+   * script was missing from the server's cache to retries.
+   */
+  private void send(List<Call> batch, List<Call> retries) {
+    List<Object> replies;
+    try {
+      if (conn == null) {
+        conn = connections.getConnection();
+        loaded.clear();
+      }
+      for (Call call : batch) {
+        if (loaded.add(call.call.getScript())) {
+          call.call.getScript().load(conn);
+        }
+      }
+      for (Call call : batch) {
+        call.call.send(conn.getClient());
+      }
+      // Flushes the calls, then reads a reply for each
+      replies = conn.getClient().getAll();
+    } catch (RuntimeException e) {
+      // The connection is in an unknown state, so give it up. A pooled
+      // connection is discarded by the pool once broken.
+      loaded.clear();
+      if (conn != null) {
+        connections.returnConnection(conn);
+        conn = null;
+      }
+      for (Call call : batch) {
+        call.future.setException(e);
+      }
+      return;
+    }
+    batchCount.incrementAndGet();
+    callCount.addAndGet(batch.size());
+
+    for (int i = 0; i < batch.size(); i++) {
+      Call call = batch.get(i);
+      Object reply = replies.get(i);
+      if (reply instanceof JedisDataException) {
+        JedisDataException e = (JedisDataException) reply;
+        if (LuaScript.isNoScript(e) && !call.retried) {
+          call.retried = true;
+          loaded.remove(call.call.getScript());
+          retries.add(call);
+        } else {
+          call.future.setException(e);
+        }
+      } else {
+        call.future.set(reply);
+      }
+    }
+  }
+
+  private static class Call {
+    private final ScriptCall call;
+    private final SettableFuture<Object> future = SettableFuture.create();
+    private boolean retried;
+
+    private Call(ScriptCall call) {
+      this.call = call;
+    }
+  }
+
+  private class Writer implements Runnable {
+    @Override
+    public void run() {
+      List<Call> batch = Lists.newArrayList();
+      List<Call> retries = Lists.newArrayList();
+      try {
+        while (!closed || !pending.isEmpty() || !retries.isEmpty()) {
+          batch.addAll(retries);
+          retries.clear();
+          if (batch.isEmpty()) {
+            Call first = pending.poll(IDLE_MILLIS, TimeUnit.MILLISECONDS);
+            if (first == null) {
+              continue;
+            }
+            batch.add(first);
+          }
+          pending.drainTo(batch, maxBatchSize - batch.size());
+          if (windowNanos > 0) {
+            fill(batch);
+          }
+          send(batch, retries);
+          batch.clear();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (Throwable t) {
+        fail(t, batch, retries);
+        Throwables.propagateIfInstanceOf(t, Error.class);
+      } finally {
+        if (conn != null) {
+          try {
+            connections.returnConnection(conn);
+          } catch (RuntimeException e) {
+            LOG.warn("Failed to return pipeline connection", e);
+          }
+          conn = null;
+        }
+      }
+    }
+
+    /**
+     * Marks the pipeline failed and fails every call it holds.
+     */
+    private void fail(Throwable t, List<Call> batch, List<Call> retries) {
+      LOG.error("Command pipeline writer failed", t);
+      failure = t;
+      IllegalStateException e = stoppedException();
+      for (Call call : batch) {
+        call.future.setException(e);
+      }
+      for (Call call : retries) {
+        call.future.setException(e);
+      }
+      failPending(e);
+    }
+
+    /**
+     * Waits up to the window for more calls until the batch is full.
+     */
+    private void fill(List<Call> batch) throws InterruptedException {
+      long deadline = System.nanoTime() + windowNanos;
+      while (batch.size() < maxBatchSize && !closed) {
+        long remainingNanos = deadline - System.nanoTime();
+        if (remainingNanos <= 0) {
+          return;
+        }
+        Call next = pending.poll(remainingNanos, TimeUnit.NANOSECONDS);
+        if (next == null) {
+          return;
+        }
+        batch.add(next);
+        pending.drainTo(batch, maxBatchSize - batch.size());
+      }
+    }
+  }
+}
@@ -0,0 +1,26 @@
+package com.bronto.ncsu.redis.queue;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Supplies Redis connections to a queue. A connection obtained with
+ * getConnection is used by a single thread for one operation and must then be
+ * handed back with returnConnection.
+ */
+public interface ConnectionProvider {
+
+  /**
+   * Gets a connection for the exclusive use of the calling thread, waiting
+   * for one to become available if necessary.
+   *
+   * @return
+   */
+  Jedis getConnection();
+
+  /**
+   * Returns a connection obtained from getConnection.
+   *
+   * @param conn
+   */
+  void returnConnection(Jedis conn);
+}
@@ -0,0 +1,78 @@
+package com.bronto.ncsu.redis.queue;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Implemented by queues which give up on items that keep failing. Each
+ * dequeue of an item counts as an attempt, whether the item is then
+ * requeued, swept after its consumer failed or released. Once an item has
+ * been dequeued the maximum number of times, the next dequeue moves it to
+ * the queue's dead letters instead of handing it out, so a poison item stops
+ * taking consumer time. Dead letters keep their values until they are
+ * replayed or purged.
+ *
+ * Dead letters are kept in the order they died, oldest first.
+ *
+ * @param <T>
+ */
+public interface DeadLetters<T> {
+
+  /**
+   * Gets the maximum number of times an item is dequeued before it is moved
+   * to the dead letters.
+   *
+   * @return
+   */
+  int getMaxAttempts();
+
+  /**
+   * Gets the number of dead letters.
+   *
+   * @return
+   */
+  long getDeadLetterCount();
+
+  /**
+   * Reads up to max of the oldest dead letters without removing them.
+   *
+   * @param max
+   * @return the items, oldest first
+   */
+  List<Item<T>> inspectDeadLetters(int max);
+
+  /**
+   * Moves up to max of the oldest dead letters to the end of the queue with
+   * their attempts reset.
+   *
+   * @param max
+   * @return the number of items replayed
+   */
+  int replayDeadLetters(int max);
+
+  /**
+   * Moves the given dead letters to the end of the queue with their attempts
+   * reset. Items which are not dead letters are ignored.
+   *
+   * @param items
+   * @return the number of items replayed
+   */
+  int replayDeadLetters(Collection<Item<T>> items);
+
+  /**
+   * Deletes up to max of the oldest dead letters.
+   *
+   * @param max
+   * @return the number of items deleted
+   */
+  int purgeDeadLetters(int max);
+
+  /**
+   * Deletes the given dead letters. Items which are not dead letters are
+   * ignored.
+   *
+   * @param items
+   * @return the number of items deleted
+   */
+  int purgeDeadLetters(Collection<Item<T>> items);
+}
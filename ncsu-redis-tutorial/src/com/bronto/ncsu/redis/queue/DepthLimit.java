@@ -0,0 +1,93 @@
+package com.bronto.ncsu.redis.queue;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The maximum number of items a queue may hold waiting to be dequeued, and
+ * what enqueue does with items which would take it over. The limit is
+ * checked by the enqueue itself, so concurrent producers can not overshoot
+ * it.
+ *
+ * Items which are dequeued do not count towards the limit, so requeues,
+ * which return items already accepted, are never refused.
+ */
+public final class DepthLimit {
+
+  /**
+   * What to do with items which do not fit.
+   */
+  public enum Policy {
+    /** Fail the enqueue with a QueueFullException. */
+    REJECT,
+    /** Retry the enqueue until the items fit or the timeout elapses. */
+    BLOCK,
+    /** Enqueue the items and drop the oldest queued items to make room. */
+    DROP_OLDEST
+  }
+
+  private final long maxDepth;
+  private final Policy policy;
+  private final long timeoutMillis;
+
+  private DepthLimit(long maxDepth, Policy policy, long timeoutMillis) {
+    Preconditions.checkArgument(maxDepth > 0, "maxDepth must be positive");
+    Preconditions.checkArgument(timeoutMillis >= 0, "negative timeout");
+    this.maxDepth = maxDepth;
+    this.policy = policy;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Creates a limit which fails enqueues that do not fit, enqueueing none of
+   * their items.
+   *
+   * @param maxDepth
+   * @return
+   */
+  public static DepthLimit reject(long maxDepth) {
+    return new DepthLimit(maxDepth, Policy.REJECT, 0);
+  }
+
+  /**
+   * Creates a limit which waits up to the timeout for room for the items,
+   * then fails the enqueue.
+   *
+   * @param maxDepth
+   * @param timeout
+   * @param unit
+   * @return
+   */
+  public static DepthLimit block(long maxDepth, long timeout, TimeUnit unit) {
+    return new DepthLimit(maxDepth, Policy.BLOCK, unit.toMillis(timeout));
+  }
+
+  /**
+   * Creates a limit which always enqueues, deleting the items which have been
+   * queued longest to stay within the limit.
+   *
+   * @param maxDepth
+   * @return
+   */
+  public static DepthLimit dropOldest(long maxDepth) {
+    return new DepthLimit(maxDepth, Policy.DROP_OLDEST, 0);
+  }
+
+  public long getMaxDepth() {
+    return maxDepth;
+  }
+
+  public Policy getPolicy() {
+    return policy;
+  }
+
+  /**
+   * Gets how long a blocked enqueue waits for room, for the BLOCK policy.
+   *
+   * @return
+   */
+  public long getTimeoutMillis() {
+    return timeoutMillis;
+  }
+}
@@ -0,0 +1,504 @@
+package com.bronto.ncsu.redis.queue;
+
+import com.bronto.ncsu.redis.util.Utils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A reliable work queue held in the memory of a single process, with the
+ * same semantics as ReliableWorkQueue. Useful for tests which should not need
+ * a Redis server and for work which never leaves the process.
+ *
+ * The queue is built from lock-free structures: a ConcurrentLinkedQueue of
+ * waiting keys, a map of values, a map from each dequeued key to its lease,
+ * and a skip list of leases ordered by deadline for sweeping. Release,
+ * requeue, sweep and lease extension all take an item out of the working set
+ * by atomically removing or replacing its lease, so exactly one of them wins
+ * when they race. A lease is added to the skip list after it is published,
+ * so the skip list may hold leases which are no longer current; sweeps
+ * discard these as they find them.
+ *
+ * Delayed items are kept in a second skip list ordered by the time they are
+ * due, and dequeues move up to PROMOTE_CHUNK_SIZE of the items which are due
+ * to the end of the queue before taking from it.
+ *
+ * With a maximum number of attempts, dequeue counts each item's attempts and
+ * moves items which have used them up to a queue of dead letters.
+ *
+ * Only a blocking dequeue takes a lock, and enqueue takes it only while a
+ * consumer is waiting. Lease deadlines are measured with System.nanoTime, so
+ * they are not affected by changes to the wall clock.
+ *
+ * @param <T>
+ */
+public class InMemoryWorkQueue<T> implements WorkQueue<T>, QueueGauges, DeadLetters<T> {
+  private static final int SWEEP_CHUNK_SIZE = 1000;
+  private static final int PROMOTE_CHUNK_SIZE = 100;
+
+  private final String queueName;
+  private final int maxAttempts;
+  private final Queue<String> queue = new ConcurrentLinkedQueue<String>();
+  private final Map<String, T> values = new ConcurrentHashMap<String, T>();
+  private final ConcurrentMap<String, Lease> working = new ConcurrentHashMap<String, Lease>();
+  private final NavigableSet<Lease> deadlines = new ConcurrentSkipListSet<Lease>();
+  private final NavigableSet<Lease> delayed = new ConcurrentSkipListSet<Lease>();
+
+  // Only the owner of a dequeued item updates its attempts, so gets and puts
+  // are enough without atomic updates
+  private final Map<String, Integer> attempts = new ConcurrentHashMap<String, Integer>();
+  private final Queue<String> dead = new ConcurrentLinkedQueue<String>();
+  private final AtomicLong nextSequence = new AtomicLong();
+
+  private final Lock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final AtomicInteger waiters = new AtomicInteger();
+
+  public InMemoryWorkQueue(String queueName) {
+    this(queueName, 0);
+  }
+
+  /**
+   * @param queueName
+   * @param maxAttempts the number of times an item may be dequeued, or 0 for
+   *     no limit
+   */
+  public InMemoryWorkQueue(String queueName, int maxAttempts) {
+    Preconditions.checkArgument(maxAttempts >= 0, "negative maxAttempts");
+    this.queueName = queueName;
+    this.maxAttempts = maxAttempts;
+  }
+
+  @Override
+  public void enqueue(Item<T> item) {
+    values.put(item.getKey(), item.getValue());
+    queue.offer(item.getKey());
+    signalWaiters();
+  }
+
+  @Override
+  public void enqueueAll(Collection<Item<T>> items) {
+    for (Item<T> item : items) {
+      values.put(item.getKey(), item.getValue());
+      queue.offer(item.getKey());
+    }
+    signalWaiters();
+  }
+
+  @Override
+  public void enqueueAt(Item<T> item, long timeMillis) {
+    enqueueAfter(item, timeMillis - Utils.currentTimeMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void enqueueAfter(Item<T> item, long delay, TimeUnit unit) {
+    values.put(item.getKey(), item.getValue());
+    schedule(item.getKey(), System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+  }
+
+  @Override
+  public Item<T> dequeue() {
+    return dequeueWithLease(0);
+  }
+
+  @Override
+  public Item<T> dequeueWithLease(long leaseMillis) {
+    promoteDue();
+    String key = poll();
+    if (key == null) {
+      return null;
+    }
+    lease(key, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseMillis));
+    return new Item<T>(key, values.get(key));
+  }
+
+  @Override
+  public Item<T> dequeue(long timeout, TimeUnit unit) {
+    Item<T> item = dequeue();
+    if (item != null || timeout <= 0) {
+      return item;
+    }
+
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    waiters.incrementAndGet();
+    lock.lock();
+    try {
+      while (true) {
+        item = dequeue();
+        long remainingNanos = deadline - System.nanoTime();
+        if (item != null || remainingNanos <= 0) {
+          return item;
+        }
+        // Wake up when the next delayed item is due
+        notEmpty.awaitNanos(Math.min(remainingNanos, nanosUntilDue()));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } finally {
+      lock.unlock();
+      waiters.decrementAndGet();
+    }
+  }
+
+  @Override
+  public List<Item<T>> dequeueBatch(int max) {
+    promoteDue();
+    List<Item<T>> items = Lists.newArrayList();
+    long deadline = System.nanoTime();
+    while (items.size() < max) {
+      String key = poll();
+      if (key == null) {
+        break;
+      }
+      lease(key, deadline);
+      items.add(new Item<T>(key, values.get(key)));
+    }
+    return items;
+  }
+
+  @Override
+  public void release(Item<T> item) {
+    Lease lease = working.remove(item.getKey());
+    if (lease != null) {
+      deadlines.remove(lease);
+      values.remove(item.getKey());
+      attempts.remove(item.getKey());
+    }
+  }
+
+  @Override
+  public void releaseAll(Collection<Item<T>> items) {
+    for (Item<T> item : items) {
+      release(item);
+    }
+  }
+
+  @Override
+  public boolean requeue(Item<T> item) {
+    Lease lease = working.remove(item.getKey());
+    if (lease == null) {
+      return false;
+    }
+    deadlines.remove(lease);
+    queue.offer(item.getKey());
+    signalWaiters();
+    return true;
+  }
+
+  @Override
+  public int requeueAll(Collection<Item<T>> items) {
+    int count = 0;
+    for (Item<T> item : items) {
+      if (requeue(item)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public boolean requeue(Item<T> item, long delay, TimeUnit unit) {
+    return requeue(item, Backoff.fixed(delay, unit));
+  }
+
+  @Override
+  public boolean requeue(Item<T> item, Backoff backoff) {
+    String key = item.getKey();
+    Lease lease = working.remove(key);
+    if (lease == null) {
+      return false;
+    }
+    deadlines.remove(lease);
+    // Dequeue has already counted this attempt if it counts them
+    Integer previous = attempts.get(key);
+    int attempt = previous == null ? 1 : maxAttempts > 0 ? previous : previous + 1;
+    attempts.put(key, attempt);
+    schedule(key, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff.getDelayMillis(attempt)));
+    return true;
+  }
+
+  @Override
+  public boolean extendLease(Item<T> item, long millis) {
+    String key = item.getKey();
+    Lease extended = new Lease(key, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis),
+        nextSequence.getAndIncrement());
+    while (true) {
+      Lease current = working.get(key);
+      if (current == null) {
+        return false;
+      }
+      if (working.replace(key, current, extended)) {
+        deadlines.add(extended);
+        deadlines.remove(current);
+        return true;
+      }
+    }
+  }
+
+  @Override
+  public int extendLeaseAll(Collection<Item<T>> items, long millis) {
+    int count = 0;
+    for (Item<T> item : items) {
+      if (extendLease(item, millis)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public long sweep(long abandonedMillis) {
+    long total = 0;
+    int count;
+    do {
+      count = sweep(abandonedMillis, SWEEP_CHUNK_SIZE);
+      total += count;
+    } while (count == SWEEP_CHUNK_SIZE && !Thread.currentThread().isInterrupted());
+    return total;
+  }
+
+  @Override
+  public int sweep(long abandonedMillis, int limit) {
+    Lease cutoff = new Lease(null, System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(abandonedMillis),
+        Long.MIN_VALUE);
+    int count = 0;
+    Iterator<Lease> expired = deadlines.headSet(cutoff).iterator();
+    while (count < limit && expired.hasNext()) {
+      Lease lease = expired.next();
+      // Whoever removes the lease from the working set owns the item
+      if (deadlines.remove(lease) && working.remove(lease.key, lease)) {
+        queue.offer(lease.key);
+        count++;
+      }
+    }
+    if (count > 0) {
+      signalWaiters();
+    }
+    return count;
+  }
+
+  @Override
+  public String getName() {
+    return queueName;
+  }
+
+  /**
+   * Reads the gauges. Counting the waiting items takes time proportional to
+   * their number, so this should be sampled rather than called often.
+   */
+  @Override
+  public Sample sampleGauges() {
+    long now = System.nanoTime();
+    for (Lease lease : deadlines) {
+      if (working.get(lease.key) == lease) {
+        return new Sample(queue.size() + delayed.size(), working.size(),
+            TimeUnit.NANOSECONDS.toMillis(now - lease.deadline));
+      }
+    }
+    return new Sample(queue.size() + delayed.size(), working.size(), 0);
+  }
+
+  @Override
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * Counts the dead letters, in time proportional to their number.
+   */
+  @Override
+  public long getDeadLetterCount() {
+    return dead.size();
+  }
+
+  @Override
+  public List<Item<T>> inspectDeadLetters(int max) {
+    List<Item<T>> items = Lists.newArrayList();
+    Iterator<String> keys = dead.iterator();
+    while (items.size() < max && keys.hasNext()) {
+      String key = keys.next();
+      items.add(new Item<T>(key, values.get(key)));
+    }
+    return items;
+  }
+
+  @Override
+  public int replayDeadLetters(int max) {
+    int count = 0;
+    String key;
+    while (count < max && (key = dead.poll()) != null) {
+      replay(key);
+      count++;
+    }
+    if (count > 0) {
+      signalWaiters();
+    }
+    return count;
+  }
+
+  @Override
+  public int replayDeadLetters(Collection<Item<T>> items) {
+    int count = 0;
+    for (Item<T> item : items) {
+      if (dead.remove(item.getKey())) {
+        replay(item.getKey());
+        count++;
+      }
+    }
+    if (count > 0) {
+      signalWaiters();
+    }
+    return count;
+  }
+
+  @Override
+  public int purgeDeadLetters(int max) {
+    int count = 0;
+    String key;
+    while (count < max && (key = dead.poll()) != null) {
+      purge(key);
+      count++;
+    }
+    return count;
+  }
+
+  @Override
+  public int purgeDeadLetters(Collection<Item<T>> items) {
+    int count = 0;
+    for (Item<T> item : items) {
+      if (dead.remove(item.getKey())) {
+        purge(item.getKey());
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private void replay(String key) {
+    attempts.remove(key);
+    queue.offer(key);
+  }
+
+  private void purge(String key) {
+    attempts.remove(key);
+    values.remove(key);
+  }
+
+  /**
+   * Takes the key at the head of the queue, counting an attempt if attempts
+   * are limited and moving keys which have used up their attempts to the
+   * dead letters.
+   */
+  private String poll() {
+    while (true) {
+      String key = queue.poll();
+      if (key == null || maxAttempts == 0) {
+        return key;
+      }
+      Integer previous = attempts.get(key);
+      int attempt = previous == null ? 1 : previous + 1;
+      attempts.put(key, attempt);
+      if (attempt <= maxAttempts) {
+        return key;
+      }
+      dead.offer(key);
+    }
+  }
+
+  private void lease(String key, long deadline) {
+    // Publish the lease before indexing it. If the item is released first
+    // the index entry is stale and the next sweep past it discards it.
+    Lease lease = new Lease(key, deadline, nextSequence.getAndIncrement());
+    working.put(key, lease);
+    deadlines.add(lease);
+  }
+
+  private void schedule(String key, long due) {
+    delayed.add(new Lease(key, due, nextSequence.getAndIncrement()));
+    // Waiters recompute how long to wait for the next due item
+    signalWaiters();
+  }
+
+  /**
+   * Moves up to PROMOTE_CHUNK_SIZE delayed items which are due to the end of
+   * the queue, earliest first.
+   */
+  private void promoteDue() {
+    if (delayed.isEmpty()) {
+      return;
+    }
+    Lease cutoff = new Lease(null, System.nanoTime(), Long.MAX_VALUE);
+    int count = 0;
+    Iterator<Lease> due = delayed.headSet(cutoff).iterator();
+    while (count < PROMOTE_CHUNK_SIZE && due.hasNext()) {
+      Lease scheduled = due.next();
+      if (delayed.remove(scheduled)) {
+        queue.offer(scheduled.key);
+        count++;
+      }
+    }
+  }
+
+  private long nanosUntilDue() {
+    try {
+      return Math.max(0, delayed.first().deadline - System.nanoTime());
+    } catch (NoSuchElementException e) {
+      return Long.MAX_VALUE;
+    }
+  }
+
+  private void signalWaiters() {
+    // A waiter increments waiters before checking the queue, so either it
+    // sees the new item or it is counted here
+    if (waiters.get() > 0) {
+      lock.lock();
+      try {
+        notEmpty.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * A dequeued item's lease, or the time a delayed item is due, with its deadline in nanoseconds. Leases are
+   * ordered by deadline, then by the order they were created, so each is distinct in the skip list.
+   */
+  private static final class Lease implements Comparable<Lease> {
+    private final String key;
+    private final long deadline;
+    private final long sequence;
+
+    private Lease(String key, long deadline, long sequence) {
+      this.key = key;
+      this.deadline = deadline;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(Lease other) {
+      int result = Longs.compare(deadline, other.deadline);
+      return result != 0 ? result : Longs.compare(sequence, other.sequence);
+    }
+  }
+}
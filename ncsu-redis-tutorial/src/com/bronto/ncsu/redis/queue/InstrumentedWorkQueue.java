@@ -0,0 +1,590 @@
+package com.bronto.ncsu.redis.queue;
+
+import com.bronto.ncsu.redis.util.LatencyHistogram;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Wraps a work queue, counting the items passing through each operation and
+ * recording the latency of every call.
+ *
+ * Counters are atomic longs. Latencies are recorded into a fixed number of
+ * stripes of histograms, each guarded by its own lock and picked by thread
+ * id, so the cost to the calling thread is a few writes under a lock which is
+ * rarely contended. Stripes are allocated on first use, so memory stays
+ * bounded however many threads, short lived or not, use the queue.
+ * Histograms are combined when read.
+ *
+ * If the wrapped queue implements QueueGauges, start samples its depth,
+ * working set size and oldest lease age every sampleIntervalMillis. Gauges
+ * report zero until the first sample.
+ *
+ * @param <T>
+ */
+public class InstrumentedWorkQueue<T> implements WorkQueue<T>, WorkQueueMetrics, QueueGauges, Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(InstrumentedWorkQueue.class);
+
+  // A power of two, so a stripe is picked by masking the thread id
+  private static final int STRIPES =
+      Math.min(16, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) * 2);
+
+  /**
+   * The operations whose latency is recorded.
+   */
+  public enum Operation {
+    ENQUEUE("enqueue"),
+    ENQUEUE_ALL("enqueueAll"),
+    ENQUEUE_DELAYED("enqueueDelayed"),
+    DEQUEUE("dequeue"),
+    DEQUEUE_BLOCKING("dequeueBlocking"),
+    DEQUEUE_BATCH("dequeueBatch"),
+    RELEASE("release"),
+    RELEASE_ALL("releaseAll"),
+    REQUEUE("requeue"),
+    REQUEUE_ALL("requeueAll"),
+    REQUEUE_DELAYED("requeueDelayed"),
+    EXTEND_LEASE("extendLease"),
+    EXTEND_LEASE_ALL("extendLeaseAll"),
+    SWEEP("sweep");
+
+    private final String label;
+
+    Operation(String label) {
+      this.label = label;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+  }
+
+  private final WorkQueue<T> delegate;
+  private final ScheduledExecutorService executor;
+  private final long sampleIntervalMillis;
+
+  private final AtomicLong enqueueCount = new AtomicLong();
+  private final AtomicLong dequeueCount = new AtomicLong();
+  private final AtomicLong emptyDequeueCount = new AtomicLong();
+  private final AtomicLong releaseCount = new AtomicLong();
+  private final AtomicLong requeueCount = new AtomicLong();
+  private final AtomicLong sweptCount = new AtomicLong();
+  private final AtomicLong leaseExtendCount = new AtomicLong();
+  private final AtomicLong errorCount = new AtomicLong();
+
+  private final Stripe[] stripes = new Stripe[STRIPES];
+
+  private volatile Sample lastSample = new Sample(0, 0, 0);
+
+  private ScheduledFuture<?> future;
+  private ObjectName objectName;
+
+  /**
+   * Creates a wrapper which records counters and latencies but does not
+   * sample gauges.
+   *
+   * @param delegate
+   */
+  public InstrumentedWorkQueue(WorkQueue<T> delegate) {
+    this(delegate, null, 0);
+  }
+
+  /**
+   * @param delegate
+   * @param executor runs the gauge sampler
+   * @param sampleIntervalMillis
+   */
+  public InstrumentedWorkQueue(WorkQueue<T> delegate, ScheduledExecutorService executor,
+      long sampleIntervalMillis) {
+    this.delegate = delegate;
+    this.executor = executor;
+    this.sampleIntervalMillis = sampleIntervalMillis;
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  /**
+   * Starts sampling gauges, if there is an executor and the wrapped queue
+   * reports gauges.
+   */
+  public synchronized void start() {
+    if (future == null && executor != null && delegate instanceof QueueGauges) {
+      future = executor.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            sampleGauges();
+          } catch (RuntimeException e) {
+            // Keep the previous sample, the next one may succeed
+            LOG.warn("Failed to sample gauges of queue {}", getName(), e);
+          }
+        }
+      }, 0, sampleIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Registers the metrics with the platform MBean server under
+   * com.bronto.ncsu.redis.queue:type=WorkQueue,name=<queue name>.
+   *
+   * @return the name registered
+   */
+  public synchronized ObjectName registerMBean() {
+    try {
+      if (objectName == null) {
+        ObjectName name = new ObjectName(WorkQueue.class.getPackage().getName()
+            + ":type=WorkQueue,name=" + ObjectName.quote(getName()));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        objectName = name;
+      }
+      return objectName;
+    } catch (JMException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  /**
+   * Stops sampling gauges and unregisters the MBean. The wrapped queue is
+   * left open.
+   */
+  @Override
+  public synchronized void close() {
+    if (future != null) {
+      future.cancel(false);
+      future = null;
+    }
+    if (objectName != null) {
+      try {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(objectName)) {
+          server.unregisterMBean(objectName);
+        }
+      } catch (JMException e) {
+        LOG.warn("Failed to unregister {}", objectName, e);
+      }
+      objectName = null;
+    }
+  }
+
+  public WorkQueue<T> getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public void enqueue(final Item<T> item) {
+    timed(Operation.ENQUEUE, new Callable<Void>() {
+      @Override
+      public Void call() {
+        delegate.enqueue(item);
+        enqueueCount.incrementAndGet();
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public void enqueueAll(final Collection<Item<T>> items) {
+    timed(Operation.ENQUEUE_ALL, new Callable<Void>() {
+      @Override
+      public Void call() {
+        delegate.enqueueAll(items);
+        enqueueCount.addAndGet(items.size());
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public void enqueueAt(final Item<T> item, final long timeMillis) {
+    timed(Operation.ENQUEUE_DELAYED, new Callable<Void>() {
+      @Override
+      public Void call() {
+        delegate.enqueueAt(item, timeMillis);
+        enqueueCount.incrementAndGet();
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public void enqueueAfter(final Item<T> item, final long delay, final TimeUnit unit) {
+    timed(Operation.ENQUEUE_DELAYED, new Callable<Void>() {
+      @Override
+      public Void call() {
+        delegate.enqueueAfter(item, delay, unit);
+        enqueueCount.incrementAndGet();
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public Item<T> dequeue() {
+    return timed(Operation.DEQUEUE, new Callable<Item<T>>() {
+      @Override
+      public Item<T> call() {
+        return countDequeued(delegate.dequeue());
+      }
+    });
+  }
+
+  @Override
+  public Item<T> dequeueWithLease(final long leaseMillis) {
+    return timed(Operation.DEQUEUE, new Callable<Item<T>>() {
+      @Override
+      public Item<T> call() {
+        return countDequeued(delegate.dequeueWithLease(leaseMillis));
+      }
+    });
+  }
+
+  @Override
+  public Item<T> dequeue(final long timeout, final TimeUnit unit) {
+    return timed(Operation.DEQUEUE_BLOCKING, new Callable<Item<T>>() {
+      @Override
+      public Item<T> call() {
+        return countDequeued(delegate.dequeue(timeout, unit));
+      }
+    });
+  }
+
+  @Override
+  public List<Item<T>> dequeueBatch(final int max) {
+    return timed(Operation.DEQUEUE_BATCH, new Callable<List<Item<T>>>() {
+      @Override
+      public List<Item<T>> call() {
+        List<Item<T>> items = delegate.dequeueBatch(max);
+        if (items.isEmpty()) {
+          emptyDequeueCount.incrementAndGet();
+        } else {
+          dequeueCount.addAndGet(items.size());
+        }
+        return items;
+      }
+    });
+  }
+
+  @Override
+  public void release(final Item<T> item) {
+    timed(Operation.RELEASE, new Callable<Void>() {
+      @Override
+      public Void call() {
+        delegate.release(item);
+        releaseCount.incrementAndGet();
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public void releaseAll(final Collection<Item<T>> items) {
+    timed(Operation.RELEASE_ALL, new Callable<Void>() {
+      @Override
+      public Void call() {
+        delegate.releaseAll(items);
+        releaseCount.addAndGet(items.size());
+        return null;
+      }
+    });
+  }
+
+  @Override
+  public boolean requeue(final Item<T> item) {
+    return timed(Operation.REQUEUE, new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return countRequeued(delegate.requeue(item));
+      }
+    });
+  }
+
+  @Override
+  public int requeueAll(final Collection<Item<T>> items) {
+    return timed(Operation.REQUEUE_ALL, new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        int requeued = delegate.requeueAll(items);
+        requeueCount.addAndGet(requeued);
+        return requeued;
+      }
+    });
+  }
+
+  @Override
+  public boolean requeue(final Item<T> item, final long delay, final TimeUnit unit) {
+    return timed(Operation.REQUEUE_DELAYED, new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return countRequeued(delegate.requeue(item, delay, unit));
+      }
+    });
+  }
+
+  @Override
+  public boolean requeue(final Item<T> item, final Backoff backoff) {
+    return timed(Operation.REQUEUE_DELAYED, new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return countRequeued(delegate.requeue(item, backoff));
+      }
+    });
+  }
+
+  @Override
+  public boolean extendLease(final Item<T> item, final long millis) {
+    return timed(Operation.EXTEND_LEASE, new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        boolean extended = delegate.extendLease(item, millis);
+        if (extended) {
+          leaseExtendCount.incrementAndGet();
+        }
+        return extended;
+      }
+    });
+  }
+
+  @Override
+  public int extendLeaseAll(final Collection<Item<T>> items, final long millis) {
+    return timed(Operation.EXTEND_LEASE_ALL, new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        int extended = delegate.extendLeaseAll(items, millis);
+        leaseExtendCount.addAndGet(extended);
+        return extended;
+      }
+    });
+  }
+
+  @Override
+  public long sweep(final long abandonedMillis) {
+    return timed(Operation.SWEEP, new Callable<Long>() {
+      @Override
+      public Long call() {
+        long swept = delegate.sweep(abandonedMillis);
+        sweptCount.addAndGet(swept);
+        return swept;
+      }
+    });
+  }
+
+  @Override
+  public int sweep(final long abandonedMillis, final int limit) {
+    return timed(Operation.SWEEP, new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        int swept = delegate.sweep(abandonedMillis, limit);
+        sweptCount.addAndGet(swept);
+        return swept;
+      }
+    });
+  }
+
+  @Override
+  public String getName() {
+    return delegate.getName();
+  }
+
+  /**
+   * Samples the wrapped queue's gauges now, if it reports them, and returns
+   * the latest sample.
+   */
+  @Override
+  public Sample sampleGauges() {
+    if (delegate instanceof QueueGauges) {
+      lastSample = ((QueueGauges) delegate).sampleGauges();
+    }
+    return lastSample;
+  }
+
+  @Override
+  public long getEnqueueCount() {
+    return enqueueCount.get();
+  }
+
+  @Override
+  public long getDequeueCount() {
+    return dequeueCount.get();
+  }
+
+  @Override
+  public long getEmptyDequeueCount() {
+    return emptyDequeueCount.get();
+  }
+
+  @Override
+  public long getReleaseCount() {
+    return releaseCount.get();
+  }
+
+  @Override
+  public long getRequeueCount() {
+    return requeueCount.get();
+  }
+
+  @Override
+  public long getSweptCount() {
+    return sweptCount.get();
+  }
+
+  @Override
+  public long getLeaseExtendCount() {
+    return leaseExtendCount.get();
+  }
+
+  @Override
+  public long getErrorCount() {
+    return errorCount.get();
+  }
+
+  @Override
+  public long getDepth() {
+    return lastSample.getDepth();
+  }
+
+  @Override
+  public long getWorkingCount() {
+    return lastSample.getWorkingCount();
+  }
+
+  @Override
+  public long getOldestLeaseAgeMillis() {
+    return lastSample.getOldestLeaseAgeMillis();
+  }
+
+  @Override
+  public Map<String, String> getLatencySummaries() {
+    Map<String, String> summaries = Maps.newLinkedHashMap();
+    for (Operation operation : Operation.values()) {
+      LatencyHistogram histogram = getLatency(operation);
+      if (histogram.getTotalCount() > 0) {
+        summaries.put(operation.getLabel(), histogram.summary());
+      }
+    }
+    return summaries;
+  }
+
+  @Override
+  public double getLatencyMicros(String operation, double percentile) {
+    for (Operation op : Operation.values()) {
+      if (op.getLabel().equals(operation)) {
+        return getLatency(op).getValueAtPercentile(percentile) / 1e3;
+      }
+    }
+    throw new IllegalArgumentException("Unknown operation " + operation);
+  }
+
+  /**
+   * Gets the latencies recorded for an operation so far, combined over all
+   * threads.
+   *
+   * @param operation
+   * @return a new histogram
+   */
+  public LatencyHistogram getLatency(Operation operation) {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (Stripe stripe : stripes) {
+      stripe.addTo(histogram, operation);
+    }
+    return histogram;
+  }
+
+  /**
+   * Gets the number of stripes of histograms allocated so far, which never
+   * exceeds a small multiple of the number of processors.
+   *
+   * @return
+   */
+  public int getStripeCount() {
+    int count = 0;
+    for (Stripe stripe : stripes) {
+      if (stripe.isAllocated()) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private Item<T> countDequeued(Item<T> item) {
+    if (item == null) {
+      emptyDequeueCount.incrementAndGet();
+    } else {
+      dequeueCount.incrementAndGet();
+    }
+    return item;
+  }
+
+  private boolean countRequeued(boolean requeued) {
+    if (requeued) {
+      requeueCount.incrementAndGet();
+    }
+    return requeued;
+  }
+
+  /**
+   * Runs a call on the wrapped queue, recording its latency and counting it
+   * as an error if it throws.
+   *
+   * @param operation
+   * @param call
+   * @return the result of the call
+   */
+  private <V> V timed(Operation operation, Callable<V> call) {
+    long start = System.nanoTime();
+    try {
+      return call.call();
+    } catch (Exception e) {
+      errorCount.incrementAndGet();
+      throw Throwables.propagate(e);
+    } finally {
+      long nanos = System.nanoTime() - start;
+      stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)].record(operation, nanos);
+    }
+  }
+
+  /**
+   * A histogram per operation, shared by the threads whose ids map to it.
+   */
+  private static final class Stripe {
+    private LatencyHistogram[] histograms;
+
+    synchronized void record(Operation operation, long nanos) {
+      if (histograms == null) {
+        histograms = new LatencyHistogram[Operation.values().length];
+        for (int i = 0; i < histograms.length; i++) {
+          histograms[i] = new LatencyHistogram();
+        }
+      }
+      histograms[operation.ordinal()].record(nanos);
+    }
+
+    synchronized void addTo(LatencyHistogram histogram, Operation operation) {
+      if (histograms != null) {
+        histogram.add(histograms[operation.ordinal()]);
+      }
+    }
+
+    synchronized boolean isAllocated() {
+      return histograms != null;
+    }
+  }
+}
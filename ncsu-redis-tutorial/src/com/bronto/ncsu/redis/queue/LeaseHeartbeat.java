@@ -0,0 +1,112 @@
+package com.bronto.ncsu.redis.queue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the leases on items held by this process alive while they are being
+ * worked on. Once started, every intervalMillis the leases on all held items
+ * are extended by extendMillis in a single extendLeaseAll call, so the cost
+ * is one round trip per tick no matter how many items are held.
+ *
+ * This allows the sweep timeout to be short, so items held by crashed workers
+ * are recovered quickly, while slow items are still not swept as long as the
+ * process holding them is alive. intervalMillis should be comfortably less
+ * than extendMillis plus the sweep timeout.
+ *
+ * @param <T>
+ */
+public class LeaseHeartbeat<T> implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(LeaseHeartbeat.class);
+
+  private final WorkQueue<T> queue;
+  private final ScheduledExecutorService executor;
+  private final long intervalMillis;
+  private final long extendMillis;
+  private final Set<Item<T>> held = Sets.newConcurrentHashSet();
+
+  private ScheduledFuture<?> future;
+
+  public LeaseHeartbeat(WorkQueue<T> queue, ScheduledExecutorService executor, long intervalMillis,
+      long extendMillis) {
+    this.queue = queue;
+    this.executor = executor;
+    this.intervalMillis = intervalMillis;
+    this.extendMillis = extendMillis;
+  }
+
+  /**
+   * Starts extending the leases of held items.
+   */
+  public synchronized void start() {
+    if (future == null) {
+      future = executor.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          beat();
+        }
+      }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Adds a dequeued item to the set of items whose leases are extended.
+   *
+   * @param item
+   */
+  public void hold(Item<T> item) {
+    held.add(item);
+  }
+
+  /**
+   * Stops extending the lease of an item, once it has been released or
+   * requeued.
+   *
+   * @param item
+   */
+  public void unhold(Item<T> item) {
+    held.remove(item);
+  }
+
+  /**
+   * Extends the leases of all held items now.
+   *
+   * @return the number of leases extended
+   */
+  public int beat() {
+    List<Item<T>> items = ImmutableList.copyOf(held);
+    if (items.isEmpty()) {
+      return 0;
+    }
+
+    try {
+      return queue.extendLeaseAll(items, extendMillis);
+    } catch (RuntimeException e) {
+      // Don't let a failure stop the schedule, the next beat may succeed
+      LOG.warn("Failed to extend leases on queue {}", queue.getName(), e);
+      return 0;
+    }
+  }
+
+  /**
+   * Stops extending leases. Held items will be swept as usual unless they
+   * are released or requeued.
+   */
+  @Override
+  public synchronized void close() {
+    if (future != null) {
+      future.cancel(false);
+      future = null;
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package com.bronto.ncsu.redis.queue;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Resources;
+
+import java.io.IOException;
+import java.util.List;
+
+import redis.clients.jedis.BinaryClient;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * A Lua script which is executed server side so that a multi-command
+ * operation completes atomically in a single round trip.
+ *
+ * Scripts are invoked by their SHA1 digest with EVALSHA. The digest is
+ * computed locally so the script body only needs to be sent to the server
+ * the first time it is used. If the server does not have the script cached
+ * (NOSCRIPT), it is loaded with SCRIPT LOAD and the call is retried.
+ */
+final class LuaScript {
+  private static final String NO_SCRIPT_PREFIX = "NOSCRIPT";
+
+  private final String source;
+  private final String sha;
+  private final byte[] shaBytes;
+
+  LuaScript(String source) {
+    this.source = source;
+    this.sha = Hashing.sha1().hashString(source, Charsets.UTF_8).toString();
+    this.shaBytes = sha.getBytes(Charsets.UTF_8);
+  }
+
+  /**
+   * Loads a script from the scripts directory alongside this class.
+   *
+   * @param name the script file name, e.g. "dequeue.lua"
+   * @return
+   */
+  static LuaScript fromResource(String name) {
+    return fromResources(name);
+  }
+
+  /**
+   * Loads a script made of the given scripts joined in order, so scripts can
+   * share the functions of a library script listed before them.
+   *
+   * @param names the script file names
+   * @return
+   */
+  static LuaScript fromResources(String... names) {
+    StringBuilder source = new StringBuilder();
+    try {
+      for (String name : names) {
+        source.append(Resources.toString(Resources.getResource(LuaScript.class, "scripts/" + name),
+            Charsets.UTF_8)).append('\n');
+      }
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+    return new LuaScript(source.toString());
+  }
+
+  /**
+   * Loads the script into the server's script cache.
+   *
+   * @param conn
+   */
+  void load(Jedis conn) {
+    conn.scriptLoad(source);
+  }
+
+  /**
+   * Runs the script, loading it into the server's script cache first if
+   * necessary.
+   *
+   * @param conn
+   * @param keys the keys the script accesses
+   * @param args additional arguments to the script
+   * @return the script result
+   */
+  Object eval(Jedis conn, List<String> keys, List<String> args) {
+    try {
+      return conn.evalsha(sha, keys, args);
+    } catch (JedisDataException e) {
+      if (!isNoScript(e)) {
+        throw e;
+      }
+    }
+    load(conn);
+    return conn.evalsha(sha, keys, args);
+  }
+
+  /**
+   * Runs the script as in eval, with binary keys and arguments. Bulk
+   * replies are returned as byte arrays rather than strings.
+   *
+   * @param conn
+   * @param keys the keys the script accesses
+   * @param args additional arguments to the script
+   * @return the script result
+   */
+  Object evalBinary(Jedis conn, List<byte[]> keys, List<byte[]> args) {
+    try {
+      return conn.evalsha(shaBytes, keys, args);
+    } catch (JedisDataException e) {
+      if (!isNoScript(e)) {
+        throw e;
+      }
+    }
+    load(conn);
+    return conn.evalsha(shaBytes, keys, args);
+  }
+
+  /**
+   * Writes an EVALSHA of the script to the client's output buffer without
+   * flushing it or reading the reply, for pipelining. The caller must read
+   * the reply and load the script if the server does not have it.
+   *
+   * @param client
+   * @param keys the keys the script accesses
+   * @param args additional arguments to the script
+   */
+  void send(BinaryClient client, List<byte[]> keys, List<byte[]> args) {
+    byte[][] params = new byte[keys.size() + args.size()][];
+    int i = 0;
+    for (byte[] key : keys) {
+      params[i++] = key;
+    }
+    for (byte[] arg : args) {
+      params[i++] = arg;
+    }
+    client.evalsha(shaBytes, keys.size(), params);
+  }
+
+  /**
+   * Checks whether an error reply means the server does not have a script
+   * cached.
+   *
+   * @param e
+   * @return
+   */
+  static boolean isNoScript(JedisDataException e) {
+    return e.getMessage() != null && e.getMessage().startsWith(NO_SCRIPT_PREFIX);
+  }
+}
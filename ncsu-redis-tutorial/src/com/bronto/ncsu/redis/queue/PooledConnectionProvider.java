@@ -0,0 +1,98 @@
+package com.bronto.ncsu.redis.queue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+/**
+ * Borrows a connection from a JedisPool for each operation, so a single queue
+ * can be shared by many threads. Keeps track of how long callers wait for a
+ * connection so pool contention can be monitored.
+ *
+ * Each thread blocked in a blocking dequeue holds a connection for the
+ * duration of the wait. Size the pool for the number of concurrent blocking
+ * consumers plus the number of threads doing other operations, see
+ * poolConfig.
+ */
+public class PooledConnectionProvider implements ConnectionProvider {
+  private final JedisPool pool;
+
+  private final AtomicLong borrowCount = new AtomicLong();
+  private final AtomicLong totalWaitNanos = new AtomicLong();
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+
+  public PooledConnectionProvider(JedisPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Creates a pool configuration for the given number of threads sharing a
+   * queue. Every thread can hold a connection at once so borrowers never wait
+   * on each other, and idle connections are kept so the pool does not churn
+   * connections under bursty load.
+   *
+   * @param threads the maximum number of threads using the pool at once
+   * @return
+   */
+  public static JedisPoolConfig poolConfig(int threads) {
+    JedisPoolConfig config = new JedisPoolConfig();
+    config.setMaxTotal(threads);
+    config.setMaxIdle(threads);
+    config.setMinIdle(Math.min(threads, 8));
+    config.setBlockWhenExhausted(true);
+    config.setTestOnBorrow(false);
+    config.setTestOnReturn(false);
+    return config;
+  }
+
+  @Override
+  public Jedis getConnection() {
+    long start = System.nanoTime();
+    Jedis conn = pool.getResource();
+    long waitNanos = System.nanoTime() - start;
+
+    borrowCount.incrementAndGet();
+    totalWaitNanos.addAndGet(waitNanos);
+    long max = maxWaitNanos.get();
+    while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+      max = maxWaitNanos.get();
+    }
+    return conn;
+  }
+
+  @Override
+  public void returnConnection(Jedis conn) {
+    // Closing a pooled connection returns it to the pool, or discards it if broken
+    conn.close();
+  }
+
+  /**
+   * Gets the number of connections borrowed from the pool.
+   *
+   * @return
+   */
+  public long getBorrowCount() {
+    return borrowCount.get();
+  }
+
+  /**
+   * Gets the mean time in nanoseconds spent waiting for a connection.
+   *
+   * @return
+   */
+  public long getMeanWaitNanos() {
+    long count = borrowCount.get();
+    return count == 0 ? 0 : totalWaitNanos.get() / count;
+  }
+
+  /**
+   * Gets the longest time in nanoseconds spent waiting for a connection.
+   *
+   * @return
+   */
+  public long getMaxWaitNanos() {
+    return maxWaitNanos.get();
+  }
+}
@@ -0,0 +1,491 @@
+package com.bronto.ncsu.redis.queue;
+
+import com.bronto.ncsu.redis.util.Utils;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A WorkQueue decorator which dequeues items before they are needed so the
+ * caller does not have to wait on a round trip. A background thread keeps a
+ * bounded local buffer topped up with batches from the underlying queue.
+ *
+ * The buffer is sized from the observed consumption rate so it holds roughly
+ * maxHoldMillis / 2 worth of items. Items are dequeued (and so timestamped in
+ * the working set) when they are fetched, not when they are handed to the
+ * caller. To keep them from being swept as abandoned, the refiller renews
+ * the lease of any item buffered for more than half of maxHoldMillis and
+ * moves it to the back of the buffer. Renewing rather than requeueing the
+ * item does not use up one of its attempts. An item found to have been
+ * buffered for longer than maxHoldMillis is not handed out until its lease
+ * is renewed, and items whose lease has already gone are dropped.
+ * maxHoldMillis should therefore be well below the sweep timeout.
+ *
+ * Buffered items are handed out only once the underlying queue confirms
+ * they are still dequeued, by setting their lease from the time they are
+ * handed out. Items which were swept or requeued meanwhile are dropped, so
+ * no two consumers hold the same item. The check costs one round trip per
+ * call, however many buffered items the call hands out.
+ *
+ * If the underlying queue fails, the refiller logs the error and backs off
+ * before trying again.
+ *
+ * The underlying queue is only accessed while holding a lock, so it does not
+ * need to be thread safe. Call close to stop prefetching and requeue any
+ * buffered items.
+ *
+ * @param <T>
+ */
+public class PrefetchingWorkQueue<T> implements WorkQueue<T>, Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(PrefetchingWorkQueue.class);
+
+  private static final long IDLE_MILLIS = 50;
+  private static final long MAX_BACKOFF_MILLIS = 1000;
+  private static final double RATE_SMOOTHING = 0.2;
+
+  private final WorkQueue<T> delegate;
+  private final Object delegateLock = new Object();
+  private final int capacity;
+  private final long maxHoldMillis;
+
+  private final ConcurrentLinkedQueue<Prefetched<T>> buffer = new ConcurrentLinkedQueue<Prefetched<T>>();
+  private final AtomicInteger bufferSize = new AtomicInteger();
+  private final ConcurrentLinkedQueue<Item<T>> stale = new ConcurrentLinkedQueue<Item<T>>();
+  private final AtomicLong handedOff = new AtomicLong();
+  private final Object refillSignal = new Object();
+  private final Object filledSignal = new Object();
+  private final ExecutorService refiller;
+
+  // Consumption rate in items per millisecond, only updated by the refiller
+  private volatile double rate;
+  private volatile boolean closed;
+
+  public PrefetchingWorkQueue(WorkQueue<T> delegate, int capacity, long maxHoldMillis) {
+    this.delegate = delegate;
+    this.capacity = capacity;
+    this.maxHoldMillis = maxHoldMillis;
+    this.refiller = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder()
+            .setNameFormat("Prefetcher-" + delegate.getName() + "-%d")
+            .setDaemon(true)
+            .build());
+    refiller.execute(new Refill());
+  }
+
+  @Override
+  public void enqueue(Item<T> item) {
+    synchronized (delegateLock) {
+      delegate.enqueue(item);
+    }
+  }
+
+  @Override
+  public void enqueueAll(Collection<Item<T>> items) {
+    synchronized (delegateLock) {
+      delegate.enqueueAll(items);
+    }
+  }
+
+  @Override
+  public void enqueueAt(Item<T> item, long timeMillis) {
+    synchronized (delegateLock) {
+      delegate.enqueueAt(item, timeMillis);
+    }
+  }
+
+  @Override
+  public void enqueueAfter(Item<T> item, long delay, TimeUnit unit) {
+    synchronized (delegateLock) {
+      delegate.enqueueAfter(item, delay, unit);
+    }
+  }
+
+  @Override
+  public Item<T> dequeue() {
+    Item<T> item;
+    synchronized (delegateLock) {
+      List<Item<T>> items = takeBuffered(1, 0);
+      // If the buffer has run dry, fall back to dequeuing directly
+      item = items.isEmpty() ? delegate.dequeue() : items.get(0);
+    }
+
+    if (item != null) {
+      handedOff.incrementAndGet();
+    }
+    return item;
+  }
+
+  @Override
+  public Item<T> dequeueWithLease(long leaseMillis) {
+    Item<T> item;
+    synchronized (delegateLock) {
+      List<Item<T>> items = takeBuffered(1, leaseMillis);
+      item = items.isEmpty() ? delegate.dequeueWithLease(leaseMillis) : items.get(0);
+    }
+
+    if (item != null) {
+      handedOff.incrementAndGet();
+    }
+    return item;
+  }
+
+  @Override
+  public Item<T> dequeue(long timeout, TimeUnit unit) {
+    long deadline = Utils.currentTimeMillis() + unit.toMillis(timeout);
+    Item<T> item = dequeue();
+    while (item == null) {
+      long remainingMillis = deadline - Utils.currentTimeMillis();
+      if (remainingMillis <= 0) {
+        return null;
+      }
+
+      // Wait for the refiller to buffer more items
+      try {
+        synchronized (filledSignal) {
+          if (bufferSize.get() == 0) {
+            filledSignal.wait(remainingMillis);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+      item = dequeue();
+    }
+    return item;
+  }
+
+  @Override
+  public List<Item<T>> dequeueBatch(int max) {
+    List<Item<T>> items;
+    synchronized (delegateLock) {
+      items = takeBuffered(max, 0);
+      if (items.size() < max) {
+        items.addAll(delegate.dequeueBatch(max - items.size()));
+      }
+    }
+
+    handedOff.addAndGet(items.size());
+    return items;
+  }
+
+  @Override
+  public void release(Item<T> item) {
+    synchronized (delegateLock) {
+      delegate.release(item);
+    }
+  }
+
+  @Override
+  public void releaseAll(Collection<Item<T>> items) {
+    synchronized (delegateLock) {
+      delegate.releaseAll(items);
+    }
+  }
+
+  @Override
+  public boolean requeue(Item<T> item) {
+    synchronized (delegateLock) {
+      return delegate.requeue(item);
+    }
+  }
+
+  @Override
+  public int requeueAll(Collection<Item<T>> items) {
+    synchronized (delegateLock) {
+      return delegate.requeueAll(items);
+    }
+  }
+
+  @Override
+  public boolean requeue(Item<T> item, long delay, TimeUnit unit) {
+    synchronized (delegateLock) {
+      return delegate.requeue(item, delay, unit);
+    }
+  }
+
+  @Override
+  public boolean requeue(Item<T> item, Backoff backoff) {
+    synchronized (delegateLock) {
+      return delegate.requeue(item, backoff);
+    }
+  }
+
+  @Override
+  public boolean extendLease(Item<T> item, long millis) {
+    synchronized (delegateLock) {
+      return delegate.extendLease(item, millis);
+    }
+  }
+
+  @Override
+  public int extendLeaseAll(Collection<Item<T>> items, long millis) {
+    synchronized (delegateLock) {
+      return delegate.extendLeaseAll(items, millis);
+    }
+  }
+
+  @Override
+  public long sweep(long abandonedMillis) {
+    synchronized (delegateLock) {
+      return delegate.sweep(abandonedMillis);
+    }
+  }
+
+  @Override
+  public int sweep(long abandonedMillis, int limit) {
+    synchronized (delegateLock) {
+      return delegate.sweep(abandonedMillis, limit);
+    }
+  }
+
+  @Override
+  public String getName() {
+    return delegate.getName();
+  }
+
+  /**
+   * Stops prefetching and requeues any items still in the buffer.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    signalRefill();
+    refiller.shutdown();
+    try {
+      refiller.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    List<Item<T>> items = Lists.newArrayList();
+    Item<T> item;
+    while ((item = stale.poll()) != null) {
+      items.add(item);
+    }
+    Prefetched<T> prefetched;
+    while ((prefetched = buffer.poll()) != null) {
+      bufferSize.decrementAndGet();
+      items.add(prefetched.item);
+    }
+    if (!items.isEmpty()) {
+      requeueAll(items);
+    }
+  }
+
+  /**
+   * Takes the next fresh item from the buffer, or returns null if there is
+   * none. Stale items are set aside for the refiller to renew.
+   */
+  private Item<T> poll() {
+    long now = Utils.currentTimeMillis();
+    Prefetched<T> prefetched;
+    try {
+      while ((prefetched = buffer.poll()) != null) {
+        bufferSize.decrementAndGet();
+        if (now - prefetched.fetchedMillis <= maxHoldMillis) {
+          return prefetched.item;
+        }
+        stale.add(prefetched.item);
+      }
+      return null;
+    } finally {
+      if (bufferSize.get() <= targetSize() / 2) {
+        signalRefill();
+      }
+    }
+  }
+
+  /**
+   * Takes up to max items from the buffer which the underlying queue
+   * confirms are still dequeued, setting their leases to leaseMillis from
+   * now. Items which are no longer dequeued are dropped and more are taken
+   * in their place. Must be called holding delegateLock.
+   */
+  private List<Item<T>> takeBuffered(int max, long leaseMillis) {
+    List<Item<T>> taken = Lists.newArrayList();
+    while (taken.size() < max) {
+      List<Item<T>> items = Lists.newArrayList();
+      Item<T> item;
+      while (taken.size() + items.size() < max && (item = poll()) != null) {
+        items.add(item);
+      }
+      if (items.isEmpty()) {
+        break;
+      }
+
+      if (delegate.extendLeaseAll(items, leaseMillis) == items.size()) {
+        taken.addAll(items);
+      } else {
+        // Some items were swept, keep those which are still dequeued
+        for (Item<T> candidate : items) {
+          if (delegate.extendLease(candidate, leaseMillis)) {
+            taken.add(candidate);
+          } else {
+            LOG.debug("Dropped buffered item {} of queue {} which is no longer dequeued",
+                candidate.getKey(), getName());
+          }
+        }
+      }
+    }
+    return taken;
+  }
+
+  /**
+   * Renews the leases of the items at the head of the buffer which have been
+   * buffered for more than half of maxHoldMillis, and of the stale items set
+   * aside by poll, and buffers them again. Renewed items go to the back, so
+   * the buffer stays in order of when its items were fetched or renewed.
+   */
+  private void renewLeases() {
+    long now = Utils.currentTimeMillis();
+    List<Item<T>> items = Lists.newArrayList();
+    Item<T> item;
+    while ((item = stale.poll()) != null) {
+      items.add(item);
+    }
+    Prefetched<T> prefetched;
+    while ((prefetched = buffer.peek()) != null && now - prefetched.fetchedMillis > maxHoldMillis / 2) {
+      // Removing the item first keeps poll from handing it out meanwhile
+      if (buffer.remove(prefetched)) {
+        bufferSize.decrementAndGet();
+        items.add(prefetched.item);
+      }
+    }
+    if (items.isEmpty()) {
+      return;
+    }
+
+    try {
+      synchronized (delegateLock) {
+        List<Item<T>> renewed = items;
+        if (delegate.extendLeaseAll(items, 0) < items.size()) {
+          // Some items were swept, find those which are still dequeued
+          renewed = Lists.newArrayList();
+          for (Item<T> candidate : items) {
+            if (delegate.extendLease(candidate, 0)) {
+              renewed.add(candidate);
+            }
+          }
+        }
+        long renewedMillis = Utils.currentTimeMillis();
+        for (Item<T> renewedItem : renewed) {
+          buffer.add(new Prefetched<T>(renewedItem, renewedMillis));
+          bufferSize.incrementAndGet();
+        }
+      }
+    } catch (RuntimeException e) {
+      // Try again on the next pass
+      stale.addAll(items);
+      throw e;
+    }
+  }
+
+  private int targetSize() {
+    long target = Math.round(rate * maxHoldMillis / 2);
+    return (int) Math.max(1, Math.min(capacity, target));
+  }
+
+  private void signalRefill() {
+    synchronized (refillSignal) {
+      refillSignal.notifyAll();
+    }
+  }
+
+  private void awaitRefillSignal() throws InterruptedException {
+    synchronized (refillSignal) {
+      refillSignal.wait(IDLE_MILLIS);
+    }
+  }
+
+  private class Refill implements Runnable {
+    private long lastMillis = Utils.currentTimeMillis();
+    private long lastHandedOff = 0;
+
+    @Override
+    public void run() {
+      long backoffMillis = IDLE_MILLIS;
+      try {
+        while (!closed) {
+          try {
+            refill();
+            backoffMillis = IDLE_MILLIS;
+          } catch (RuntimeException e) {
+            LOG.warn("Failed to prefetch from queue {}", getName(), e);
+            Thread.sleep(backoffMillis);
+            backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    private void refill() throws InterruptedException {
+      updateRate();
+      renewLeases();
+
+      int wanted = targetSize() - bufferSize.get();
+      if (wanted <= 0) {
+        awaitRefillSignal();
+        return;
+      }
+
+      List<Item<T>> items;
+      synchronized (delegateLock) {
+        items = delegate.dequeueBatch(wanted);
+        long now = Utils.currentTimeMillis();
+        for (Item<T> item : items) {
+          buffer.add(new Prefetched<T>(item, now));
+          bufferSize.incrementAndGet();
+        }
+      }
+      if (!items.isEmpty()) {
+        synchronized (filledSignal) {
+          filledSignal.notifyAll();
+        }
+      }
+
+      if (items.size() < wanted) {
+        // The queue is empty. Wait for a while before asking again.
+        awaitRefillSignal();
+      }
+    }
+
+    private void updateRate() {
+      long now = Utils.currentTimeMillis();
+      long elapsed = now - lastMillis;
+      if (elapsed <= 0) {
+        return;
+      }
+      long count = handedOff.get();
+      double observed = (double) (count - lastHandedOff) / elapsed;
+      rate = RATE_SMOOTHING * observed + (1 - RATE_SMOOTHING) * rate;
+      lastMillis = now;
+      lastHandedOff = count;
+    }
+  }
+
+  private static final class Prefetched<T> {
+    private final Item<T> item;
+    private final long fetchedMillis;
+
+    private Prefetched(Item<T> item, long fetchedMillis) {
+      this.item = item;
+      this.fetchedMillis = fetchedMillis;
+    }
+  }
+}
@@ -0,0 +1,498 @@
+package com.bronto.ncsu.redis.queue;
+
+import com.bronto.ncsu.redis.codec.Codec;
+import com.bronto.ncsu.redis.util.Utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import redis.clients.jedis.Jedis;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A reliable work queue backed by Redis whose items have a priority. Each
+ * priority level has its own list of queued keys, and dequeue takes the item
+ * at the head of the highest priority list which is not empty. Within a
+ * priority items are first in first out. Dequeued items, values, leases and
+ * sweeping work as in ReliableWorkQueue, and requeued or swept items return
+ * to the end of the list for their priority. An item's priority is stored as
+ * the first byte of its value in the values hash.
+ *
+ * Dequeue runs a single script which tries each list in turn, so its cost
+ * grows with the number of priority levels rather than the number of items.
+ * Delayed items share one sorted set, and are moved to the list for their
+ * priority by dequeue once they are due as in ReliableWorkQueue.
+ *
+ * By default higher priorities are always served first, so a steady stream
+ * of urgent items starves the lower priorities. Giving each priority a weight
+ * prevents this: dequeues are shared out between priorities in proportion to
+ * their weights, by smooth weighted round robin, with each dequeue falling
+ * back to the highest priority available when its chosen priority is empty.
+ * A priority with weight 1 among weights summing to 10 is served at least
+ * one dequeue in ten while it has items. The rotation is kept by each client,
+ * so the shares hold for each client separately.
+ *
+ * A blocking dequeue polls, backing off up to MAX_POLL_MILLIS between
+ * attempts, since Redis can not block on several lists without losing the
+ * item if the client fails.
+ *
+ * @param <T>
+ */
+public class PriorityWorkQueue<T> implements WorkQueue<T>, QueueGauges {
+  private static final LuaScript ENQUEUE = LuaScript.fromResource("priority_enqueue.lua");
+  private static final LuaScript DEQUEUE = LuaScript.fromResource("priority_dequeue.lua");
+  private static final LuaScript RELEASE = LuaScript.fromResources("find_member.lua", "release.lua");
+  private static final LuaScript REQUEUE = LuaScript.fromResource("priority_requeue.lua");
+  private static final LuaScript SWEEP = LuaScript.fromResource("priority_sweep.lua");
+  private static final LuaScript EXTEND_LEASE = LuaScript.fromResources("find_member.lua", "extend_lease.lua");
+  private static final LuaScript GAUGES = LuaScript.fromResource("priority_gauges.lua");
+  private static final LuaScript SCHEDULE = LuaScript.fromResource("schedule.lua");
+  private static final LuaScript REQUEUE_DELAYED =
+      LuaScript.fromResources("find_member.lua", "requeue_delayed.lua");
+
+  // Maximum number of items requeued by one sweep script call
+  private static final int SWEEP_CHUNK_SIZE = 1000;
+
+  // Maximum number of delayed items moved to the lists by one dequeue
+  private static final int PROMOTE_CHUNK_SIZE = 100;
+
+  private static final int MAX_LEVELS = 256;
+  private static final long MAX_POLL_MILLIS = 50;
+
+  private final ConnectionProvider connections;
+  private final String queueName;
+  private final Codec<T> codec;
+  private final byte[] workingKey;
+  private final byte[] valuesKey;
+  private final byte[] delayedKey;
+  private final byte[] attemptsKey;
+
+  // Priority lists from the lowest priority to the highest
+  private final List<byte[]> lists;
+
+  // Keys for the dequeue script, and its arguments after the lease when
+  // serving the highest priority first
+  private final List<byte[]> dequeueKeys;
+  private final List<byte[]> strictDequeueOrder;
+
+  private final int[] weights;
+  private final int totalWeight;
+  private final int[] currentWeights;
+
+  /**
+   * Creates a queue which always serves higher priorities first.
+   *
+   * @param connections
+   * @param queueName
+   * @param codec
+   * @param levels the number of priorities, from 0 (lowest) to levels - 1
+   */
+  public PriorityWorkQueue(ConnectionProvider connections, String queueName, Codec<T> codec, int levels) {
+    this(connections, queueName, codec, levels, null);
+  }
+
+  /**
+   * Creates a queue which shares dequeues between priorities in proportion
+   * to their weights.
+   *
+   * @param connections
+   * @param queueName
+   * @param codec
+   * @param weights the weight of each priority, from 0 (lowest) upwards
+   */
+  public PriorityWorkQueue(ConnectionProvider connections, String queueName, Codec<T> codec, int[] weights) {
+    this(connections, queueName, codec, weights.length, weights);
+  }
+
+  private PriorityWorkQueue(ConnectionProvider connections, String queueName, Codec<T> codec, int levels,
+      int[] weights) {
+    Preconditions.checkArgument(levels > 0 && levels <= MAX_LEVELS, "levels out of range");
+    this.connections = connections;
+    this.queueName = queueName;
+    this.codec = codec;
+    this.workingKey = ScriptArgs.encode(queueName + "working");
+    this.valuesKey = ScriptArgs.encode(queueName + "values");
+    this.delayedKey = ScriptArgs.encode(queueName + "delayed");
+    this.attemptsKey = ScriptArgs.encode(queueName + "attempts");
+
+    List<byte[]> lists = Lists.newArrayListWithCapacity(levels);
+    for (int i = 0; i < levels; i++) {
+      lists.add(ScriptArgs.encode(listName(queueName, i)));
+    }
+    this.lists = ImmutableList.copyOf(lists);
+    this.dequeueKeys = ImmutableList.<byte[]>builder().add(workingKey, valuesKey, delayedKey).addAll(lists).build();
+    this.strictDequeueOrder = dequeueOrder(-1);
+
+    int totalWeight = 0;
+    if (weights != null) {
+      for (int weight : weights) {
+        Preconditions.checkArgument(weight >= 0, "negative weight");
+        totalWeight += weight;
+      }
+    }
+    this.weights = totalWeight > 0 ? weights.clone() : null;
+    this.totalWeight = totalWeight;
+    this.currentWeights = new int[levels];
+  }
+
+  /**
+   * Gets the name of the list holding queued items of the given priority.
+   *
+   * @param queueName
+   * @param priority
+   * @return
+   */
+  public static String listName(String queueName, int priority) {
+    return queueName + "priority" + priority;
+  }
+
+  public int getLevels() {
+    return lists.size();
+  }
+
+  /**
+   * Adds a new item to the end of the queue with the lowest priority.
+   *
+   * @param item the item to enqueue
+   */
+  @Override
+  public void enqueue(Item<T> item) {
+    enqueue(item, 0);
+  }
+
+  /**
+   * Adds a new item to the end of the list for the given priority.
+   *
+   * @param item the item to enqueue
+   * @param priority from 0 (lowest) to getLevels() - 1
+   */
+  public void enqueue(Item<T> item, int priority) {
+    enqueueAll(ImmutableList.of(item), priority);
+  }
+
+  /**
+   * Adds the given items with the lowest priority.
+   *
+   * @param items the items to enqueue
+   */
+  @Override
+  public void enqueueAll(Collection<Item<T>> items) {
+    enqueueAll(items, 0);
+  }
+
+  /**
+   * Adds the given items to the end of the list for the given priority in
+   * iteration order.
+   *
+   * @param items the items to enqueue
+   * @param priority from 0 (lowest) to getLevels() - 1
+   */
+  public void enqueueAll(Collection<Item<T>> items, int priority) {
+    Preconditions.checkArgument(priority >= 0 && priority < lists.size(), "priority out of range");
+    if (items.isEmpty()) {
+      return;
+    }
+
+    List<byte[]> args = Lists.newArrayListWithCapacity(items.size() * 2);
+    for (Item<T> item : items) {
+      args.add(ScriptArgs.encode(item.getKey()));
+      args.add(withPriority(codec.encode(item.getValue()), priority));
+    }
+    eval(ENQUEUE, ImmutableList.of(lists.get(priority), valuesKey), args);
+  }
+
+  /**
+   * Adds a new item with the lowest priority at the given time.
+   */
+  @Override
+  public void enqueueAt(Item<T> item, long timeMillis) {
+    enqueueAt(item, 0, timeMillis);
+  }
+
+  /**
+   * Adds a new item to the end of the list for the given priority at the
+   * given time.
+   *
+   * @param item the item to enqueue
+   * @param priority from 0 (lowest) to getLevels() - 1
+   * @param timeMillis the time in milliseconds since the epoch
+   */
+  public void enqueueAt(Item<T> item, int priority, long timeMillis) {
+    enqueueAfter(item, priority, timeMillis - Utils.currentTimeMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Adds a new item with the lowest priority once the given delay has
+   * passed.
+   */
+  @Override
+  public void enqueueAfter(Item<T> item, long delay, TimeUnit unit) {
+    enqueueAfter(item, 0, delay, unit);
+  }
+
+  /**
+   * Adds a new item to the end of the list for the given priority once the
+   * given delay has passed.
+   *
+   * @param item the item to enqueue
+   * @param priority from 0 (lowest) to getLevels() - 1
+   * @param delay the delay
+   * @param unit the unit of the delay
+   */
+  public void enqueueAfter(Item<T> item, int priority, long delay, TimeUnit unit) {
+    Preconditions.checkArgument(priority >= 0 && priority < lists.size(), "priority out of range");
+    byte[] key = ScriptArgs.encode(item.getKey());
+    eval(SCHEDULE, ImmutableList.of(delayedKey, valuesKey), ImmutableList.of(ScriptArgs.encode(unit.toMillis(delay)),
+        ScriptArgs.encode(1), key, withPriority(codec.encode(item.getValue()), priority), key));
+  }
+
+  @Override
+  public Item<T> dequeue() {
+    return dequeueWithLease(0);
+  }
+
+  @Override
+  public Item<T> dequeueWithLease(long leaseMillis) {
+    List<Item<T>> items = dequeueBatch(1, leaseMillis);
+    return items.isEmpty() ? null : items.get(0);
+  }
+
+  @Override
+  public Item<T> dequeue(long timeout, TimeUnit unit) {
+    long deadline = Utils.currentTimeMillis() + unit.toMillis(timeout);
+    long pollMillis = 1;
+    while (true) {
+      Item<T> item = dequeue();
+      if (item != null) {
+        return item;
+      }
+
+      long remainingMillis = deadline - Utils.currentTimeMillis();
+      if (remainingMillis <= 0) {
+        return null;
+      }
+      try {
+        Thread.sleep(Math.min(pollMillis, remainingMillis));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+      pollMillis = Math.min(pollMillis * 2, MAX_POLL_MILLIS);
+    }
+  }
+
+  /**
+   * Dequeues up to max items, taking each from the highest priority list
+   * which is not empty. With weights, the whole batch is taken starting from
+   * the priority whose turn it is.
+   */
+  @Override
+  public List<Item<T>> dequeueBatch(int max) {
+    return dequeueBatch(max, 0);
+  }
+
+  private List<Item<T>> dequeueBatch(int max, long leaseMillis) {
+    if (max <= 0) {
+      return Collections.emptyList();
+    }
+
+    List<byte[]> args = Lists.newArrayListWithCapacity(lists.size() + 3);
+    args.add(ScriptArgs.encode(leaseMillis));
+    args.add(ScriptArgs.encode(max));
+    args.add(ScriptArgs.encode(PROMOTE_CHUNK_SIZE));
+    args.addAll(weights == null ? strictDequeueOrder : dequeueOrder(nextWeightedLevel()));
+    @SuppressWarnings("unchecked")
+    List<byte[]> result = (List<byte[]>) eval(DEQUEUE, dequeueKeys, args);
+
+    List<Item<T>> items = Lists.newArrayListWithCapacity(result.size() / 2);
+    for (int i = 0; i < result.size(); i += 2) {
+      byte[] value = result.get(i + 1);
+      items.add(new Item<T>(new String(result.get(i), Charsets.UTF_8),
+          value == null ? null : codec.decode(Arrays.copyOfRange(value, 1, value.length))));
+    }
+    return items;
+  }
+
+  @Override
+  public void release(Item<T> item) {
+    releaseAll(ImmutableList.of(item));
+  }
+
+  @Override
+  public void releaseAll(Collection<Item<T>> items) {
+    if (!items.isEmpty()) {
+      eval(RELEASE, ImmutableList.of(workingKey, valuesKey, attemptsKey), membersOf(items));
+    }
+  }
+
+  @Override
+  public boolean requeue(Item<T> item) {
+    return requeueAll(ImmutableList.of(item)) == 1;
+  }
+
+  @Override
+  public int requeueAll(Collection<Item<T>> items) {
+    if (items.isEmpty()) {
+      return 0;
+    }
+    Long count = (Long) eval(REQUEUE, allKeys(), ScriptArgs.keysOf(items));
+    return count.intValue();
+  }
+
+  @Override
+  public boolean requeue(Item<T> item, long delay, TimeUnit unit) {
+    return requeue(item, Backoff.fixed(delay, unit));
+  }
+
+  /**
+   * Requeues the given item with a backoff. Once due it returns to the end
+   * of the list for its priority.
+   */
+  @Override
+  public boolean requeue(Item<T> item, Backoff backoff) {
+    List<byte[]> args = Lists.newArrayListWithCapacity(7);
+    args.add(ScriptArgs.encode(backoff.getInitialMillis()));
+    args.add(ScriptArgs.encode(String.valueOf(backoff.getMultiplier())));
+    args.add(ScriptArgs.encode(backoff.getMaxMillis()));
+    args.add(ScriptArgs.encode(0));
+    args.addAll(membersOf(ImmutableList.of(item)));
+    Long count = (Long) eval(REQUEUE_DELAYED, ImmutableList.of(workingKey, delayedKey, attemptsKey), args);
+    return count == 1;
+  }
+
+  @Override
+  public boolean extendLease(Item<T> item, long millis) {
+    return extendLeaseAll(ImmutableList.of(item), millis) == 1;
+  }
+
+  @Override
+  public int extendLeaseAll(Collection<Item<T>> items, long millis) {
+    if (items.isEmpty()) {
+      return 0;
+    }
+
+    List<byte[]> args = Lists.newArrayListWithCapacity(items.size() * 2 + 2);
+    args.add(ScriptArgs.encode(millis));
+    args.addAll(membersOf(items));
+    Long count = (Long) eval(EXTEND_LEASE, ImmutableList.of(workingKey), args);
+    return count.intValue();
+  }
+
+  @Override
+  public long sweep(long abandonedMillis) {
+    long total = 0;
+    int count;
+    do {
+      count = sweep(abandonedMillis, SWEEP_CHUNK_SIZE);
+      total += count;
+    } while (count == SWEEP_CHUNK_SIZE && !Thread.currentThread().isInterrupted());
+    return total;
+  }
+
+  @Override
+  public int sweep(long abandonedMillis, int limit) {
+    if (limit <= 0) {
+      return 0;
+    }
+    Long count = (Long) eval(SWEEP, allKeys(),
+        ImmutableList.of(ScriptArgs.encode(abandonedMillis), ScriptArgs.encode(limit)));
+    return count.intValue();
+  }
+
+  @Override
+  public String getName() {
+    return queueName;
+  }
+
+  @Override
+  public Sample sampleGauges() {
+    List<byte[]> keys = Lists.newArrayListWithCapacity(lists.size() + 2);
+    keys.add(workingKey);
+    keys.add(delayedKey);
+    keys.addAll(lists);
+    @SuppressWarnings("unchecked")
+    List<Long> result = (List<Long>) eval(GAUGES, keys, ImmutableList.<byte[]>of());
+    return new Sample(result.get(0), result.get(1), result.get(2));
+  }
+
+  /**
+   * Picks the priority whose turn it is by smooth weighted round robin. Each
+   * priority's current weight grows by its weight every turn, and the
+   * priority with the largest current weight is chosen and set back by the
+   * total, so turns are spread evenly rather than bunched.
+   */
+  private synchronized int nextWeightedLevel() {
+    int best = 0;
+    for (int i = 0; i < currentWeights.length; i++) {
+      currentWeights[i] += weights[i];
+      if (currentWeights[i] > currentWeights[best]) {
+        best = i;
+      }
+    }
+    currentWeights[best] -= totalWeight;
+    return best;
+  }
+
+  /**
+   * Gets the order for the dequeue script to try the priorities in, the
+   * given priority first and then the rest from the highest down. A first
+   * priority of -1 tries them all from the highest down.
+   */
+  private List<byte[]> dequeueOrder(int first) {
+    List<byte[]> order = Lists.newArrayListWithCapacity(lists.size());
+    if (first >= 0) {
+      order.add(ScriptArgs.encode(first));
+    }
+    for (int i = lists.size() - 1; i >= 0; i--) {
+      if (i != first) {
+        order.add(ScriptArgs.encode(i));
+      }
+    }
+    return order;
+  }
+
+  private List<byte[]> allKeys() {
+    List<byte[]> keys = Lists.newArrayListWithCapacity(lists.size() + 2);
+    keys.add(workingKey);
+    keys.add(valuesKey);
+    keys.addAll(lists);
+    return keys;
+  }
+
+  private Object eval(LuaScript script, List<byte[]> keys, List<byte[]> args) {
+    Jedis conn = connections.getConnection();
+    try {
+      return script.evalBinary(conn, keys, args);
+    } finally {
+      connections.returnConnection(conn);
+    }
+  }
+
+  private static byte[] withPriority(byte[] value, int priority) {
+    byte[] stored = new byte[value.length + 1];
+    stored[0] = (byte) priority;
+    System.arraycopy(value, 0, stored, 1, value.length);
+    return stored;
+  }
+
+  /**
+   * Gets the arguments by which the shared scripts find dequeued items, as
+   * in find_member.lua. Values are never inline, so items are found by key.
+   */
+  private static <T> List<byte[]> membersOf(Collection<Item<T>> items) {
+    List<byte[]> args = Lists.newArrayListWithCapacity(items.size() * 2 + 1);
+    args.add(ScriptArgs.encode(0));
+    for (Item<T> item : items) {
+      args.add(ScriptArgs.encode(item.getKey()));
+      args.add(new byte[0]);
+    }
+    return args;
+  }
+}
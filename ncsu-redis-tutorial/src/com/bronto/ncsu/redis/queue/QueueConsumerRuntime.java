@@ -0,0 +1,329 @@
+package com.bronto.ncsu.redis.queue;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a handler on the items of a queue, replacing a hand written consumer
+ * loop with a thread per worker. A single dispatcher thread dequeues items
+ * and hands each to the handler on an executor, keeping at most concurrency
+ * handlers running. An item is released once its handler returns, or
+ * requeued with the backoff if the handler throws, so items which keep
+ * failing are retried less and less often.
+ *
+ * The dispatcher dequeues as many items as there are free handler slots in a
+ * single batch, so a busy runtime costs a round trip per batch rather than
+ * per item. When the queue is empty it waits in a blocking dequeue.
+ *
+ * Handlers run on the given executor, so the runtime fits any threading
+ * model: a pool of platform threads for CPU bound handlers, or an executor
+ * starting a virtual thread per task, where available, for many I/O bound
+ * handlers. The concurrency limit applies whatever the executor.
+ *
+ * Call close to drain the runtime: it stops dequeuing, waits for the handlers
+ * already running to finish and settles their items. Items which are still
+ * queued stay there for other consumers.
+ *
+ * @param <T>
+ */
+public class QueueConsumerRuntime<T> implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(QueueConsumerRuntime.class);
+
+  private static final long POLL_MILLIS = 1000;
+  private static final long IDLE_MILLIS = 50;
+  private static final int MAX_BATCH_SIZE = 100;
+
+  // Only Errors rethrown by handle escape a handler task, and handle has
+  // logged them, so owned threads dying of one do not print it to stderr
+  private static final Thread.UncaughtExceptionHandler HANDLED_ERRORS = new Thread.UncaughtExceptionHandler() {
+    @Override
+    public void uncaughtException(Thread thread, Throwable t) {
+      LOG.debug("Consumer thread {} stopped by {}", thread.getName(), t.toString());
+    }
+  };
+
+  /**
+   * Processes a dequeued item. Returning releases the item and throwing
+   * requeues it. An Error is logged and rethrown to the executor once the
+   * item is requeued. Threads of the runtime's own pool end quietly on one
+   * and are replaced.
+   *
+   * @param <T>
+   */
+  public interface Handler<T> {
+    void handle(Item<T> item) throws Exception;
+  }
+
+  private final WorkQueue<T> queue;
+  private final Handler<T> handler;
+  private final Executor executor;
+  private final ExecutorService ownedExecutor;
+  private final int concurrency;
+  private final Backoff backoff;
+  private final Semaphore slots;
+  private final ExecutorService dispatcher;
+
+  private final AtomicLong releasedCount = new AtomicLong();
+  private final AtomicLong requeuedCount = new AtomicLong();
+  private final AtomicLong failedCount = new AtomicLong();
+
+  private volatile boolean stopped;
+
+  /**
+   * Creates a runtime which runs handlers on its own pool of concurrency
+   * threads.
+   *
+   * @param queue
+   * @param handler
+   * @param concurrency the most handlers run at once
+   * @param backoff the delay before a failed item is retried
+   */
+  public QueueConsumerRuntime(WorkQueue<T> queue, Handler<T> handler, int concurrency, Backoff backoff) {
+    this(queue, handler, null, concurrency, backoff);
+  }
+
+  /**
+   * Creates a runtime which runs handlers on the given executor. The
+   * executor is not shut down by close.
+   *
+   * @param queue
+   * @param handler
+   * @param executor the executor to run handlers on, or null for a pool of
+   *     concurrency threads owned by the runtime
+   * @param concurrency the most handlers run at once
+   * @param backoff the delay before a failed item is retried
+   */
+  public QueueConsumerRuntime(WorkQueue<T> queue, Handler<T> handler, Executor executor, int concurrency,
+      Backoff backoff) {
+    Preconditions.checkArgument(concurrency > 0, "concurrency must be positive");
+    this.queue = queue;
+    this.handler = handler;
+    if (executor == null) {
+      this.ownedExecutor = Executors.newFixedThreadPool(concurrency,
+          new ThreadFactoryBuilder()
+              .setNameFormat("QueueConsumer-" + queue.getName() + "-%d")
+              .setDaemon(true)
+              .setUncaughtExceptionHandler(HANDLED_ERRORS)
+              .build());
+      this.executor = ownedExecutor;
+    } else {
+      this.ownedExecutor = null;
+      this.executor = executor;
+    }
+    this.concurrency = concurrency;
+    this.backoff = backoff;
+    this.slots = new Semaphore(concurrency);
+    this.dispatcher = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder()
+            .setNameFormat("QueueDispatcher-" + queue.getName() + "-%d")
+            .setDaemon(true)
+            .build());
+  }
+
+  /**
+   * Starts dequeuing and handling items.
+   */
+  public void start() {
+    dispatcher.execute(new Dispatcher());
+  }
+
+  /**
+   * Gets the number of handlers running.
+   *
+   * @return
+   */
+  public int getRunningCount() {
+    return concurrency - slots.availablePermits();
+  }
+
+  /**
+   * Gets the number of items handled and released.
+   *
+   * @return
+   */
+  public long getReleasedCount() {
+    return releasedCount.get();
+  }
+
+  /**
+   * Gets the number of items whose handler failed and which were requeued.
+   *
+   * @return
+   */
+  public long getRequeuedCount() {
+    return requeuedCount.get();
+  }
+
+  /**
+   * Gets the number of times a handler threw.
+   *
+   * @return
+   */
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  /**
+   * Stops dequeuing items. Handlers already running finish as usual. A
+   * blocking dequeue in progress may still return an item, which is handled.
+   */
+  public void shutdown() {
+    stopped = true;
+    dispatcher.shutdown();
+  }
+
+  /**
+   * Waits for the runtime to stop dequeuing and for every running handler to
+   * finish, after shutdown.
+   *
+   * @param timeout
+   * @param unit
+   * @return true if the runtime has drained, false if the timeout elapsed
+   * @throws InterruptedException
+   */
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    if (!dispatcher.awaitTermination(timeout, unit)) {
+      return false;
+    }
+    // Every slot is free once the last handler has finished
+    if (!slots.tryAcquire(concurrency, deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+      return false;
+    }
+    slots.release(concurrency);
+    return true;
+  }
+
+  /**
+   * Shuts down and waits for the runtime to drain.
+   */
+  @Override
+  public void close() {
+    shutdown();
+    boolean interrupted = false;
+    try {
+      awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      interrupted = true;
+    }
+    if (ownedExecutor != null) {
+      ownedExecutor.shutdown();
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Dequeues up to the given number of items, waiting for one if the queue
+   * is empty.
+   */
+  private List<Item<T>> dequeue(int max) {
+    List<Item<T>> items = queue.dequeueBatch(max);
+    if (!items.isEmpty()) {
+      return items;
+    }
+    Item<T> item = queue.dequeue(POLL_MILLIS, TimeUnit.MILLISECONDS);
+    return item == null ? ImmutableList.<Item<T>>of() : ImmutableList.of(item);
+  }
+
+  private void dispatch(final Item<T> item) {
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            handle(item);
+          } finally {
+            slots.release();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOG.warn("Executor rejected item {} of queue {}", item.getKey(), queue.getName(), e);
+      settle(item, false);
+      slots.release();
+    }
+  }
+
+  private void handle(Item<T> item) {
+    try {
+      handler.handle(item);
+    } catch (Throwable t) {
+      LOG.warn("Handler failed on item {} of queue {}", item.getKey(), queue.getName(), t);
+      failedCount.incrementAndGet();
+      settle(item, false);
+      if (t instanceof Error) {
+        throw (Error) t;
+      }
+      return;
+    }
+    settle(item, true);
+  }
+
+  /**
+   * Releases or requeues a handled item. If this fails the item is left to
+   * be swept.
+   */
+  private void settle(Item<T> item, boolean succeeded) {
+    try {
+      if (succeeded) {
+        queue.release(item);
+        releasedCount.incrementAndGet();
+      } else {
+        queue.requeue(item, backoff);
+        requeuedCount.incrementAndGet();
+      }
+    } catch (RuntimeException e) {
+      LOG.warn("Failed to settle item {} of queue {}", item.getKey(), queue.getName(), e);
+    }
+  }
+
+  private class Dispatcher implements Runnable {
+    @Override
+    public void run() {
+      try {
+        while (!stopped) {
+          if (!slots.tryAcquire(IDLE_MILLIS, TimeUnit.MILLISECONDS)) {
+            continue;
+          }
+          // Take every other free slot too, so they are filled by one batch
+          int count = 1;
+          int free = Math.min(slots.availablePermits(), MAX_BATCH_SIZE - 1);
+          if (free > 0 && slots.tryAcquire(free)) {
+            count += free;
+          }
+
+          List<Item<T>> items = ImmutableList.of();
+          try {
+            items = dequeue(count);
+          } catch (RuntimeException e) {
+            LOG.warn("Failed to dequeue from queue {}", queue.getName(), e);
+            Thread.sleep(IDLE_MILLIS);
+          } finally {
+            slots.release(count - items.size());
+          }
+          for (Item<T> item : items) {
+            dispatch(item);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,13 @@
+package com.bronto.ncsu.redis.queue;
+
+/**
+ * Thrown when items can not be enqueued because they would take a queue over
+ * its maximum depth.
+ */
+public class QueueFullException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  public QueueFullException(String queueName, long maxDepth) {
+    super("Queue " + queueName + " is full at " + maxDepth + " items");
+  }
+}
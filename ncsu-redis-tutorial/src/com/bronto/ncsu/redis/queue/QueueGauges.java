@@ -0,0 +1,55 @@
+package com.bronto.ncsu.redis.queue;
+
+/**
+ * Implemented by queues which can report their current size. Reading the
+ * gauges may cost a round trip, so callers should sample them periodically
+ * rather than on every operation.
+ */
+public interface QueueGauges {
+
+  /**
+   * Reads the current gauges.
+   *
+   * @return
+   */
+  Sample sampleGauges();
+
+  /**
+   * A point in time reading of a queue's gauges.
+   */
+  final class Sample {
+    private final long depth;
+    private final long workingCount;
+    private final long oldestLeaseAgeMillis;
+
+    public Sample(long depth, long workingCount, long oldestLeaseAgeMillis) {
+      this.depth = depth;
+      this.workingCount = workingCount;
+      this.oldestLeaseAgeMillis = oldestLeaseAgeMillis;
+    }
+
+    /**
+     * Gets the number of items waiting to be dequeued.
+     */
+    public long getDepth() {
+      return depth;
+    }
+
+    /**
+     * Gets the number of items currently dequeued.
+     */
+    public long getWorkingCount() {
+      return workingCount;
+    }
+
+    /**
+     * Gets the time in milliseconds since the earliest lease deadline among
+     * the dequeued items. A positive value is how long the most overdue item
+     * has been overdue; a negative value means no lease has expired. Zero if
+     * nothing is dequeued.
+     */
+    public long getOldestLeaseAgeMillis() {
+      return oldestLeaseAgeMillis;
+    }
+  }
+}
@@ -0,0 +1,181 @@
+package com.bronto.ncsu.redis.queue;
+
+import com.google.common.collect.ImmutableList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Periodically sweeps a queue for abandoned items. Every node may run a
+ * sweeper for the same queue, but only the node holding the queue's sweep lock
+ * actually sweeps, so the working set is not scanned by every node at once.
+ *
+ * The lock is a Redis key set with NX and a time to live. The holder renews it
+ * on every run, so if the holder dies another node takes over once the lock
+ * expires.
+ *
+ * Each run requeues at most chunkSize items. The interval between runs adapts
+ * to the backlog: if a run fills its chunk the next run is scheduled after
+ * minIntervalMillis, if a run finds nothing the interval doubles up to
+ * maxIntervalMillis, otherwise it halves.
+ */
+public class QueueSweeper implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(QueueSweeper.class);
+
+  private static final LuaScript LOCK_RENEW = LuaScript.fromResource("lock_renew.lua");
+  private static final LuaScript LOCK_RELEASE = LuaScript.fromResource("lock_release.lua");
+
+  private static final int DEFAULT_CHUNK_SIZE = 1000;
+
+  private final WorkQueue<?> queue;
+  private final ConnectionProvider connections;
+  private final ScheduledExecutorService executor;
+  private final long abandonedMillis;
+  private final long minIntervalMillis;
+  private final long maxIntervalMillis;
+  private final int chunkSize;
+
+  private final String lockKey;
+  private final String ownerId = UUID.randomUUID().toString();
+  private final long lockMillis;
+
+  // Only accessed by the scheduled task
+  private long intervalMillis;
+  private volatile boolean leader;
+  private volatile boolean closed;
+  private volatile ScheduledFuture<?> next;
+
+  public QueueSweeper(WorkQueue<?> queue, ConnectionProvider connections, ScheduledExecutorService executor,
+      long abandonedMillis, long minIntervalMillis, long maxIntervalMillis) {
+    this(queue, connections, executor, abandonedMillis, minIntervalMillis, maxIntervalMillis, DEFAULT_CHUNK_SIZE);
+  }
+
+  public QueueSweeper(WorkQueue<?> queue, ConnectionProvider connections, ScheduledExecutorService executor,
+      long abandonedMillis, long minIntervalMillis, long maxIntervalMillis, int chunkSize) {
+    this.queue = queue;
+    this.connections = connections;
+    this.executor = executor;
+    this.abandonedMillis = abandonedMillis;
+    this.minIntervalMillis = minIntervalMillis;
+    this.maxIntervalMillis = maxIntervalMillis;
+    this.chunkSize = chunkSize;
+    this.lockKey = queue.getName() + "sweeplock";
+    // Outlive the longest gap between runs so the holder keeps the lock
+    this.lockMillis = maxIntervalMillis * 3;
+    this.intervalMillis = maxIntervalMillis;
+  }
+
+  /**
+   * Schedules the first sweep.
+   */
+  public void start() {
+    schedule(0);
+  }
+
+  /**
+   * Returns true if this sweeper held the sweep lock at its last run.
+   *
+   * @return
+   */
+  public boolean isLeader() {
+    return leader;
+  }
+
+  /**
+   * Stops sweeping and releases the sweep lock if this sweeper holds it.
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    ScheduledFuture<?> future = next;
+    if (future != null) {
+      future.cancel(false);
+    }
+
+    if (leader) {
+      leader = false;
+      Jedis conn = connections.getConnection();
+      try {
+        LOCK_RELEASE.eval(conn, ImmutableList.of(lockKey), ImmutableList.of(ownerId));
+      } finally {
+        connections.returnConnection(conn);
+      }
+    }
+  }
+
+  /**
+   * Runs a single sweep if this sweeper holds or can take the sweep lock.
+   *
+   * @return the number of items requeued
+   */
+  synchronized int runOnce() {
+    if (closed) {
+      return 0;
+    }
+    leader = acquireLock();
+    if (!leader) {
+      return 0;
+    }
+    return queue.sweep(abandonedMillis, chunkSize);
+  }
+
+  private boolean acquireLock() {
+    Jedis conn = connections.getConnection();
+    try {
+      if (leader) {
+        Long renewed = (Long) LOCK_RENEW.eval(conn,
+            ImmutableList.of(lockKey), ImmutableList.of(ownerId, String.valueOf(lockMillis)));
+        if (renewed == 1) {
+          return true;
+        }
+      }
+      return "OK".equals(conn.set(lockKey, ownerId, "NX", "PX", lockMillis));
+    } finally {
+      connections.returnConnection(conn);
+    }
+  }
+
+  private void schedule(long delayMillis) {
+    if (!closed) {
+      next = executor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          schedule(sweep());
+        }
+      }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Runs a sweep and returns the delay until the next one.
+   */
+  private long sweep() {
+    int count;
+    try {
+      count = runOnce();
+    } catch (RuntimeException e) {
+      LOG.warn("Failed to sweep queue {}", queue.getName(), e);
+      intervalMillis = maxIntervalMillis;
+      return intervalMillis;
+    }
+
+    if (!leader) {
+      intervalMillis = maxIntervalMillis;
+    } else if (count >= chunkSize) {
+      intervalMillis = minIntervalMillis;
+    } else if (count == 0) {
+      intervalMillis = Math.min(maxIntervalMillis, Math.max(1, intervalMillis) * 2);
+    } else {
+      intervalMillis = Math.max(minIntervalMillis, intervalMillis / 2);
+    }
+    return intervalMillis;
+  }
+}
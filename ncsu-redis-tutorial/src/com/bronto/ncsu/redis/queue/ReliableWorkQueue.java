@@ -1,64 +1,718 @@
 package com.bronto.ncsu.redis.queue;
 
+import com.bronto.ncsu.redis.codec.Codec;
+import com.bronto.ncsu.redis.util.Utils;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Bytes;
+
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
 
-import java.util.Set;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
- * This class is the starting point for your reliable queue implementation. The
- * initial implementation is a naive non-reliable queue.
+ * A reliable work queue backed by Redis. Queued item keys are kept in a list,
+ * dequeued item keys in a sorted set scored by lease deadline, taken from the
+ * server's clock, and item values in a hash. Operations which touch more than
+ * one of these are run as Lua scripts. This class is thread safe.
+ *
+ * @param <T>
  */
-public class ReliableWorkQueue implements WorkQueue<String> {
-  private final Jedis conn;
+public class ReliableWorkQueue<T> implements WorkQueue<T>, QueueGauges, DeadLetters<T> {
+  private static final LuaScript ENQUEUE = LuaScript.fromResource("enqueue.lua");
+  private static final LuaScript DEQUEUE = LuaScript.fromResource("dequeue.lua");
+  private static final LuaScript RELEASE = LuaScript.fromResources("find_member.lua", "release.lua");
+  private static final LuaScript REQUEUE = LuaScript.fromResources("find_member.lua", "requeue.lua");
+  private static final LuaScript SWEEP = LuaScript.fromResource("sweep.lua");
+  private static final LuaScript EXTEND_LEASE = LuaScript.fromResources("find_member.lua", "extend_lease.lua");
+  private static final LuaScript GAUGES = LuaScript.fromResource("gauges.lua");
+  private static final LuaScript SCHEDULE = LuaScript.fromResource("schedule.lua");
+  private static final LuaScript REQUEUE_DELAYED =
+      LuaScript.fromResources("find_member.lua", "requeue_delayed.lua");
+  private static final LuaScript DEAD_LETTERS = LuaScript.fromResource("dead_letters.lua");
+
+  // Maximum number of items requeued by one sweep script call
+  private static final int SWEEP_CHUNK_SIZE = 1000;
+
+  // Maximum number of delayed items moved to the queue, and of items moved
+  // to the dead letters, by one dequeue
+  private static final int PROMOTE_CHUNK_SIZE = 100;
+
+  // How long a cached depth is used before it is read again
+  private static final long DEPTH_CACHE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private static final long MAX_POLL_MILLIS = 50;
+
+  private static final byte[] NO_ENTRY = new byte[0];
+
+  private final ConnectionProvider connections;
+  private final CommandPipeline pipeline;
   private final String queueName;
+  private final Codec<T> codec;
+  private final int inlineMaxBytes;
+  private final int maxAttempts;
+  private final DepthLimit depthLimit;
+  private final byte[] queueKey;
+  private final byte[] workingKey;
+  private final byte[] valuesKey;
+  private final byte[] claimingKey;
+  private final byte[] delayedKey;
+  private final byte[] attemptsKey;
+  private final byte[] deadKey;
+
+  private volatile boolean depthCached;
+  private volatile long cachedDepth;
+  private volatile long cachedDepthNanos;
+
+  /**
+   * Creates a queue which uses a single connection. The queue may be shared
+   * between threads but only one operation will run at a time.
+   *
+   * @param conn
+   * @param queueName
+   * @param codec
+   */
+  public ReliableWorkQueue(Jedis conn, String queueName, Codec<T> codec) {
+    this(new SingleConnectionProvider(conn), queueName, codec, 0);
+  }
+
+  /**
+   * Creates a queue which borrows a connection from the pool for each
+   * operation. The queue may be shared by as many threads as the pool has
+   * connections.
+   *
+   * @param pool
+   * @param queueName
+   * @param codec
+   */
+  public ReliableWorkQueue(JedisPool pool, String queueName, Codec<T> codec) {
+    this(new PooledConnectionProvider(pool), queueName, codec, 0);
+  }
+
+  /**
+   * Creates a queue which borrows a connection from the provider for each
+   * operation. Values are stored exactly as the codec encodes them.
+   *
+   * @param connections
+   * @param queueName
+   * @param codec
+   */
+  public ReliableWorkQueue(ConnectionProvider connections, String queueName, Codec<T> codec) {
+    this(connections, queueName, codec, 0);
+  }
 
-  public ReliableWorkQueue(Jedis conn, String queueName) {
-    this.conn = conn;
+  /**
+   * Creates a queue which stores values of up to inlineMaxBytes inline in
+   * the queue entry, as the key and value joined by a NUL byte, rather than
+   * in the values hash. A dequeued inline item is found by the entry the
+   * caller's value encodes to, or else by a scan of the working set for its
+   * key. Item keys must not contain NUL.
+   *
+   * @param connections
+   * @param queueName
+   * @param codec
+   * @param inlineMaxBytes the largest encoded value stored inline, or 0 to
+   *     store every value in the hash
+   */
+  public ReliableWorkQueue(ConnectionProvider connections, String queueName, Codec<T> codec,
+      int inlineMaxBytes) {
+    this(connections, queueName, codec, inlineMaxBytes, 0);
+  }
+
+  /**
+   * Creates a queue which moves items to its dead letters once they have
+   * been dequeued maxAttempts times. Attempts are counted in a hash by each
+   * dequeue.
+   *
+   * @param connections
+   * @param queueName
+   * @param codec
+   * @param inlineMaxBytes the largest encoded value stored inline, or 0 to
+   *     store every value in the hash
+   * @param maxAttempts the number of times an item may be dequeued, or 0 for
+   *     no limit
+   */
+  public ReliableWorkQueue(ConnectionProvider connections, String queueName, Codec<T> codec,
+      int inlineMaxBytes, int maxAttempts) {
+    this(connections, null, queueName, codec, inlineMaxBytes, maxAttempts);
+  }
+
+  /**
+   * Creates a queue whose script calls are coalesced with those of other
+   * threads by the pipeline, so they share a round trip at the cost of up to
+   * the pipeline's window of delay. Other commands, such as the wait of a
+   * blocking dequeue, still borrow a connection.
+   *
+   * @param connections
+   * @param pipeline the pipeline for script calls, or null to run them on a
+   *     borrowed connection
+   * @param queueName
+   * @param codec
+   * @param inlineMaxBytes the largest encoded value stored inline, or 0 to
+   *     store every value in the hash
+   * @param maxAttempts the number of times an item may be dequeued, or 0 for
+   *     no limit
+   */
+  public ReliableWorkQueue(ConnectionProvider connections, CommandPipeline pipeline, String queueName,
+      Codec<T> codec, int inlineMaxBytes, int maxAttempts) {
+    this(connections, pipeline, queueName, codec, inlineMaxBytes, maxAttempts, null);
+  }
+
+  /**
+   * Creates a queue which limits the number of items waiting in it. The
+   * enqueue script checks the depth before pushing, so the limit holds
+   * however many producers there are. Delayed enqueues are not limited.
+   *
+   * @param connections
+   * @param pipeline the pipeline for script calls, or null to run them on a
+   *     borrowed connection
+   * @param queueName
+   * @param codec
+   * @param inlineMaxBytes the largest encoded value stored inline, or 0 to
+   *     store every value in the hash
+   * @param maxAttempts the number of times an item may be dequeued, or 0 for
+   *     no limit
+   * @param depthLimit the limit on the queue's depth, or null for no limit
+   */
+  public ReliableWorkQueue(ConnectionProvider connections, CommandPipeline pipeline, String queueName,
+      Codec<T> codec, int inlineMaxBytes, int maxAttempts, DepthLimit depthLimit) {
+    Preconditions.checkArgument(maxAttempts >= 0, "negative maxAttempts");
+    this.connections = connections;
+    this.pipeline = pipeline;
     this.queueName = queueName;
+    this.codec = codec;
+    this.inlineMaxBytes = inlineMaxBytes;
+    this.maxAttempts = maxAttempts;
+    this.depthLimit = depthLimit;
+    this.queueKey = ScriptArgs.encode(queueName);
+    this.workingKey = ScriptArgs.encode(queueName + "working");
+    this.valuesKey = ScriptArgs.encode(queueName + "values");
+    this.claimingKey = ScriptArgs.encode(queueName + "claiming");
+    this.delayedKey = ScriptArgs.encode(queueName + "delayed");
+    this.attemptsKey = ScriptArgs.encode(queueName + "attempts");
+    this.deadKey = ScriptArgs.encode(queueName + "dead");
+  }
+
+  /**
+   * Enqueues an item.
+   *
+   * @throws QueueFullException if the queue has a depth limit which rejects
+   *     the item, or blocks and has no room for it in time
+   */
+  @Override
+  public void enqueue(Item<T> item) {
+    enqueueAll(ImmutableList.of(item));
+  }
+
+  /**
+   * Enqueues the items, either all of them or, if the queue is full, none.
+   *
+   * @throws QueueFullException if the queue has a depth limit which rejects
+   *     the items, or blocks and has no room for them in time
+   */
+  @Override
+  public void enqueueAll(Collection<Item<T>> items) {
+    if (items.isEmpty()) {
+      return;
+    }
+
+    ScriptCall call = enqueueCall(items);
+    if (depthLimit == null || depthLimit.getPolicy() != DepthLimit.Policy.BLOCK) {
+      checkEnqueued(eval(call));
+      return;
+    }
+
+    // Retry with backoff until there is room. Items which could never fit
+    // fail at once.
+    if (items.size() > depthLimit.getMaxDepth()) {
+      throw new QueueFullException(queueName, depthLimit.getMaxDepth());
+    }
+    long deadline = Utils.currentTimeMillis() + depthLimit.getTimeoutMillis();
+    long pollMillis = 1;
+    while (!readEnqueueResult(eval(call))) {
+      long remainingMillis = deadline - Utils.currentTimeMillis();
+      if (remainingMillis <= 0) {
+        throw new QueueFullException(queueName, depthLimit.getMaxDepth());
+      }
+      try {
+        Thread.sleep(Math.min(pollMillis, remainingMillis));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new QueueFullException(queueName, depthLimit.getMaxDepth());
+      }
+      pollMillis = Math.min(pollMillis * 2, MAX_POLL_MILLIS);
+    }
+  }
+
+  /**
+   * Reads the result of an enqueue call, caching the depth it reports.
+   *
+   * @return true if the items were enqueued, false if the queue was full
+   */
+  boolean readEnqueueResult(Object result) {
+    @SuppressWarnings("unchecked")
+    List<Long> counts = (List<Long>) result;
+    cacheDepth(counts.get(1));
+    return counts.get(0) > 0;
+  }
+
+  /**
+   * Reads the result of an enqueue call which does not block, throwing if
+   * the queue was full.
+   */
+  void checkEnqueued(Object result) {
+    if (!readEnqueueResult(result)) {
+      throw new QueueFullException(queueName, depthLimit.getMaxDepth());
+    }
+  }
+
+  /**
+   * Builds the script call which enqueues the items, storing the values of
+   * those which are not inline in the same call.
+   */
+  ScriptCall enqueueCall(Collection<Item<T>> items) {
+    List<byte[]> values = Lists.newArrayList();
+    List<byte[]> entries = Lists.newArrayListWithCapacity(items.size());
+    for (Item<T> item : items) {
+      byte[] key = encodeKey(item.getKey());
+      byte[] value = codec.encode(item.getValue());
+      if (isInline(value)) {
+        entries.add(inlineEntry(key, value));
+      } else {
+        values.add(key);
+        values.add(value);
+        entries.add(key);
+      }
+    }
+
+    List<byte[]> args = Lists.newArrayListWithCapacity(values.size() + entries.size() + 3);
+    args.add(ScriptArgs.encode(depthLimit == null ? 0 : depthLimit.getMaxDepth()));
+    args.add(ScriptArgs.encode(depthLimit != null && depthLimit.getPolicy() == DepthLimit.Policy.DROP_OLDEST
+        ? "drop" : "reject"));
+    args.add(ScriptArgs.encode(values.size() / 2));
+    args.addAll(values);
+    args.addAll(entries);
+    return new ScriptCall(ENQUEUE, ImmutableList.of(queueKey, valuesKey, claimingKey, delayedKey, attemptsKey),
+        args);
+  }
+
+  @Override
+  public void enqueueAt(Item<T> item, long timeMillis) {
+    enqueueAfter(item, timeMillis - Utils.currentTimeMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Adds the item to the delayed set, from which a dequeue moves it to the
+   * end of the queue once it is due.
+   */
+  @Override
+  public void enqueueAfter(Item<T> item, long delay, TimeUnit unit) {
+    byte[] key = encodeKey(item.getKey());
+    byte[] value = codec.encode(item.getValue());
+    List<byte[]> args;
+    if (isInline(value)) {
+      args = ImmutableList.of(ScriptArgs.encode(unit.toMillis(delay)), ScriptArgs.encode(0), inlineEntry(key, value));
+    } else {
+      args = ImmutableList.of(ScriptArgs.encode(unit.toMillis(delay)), ScriptArgs.encode(1), key, value, key);
+    }
+    eval(SCHEDULE, ImmutableList.of(delayedKey, valuesKey), args);
+  }
+
+  @Override
+  public Item<T> dequeue() {
+    return dequeueWithLease(0);
+  }
+
+  @Override
+  public Item<T> dequeueWithLease(long leaseMillis) {
+    List<Item<T>> items = dequeueBatch(1, leaseMillis);
+    return items.isEmpty() ? null : items.get(0);
+  }
+
+  /**
+   * Waits server side with BRPOPLPUSH, which moves the key at the head of
+   * the queue to a claiming list, from which the next dequeue takes it. The
+   * last part of the timeout shorter than a second is spent polling.
+   */
+  @Override
+  public Item<T> dequeue(long timeout, TimeUnit unit) {
+    long deadline = Utils.currentTimeMillis() + unit.toMillis(timeout);
+    long pollMillis = 1;
+    while (true) {
+      Item<T> item = dequeue();
+      if (item != null) {
+        return item;
+      }
+
+      long remainingMillis = deadline - Utils.currentTimeMillis();
+      if (remainingMillis <= 0) {
+        return null;
+      }
+
+      if (remainingMillis < 1000) {
+        // Too little time left for BRPOPLPUSH, so poll until the deadline
+        try {
+          Thread.sleep(Math.min(pollMillis, remainingMillis));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return null;
+        }
+        pollMillis = Math.min(pollMillis * 2, MAX_POLL_MILLIS);
+        continue;
+      }
+
+      // BRPOPLPUSH takes whole seconds and treats zero as wait forever. Wait
+      // a second at a time, so delayed items which fall due meanwhile are
+      // moved to the queue by the next dequeue. Once a key arrives, loop
+      // around to claim it.
+      Jedis conn = connections.getConnection();
+      try {
+        conn.brpoplpush(queueKey, claimingKey, 1);
+      } finally {
+        connections.returnConnection(conn);
+      }
+    }
+  }
+
+  @Override
+  public List<Item<T>> dequeueBatch(int max) {
+    return dequeueBatch(max, 0);
+  }
+
+  private List<Item<T>> dequeueBatch(int max, long leaseMillis) {
+    if (max <= 0) {
+      return Collections.emptyList();
+    }
+    return toItems(eval(dequeueCall(max, leaseMillis)));
+  }
+
+  ScriptCall dequeueCall(int max, long leaseMillis) {
+    return new ScriptCall(DEQUEUE,
+        ImmutableList.of(queueKey, workingKey, valuesKey, claimingKey, delayedKey, attemptsKey, deadKey),
+        ImmutableList.of(ScriptArgs.encode(leaseMillis), ScriptArgs.encode(max),
+            ScriptArgs.encode(PROMOTE_CHUNK_SIZE), ScriptArgs.encode(maxAttempts)));
+  }
+
+  /**
+   * Decodes the result of a dequeue call, alternating item keys and values.
+   */
+  List<Item<T>> toItems(Object result) {
+    @SuppressWarnings("unchecked")
+    List<byte[]> keysAndValues = (List<byte[]>) result;
+    List<Item<T>> items = Lists.newArrayListWithCapacity(keysAndValues.size() / 2);
+    for (int i = 0; i < keysAndValues.size(); i += 2) {
+      byte[] value = keysAndValues.get(i + 1);
+      items.add(new Item<T>(new String(keysAndValues.get(i), Charsets.UTF_8),
+          value == null ? null : codec.decode(value)));
+    }
+    return items;
+  }
+
+  @Override
+  public void release(Item<T> item) {
+    eval(releaseCall(ImmutableList.of(item)));
+  }
+
+  @Override
+  public void releaseAll(Collection<Item<T>> items) {
+    if (!items.isEmpty()) {
+      eval(releaseCall(items));
+    }
+  }
+
+  ScriptCall releaseCall(Collection<Item<T>> items) {
+    return new ScriptCall(RELEASE, ImmutableList.of(workingKey, valuesKey, attemptsKey), membersOf(items));
   }
 
   @Override
-  public void enqueue(Item<String> item) {
-    conn.lpush(queueName, item.getKey());
-    conn.hset(queueName+"values", item.getKey(), item.getValue());
+  public boolean requeue(Item<T> item) {
+    return requeueAll(ImmutableList.of(item)) == 1;
   }
 
   @Override
-  public Item<String> dequeue() {
-    String key = conn.rpop(queueName);
-    if (key == null) {
-      return null;
+  public int requeueAll(Collection<Item<T>> items) {
+    if (items.isEmpty()) {
+      return 0;
     }
-    conn.zadd(queueName+"working", System.currentTimeMillis(), key);
-    String data = conn.hget(queueName+"values", key);
-    return new Item<String>(key, data);
+    Long count = (Long) eval(requeueCall(items));
+    return count.intValue();
+  }
+
+  ScriptCall requeueCall(Collection<Item<T>> items) {
+    return new ScriptCall(REQUEUE, ImmutableList.of(workingKey, queueKey), membersOf(items));
+  }
+
+  @Override
+  public boolean requeue(Item<T> item, long delay, TimeUnit unit) {
+    return requeue(item, Backoff.fixed(delay, unit));
+  }
+
+  /**
+   * Requeues the item with a backoff. Its attempts are counted in a hash
+   * until it is released.
+   */
+  @Override
+  public boolean requeue(Item<T> item, Backoff backoff) {
+    Long count = (Long) eval(requeueCall(item, backoff));
+    return count == 1;
+  }
+
+  ScriptCall requeueCall(Item<T> item, Backoff backoff) {
+    List<byte[]> args = Lists.newArrayListWithCapacity(7);
+    args.add(ScriptArgs.encode(backoff.getInitialMillis()));
+    args.add(ScriptArgs.encode(String.valueOf(backoff.getMultiplier())));
+    args.add(ScriptArgs.encode(backoff.getMaxMillis()));
+    args.add(ScriptArgs.encode(maxAttempts > 0 ? 1 : 0));
+    args.addAll(membersOf(ImmutableList.of(item)));
+    return new ScriptCall(REQUEUE_DELAYED, ImmutableList.of(workingKey, delayedKey, attemptsKey), args);
   }
 
   @Override
-  public void release(Item<String> item) {
-    conn.zrem(queueName+"working", item.getKey());
-    conn.hdel(queueName+"values", item.getKey());
+  public boolean extendLease(Item<T> item, long millis) {
+    return extendLeaseAll(ImmutableList.of(item), millis) == 1;
   }
 
   @Override
-  public void requeue(Item<String> item) {
-    long count = conn.zrem(queueName+"working", item.getKey());
-    if(count == 1) {
-      conn.lpush(queueName, item.getKey());
+  public int extendLeaseAll(Collection<Item<T>> items, long millis) {
+    if (items.isEmpty()) {
+      return 0;
     }
+    Long count = (Long) eval(extendLeaseCall(items, millis));
+    return count.intValue();
+  }
+
+  ScriptCall extendLeaseCall(Collection<Item<T>> items, long millis) {
+    List<byte[]> args = Lists.newArrayListWithCapacity(items.size() * 2 + 2);
+    args.add(ScriptArgs.encode(millis));
+    args.addAll(membersOf(items));
+    return new ScriptCall(EXTEND_LEASE, ImmutableList.of(workingKey), args);
   }
 
   @Override
-  public void sweep(long abandonedMillis) {
-    Set<String> set = conn.zrangeByScore(queueName+"working", 0, (System.currentTimeMillis() - abandonedMillis));
-    for(String key : set) {
-      conn.lpush(queueName, key);
-      conn.zrem(queueName + "working", key);
+  public long sweep(long abandonedMillis) {
+    long total = 0;
+    int count;
+    do {
+      count = sweep(abandonedMillis, SWEEP_CHUNK_SIZE);
+      total += count;
+    } while (count == SWEEP_CHUNK_SIZE && !Thread.currentThread().isInterrupted());
+    return total;
+  }
+
+  @Override
+  public int sweep(long abandonedMillis, int limit) {
+    if (limit <= 0) {
+      return 0;
     }
+    Long count = (Long) eval(sweepCall(abandonedMillis, limit));
+    return count.intValue();
+  }
+
+  ScriptCall sweepCall(long abandonedMillis, int limit) {
+    return new ScriptCall(SWEEP, ImmutableList.of(workingKey, queueKey),
+        ImmutableList.of(ScriptArgs.encode(abandonedMillis), ScriptArgs.encode(limit)));
   }
 
   @Override
   public String getName() {
     return queueName;
   }
+
+  @Override
+  public Sample sampleGauges() {
+    @SuppressWarnings("unchecked")
+    List<Long> result = (List<Long>) eval(GAUGES,
+        ImmutableList.of(queueKey, workingKey, claimingKey, delayedKey), ImmutableList.<byte[]>of());
+    cacheDepth(result.get(0));
+    return new Sample(result.get(0), result.get(1), result.get(2));
+  }
+
+  /**
+   * Gets the depth limit, or null if the queue has none.
+   *
+   * @return
+   */
+  public DepthLimit getDepthLimit() {
+    return depthLimit;
+  }
+
+  /**
+   * Gets the depth of the queue as last seen by this client, from its last
+   * enqueue or gauge sample. The depth is read again if it is more than
+   * DEPTH_CACHE_NANOS old, so most calls cost no round trip but the value
+   * may be a little out of date.
+   *
+   * @return
+   */
+  public long getCachedDepth() {
+    if (!depthCached || System.nanoTime() - cachedDepthNanos > DEPTH_CACHE_NANOS) {
+      sampleGauges();
+    }
+    return cachedDepth;
+  }
+
+  /**
+   * Gets roughly how many more items the queue has room for, from the cached
+   * depth, so producers can slow down before enqueues start to fail.
+   *
+   * @return the remaining capacity, or Long.MAX_VALUE if there is no limit
+   */
+  public long getRemainingCapacity() {
+    if (depthLimit == null) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(0, depthLimit.getMaxDepth() - getCachedDepth());
+  }
+
+  private void cacheDepth(long depth) {
+    cachedDepth = depth;
+    cachedDepthNanos = System.nanoTime();
+    depthCached = true;
+  }
+
+  @Override
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  @Override
+  public long getDeadLetterCount() {
+    Jedis conn = connections.getConnection();
+    try {
+      return conn.llen(deadKey);
+    } finally {
+      connections.returnConnection(conn);
+    }
+  }
+
+  @Override
+  public List<Item<T>> inspectDeadLetters(int max) {
+    if (max <= 0) {
+      return Collections.emptyList();
+    }
+
+    Jedis conn = connections.getConnection();
+    try {
+      // The oldest dead letters are at the tail of the list
+      List<byte[]> entries = Lists.reverse(conn.lrange(deadKey, -max, -1));
+      List<byte[]> keysAndValues = Lists.newArrayListWithCapacity(entries.size() * 2);
+      List<Integer> hashed = Lists.newArrayList();
+      for (byte[] entry : entries) {
+        int sep = Bytes.indexOf(entry, (byte) 0);
+        if (sep >= 0) {
+          keysAndValues.add(Arrays.copyOfRange(entry, 0, sep));
+          keysAndValues.add(Arrays.copyOfRange(entry, sep + 1, entry.length));
+        } else {
+          hashed.add(keysAndValues.size());
+          keysAndValues.add(entry);
+          keysAndValues.add(null);
+        }
+      }
+
+      if (!hashed.isEmpty()) {
+        byte[][] keys = new byte[hashed.size()][];
+        for (int i = 0; i < keys.length; i++) {
+          keys[i] = keysAndValues.get(hashed.get(i));
+        }
+        List<byte[]> values = conn.hmget(valuesKey, keys);
+        for (int i = 0; i < keys.length; i++) {
+          keysAndValues.set(hashed.get(i) + 1, values.get(i));
+        }
+      }
+      return toItems(keysAndValues);
+    } finally {
+      connections.returnConnection(conn);
+    }
+  }
+
+  @Override
+  public int replayDeadLetters(int max) {
+    return deadLetters("replay", max, ImmutableList.<byte[]>of());
+  }
+
+  @Override
+  public int replayDeadLetters(Collection<Item<T>> items) {
+    return items.isEmpty() ? 0 : deadLetters("replay", items.size(), ScriptArgs.keysOf(items));
+  }
+
+  @Override
+  public int purgeDeadLetters(int max) {
+    return deadLetters("purge", max, ImmutableList.<byte[]>of());
+  }
+
+  @Override
+  public int purgeDeadLetters(Collection<Item<T>> items) {
+    return items.isEmpty() ? 0 : deadLetters("purge", items.size(), ScriptArgs.keysOf(items));
+  }
+
+  private int deadLetters(String action, int max, List<byte[]> keys) {
+    if (max <= 0) {
+      return 0;
+    }
+    List<byte[]> args = Lists.newArrayListWithCapacity(keys.size() + 2);
+    args.add(ScriptArgs.encode(action));
+    args.add(ScriptArgs.encode(max));
+    args.addAll(keys);
+    Long count = (Long) eval(DEAD_LETTERS, ImmutableList.of(deadKey, queueKey, valuesKey, attemptsKey), args);
+    return count.intValue();
+  }
+
+  private Object eval(LuaScript script, List<byte[]> keys, List<byte[]> args) {
+    return eval(new ScriptCall(script, keys, args));
+  }
+
+  private Object eval(ScriptCall call) {
+    if (pipeline != null) {
+      return pipeline.call(call);
+    }
+    Jedis conn = connections.getConnection();
+    try {
+      return call.eval(conn);
+    } finally {
+      connections.returnConnection(conn);
+    }
+  }
+
+  private static byte[] encodeKey(String key) {
+    Preconditions.checkArgument(key.indexOf('\0') < 0, "Item keys may not contain NUL");
+    return ScriptArgs.encode(key);
+  }
+
+  private boolean isInline(byte[] value) {
+    return inlineMaxBytes > 0 && value.length <= inlineMaxBytes;
+  }
+
+  private static byte[] inlineEntry(byte[] key, byte[] value) {
+    byte[] entry = new byte[key.length + 1 + value.length];
+    System.arraycopy(key, 0, entry, 0, key.length);
+    System.arraycopy(value, 0, entry, key.length + 1, value.length);
+    return entry;
+  }
+
+  /**
+   * Gets the arguments by which the scripts find dequeued items, as in
+   * find_member.lua: a flag to search for inline entries, since other clients
+   * may inline values this one would not, then each item's key and the
+   * inline entry its value encodes to, or an empty entry if this client
+   * would not store it inline.
+   */
+  private List<byte[]> membersOf(Collection<? extends Item<T>> items) {
+    List<byte[]> args = Lists.newArrayListWithCapacity(items.size() * 2 + 1);
+    args.add(ScriptArgs.encode(1));
+    for (Item<T> item : items) {
+      byte[] key = ScriptArgs.encode(item.getKey());
+      byte[] value = item.getValue() == null ? null : codec.encode(item.getValue());
+      args.add(key);
+      args.add(value != null && isInline(value) ? inlineEntry(key, value) : NO_ENTRY);
+    }
+    return args;
+  }
 }
@@ -1,10 +1,30 @@
 package com.bronto.ncsu.redis.queue;
 
+import com.bronto.ncsu.redis.tests.AsyncTests;
+import com.bronto.ncsu.redis.tests.BackpressureTests;
 import com.bronto.ncsu.redis.tests.BasicTests;
+import com.bronto.ncsu.redis.tests.BatchTests;
+import com.bronto.ncsu.redis.tests.BlockingDequeueTests;
+import com.bronto.ncsu.redis.tests.CoalescingTests;
+import com.bronto.ncsu.redis.tests.CodecTests;
 import com.bronto.ncsu.redis.tests.ConsistencyTests;
+import com.bronto.ncsu.redis.tests.ConsumerRuntimeTests;
+import com.bronto.ncsu.redis.tests.DeadLetterTests;
+import com.bronto.ncsu.redis.tests.DelayedTests;
 import com.bronto.ncsu.redis.tests.DequeueLatencyTest;
+import com.bronto.ncsu.redis.tests.InMemoryTests;
+import com.bronto.ncsu.redis.tests.InlineTests;
+import com.bronto.ncsu.redis.tests.ItemIdsTests;
+import com.bronto.ncsu.redis.tests.LatencyHistogramTests;
+import com.bronto.ncsu.redis.tests.LeaseTests;
+import com.bronto.ncsu.redis.tests.MetricsTests;
+import com.bronto.ncsu.redis.tests.PrefetchingTests;
+import com.bronto.ncsu.redis.tests.PriorityTests;
+import com.bronto.ncsu.redis.tests.QueueSweeperTests;
 import com.bronto.ncsu.redis.tests.RaceConditionTests;
 import com.bronto.ncsu.redis.tests.ReliabilityTest;
+import com.bronto.ncsu.redis.tests.ShardedTests;
+import com.bronto.ncsu.redis.tests.StreamTests;
 
 import org.junit.internal.TextListener;
 import org.junit.runner.JUnitCore;
@@ -20,10 +40,30 @@ public class RunTests {
 
     System.out.println("Running unit tests...");
     Result result = junit.run(
+        AsyncTests.class,
+        BackpressureTests.class,
         BasicTests.class,
+        BatchTests.class,
+        BlockingDequeueTests.class,
+        CoalescingTests.class,
+        CodecTests.class,
         ReliabilityTest.class,
         ConsistencyTests.class,
-        RaceConditionTests.class
+        ConsumerRuntimeTests.class,
+        DeadLetterTests.class,
+        DelayedTests.class,
+        InMemoryTests.class,
+        InlineTests.class,
+        ItemIdsTests.class,
+        LatencyHistogramTests.class,
+        LeaseTests.class,
+        MetricsTests.class,
+        RaceConditionTests.class,
+        PrefetchingTests.class,
+        PriorityTests.class,
+        QueueSweeperTests.class,
+        ShardedTests.class,
+        StreamTests.class
     );
 
     if (!result.wasSuccessful()) {
@@ -0,0 +1,38 @@
+package com.bronto.ncsu.redis.queue;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Encodes the keys and arguments of the binary script calls made by the
+ * queues.
+ */
+final class ScriptArgs {
+  private ScriptArgs() {
+  }
+
+  static byte[] encode(String s) {
+    return s.getBytes(Charsets.UTF_8);
+  }
+
+  static byte[] encode(long n) {
+    return encode(String.valueOf(n));
+  }
+
+  /**
+   * Gets the keys of items.
+   *
+   * @param items
+   * @return
+   */
+  static List<byte[]> keysOf(Collection<? extends Item<?>> items) {
+    List<byte[]> keys = Lists.newArrayListWithCapacity(items.size());
+    for (Item<?> item : items) {
+      keys.add(encode(item.getKey()));
+    }
+    return keys;
+  }
+}
@@ -0,0 +1,45 @@
+package com.bronto.ncsu.redis.queue;
+
+import java.util.List;
+
+import redis.clients.jedis.BinaryClient;
+import redis.clients.jedis.Jedis;
+
+/**
+ * A call of a Lua script with its keys and arguments, built by a queue so
+ * the same operation can be run directly or sent through a CommandPipeline.
+ */
+final class ScriptCall {
+  private final LuaScript script;
+  private final List<byte[]> keys;
+  private final List<byte[]> args;
+
+  ScriptCall(LuaScript script, List<byte[]> keys, List<byte[]> args) {
+    this.script = script;
+    this.keys = keys;
+    this.args = args;
+  }
+
+  LuaScript getScript() {
+    return script;
+  }
+
+  /**
+   * Runs the script and waits for its result.
+   *
+   * @param conn
+   * @return the script result
+   */
+  Object eval(Jedis conn) {
+    return script.evalBinary(conn, keys, args);
+  }
+
+  /**
+   * Writes the call to the client's output buffer, as LuaScript.send.
+   *
+   * @param client
+   */
+  void send(BinaryClient client) {
+    script.send(client, keys, args);
+  }
+}
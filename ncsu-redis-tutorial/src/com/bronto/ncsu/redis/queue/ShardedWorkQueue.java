@@ -0,0 +1,278 @@
+package com.bronto.ncsu.redis.queue;
+
+import com.bronto.ncsu.redis.codec.Codecs;
+import com.bronto.ncsu.redis.util.Utils;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A work queue spread over a number of independent shards so throughput is
+ * not limited by a single Redis key or server. Each shard is a complete
+ * reliable queue of its own.
+ *
+ * Items are assigned to a shard by a hash of their key, so release, requeue
+ * and lease operations go straight to the shard holding the item. Consumers
+ * take items from the shards in round robin order, moving on to the next
+ * shard whenever one is empty. Ordering is first in first out within a shard
+ * but not across shards.
+ *
+ * When every shard is empty, a blocking dequeue waits on one shard at a time,
+ * so an item arriving on another shard may wait up to a second to be picked
+ * up.
+ */
+public class ShardedWorkQueue implements WorkQueue<String>, QueueGauges {
+  private final String queueName;
+  private final List<WorkQueue<String>> shards;
+  private final AtomicInteger next = new AtomicInteger();
+
+  /**
+   * Creates a queue with the given number of shards, spread round robin over
+   * the given connection providers. Each shard's keys share a Redis Cluster
+   * hash tag, so the scripts can run against a cluster.
+   *
+   * @param connections one provider per Redis server
+   * @param queueName
+   * @param shardCount
+   */
+  public ShardedWorkQueue(List<? extends ConnectionProvider> connections, String queueName, int shardCount) {
+    this(queueName, createShards(connections, queueName, shardCount));
+  }
+
+  public ShardedWorkQueue(String queueName, List<? extends WorkQueue<String>> shards) {
+    this.queueName = queueName;
+    this.shards = ImmutableList.copyOf(shards);
+  }
+
+  /**
+   * Gets the name of the given shard of a queue.
+   *
+   * @param queueName
+   * @param shard
+   * @return
+   */
+  public static String shardName(String queueName, int shard) {
+    return "{" + queueName + ":" + shard + "}";
+  }
+
+  private static List<WorkQueue<String>> createShards(List<? extends ConnectionProvider> connections,
+      String queueName, int shardCount) {
+    List<WorkQueue<String>> shards = Lists.newArrayListWithCapacity(shardCount);
+    for (int i = 0; i < shardCount; i++) {
+      shards.add(new ReliableWorkQueue<String>(connections.get(i % connections.size()), shardName(queueName, i),
+          Codecs.utf8()));
+    }
+    return shards;
+  }
+
+  public int getShardCount() {
+    return shards.size();
+  }
+
+  @Override
+  public void enqueue(Item<String> item) {
+    shardFor(item).enqueue(item);
+  }
+
+  @Override
+  public void enqueueAll(Collection<Item<String>> items) {
+    ListMultimap<Integer, Item<String>> byShard = groupByShard(items);
+    for (Integer shard : byShard.keySet()) {
+      shards.get(shard).enqueueAll(byShard.get(shard));
+    }
+  }
+
+  @Override
+  public void enqueueAt(Item<String> item, long timeMillis) {
+    shardFor(item).enqueueAt(item, timeMillis);
+  }
+
+  @Override
+  public void enqueueAfter(Item<String> item, long delay, TimeUnit unit) {
+    shardFor(item).enqueueAfter(item, delay, unit);
+  }
+
+  @Override
+  public Item<String> dequeue() {
+    int start = nextShard();
+    for (int i = 0; i < shards.size(); i++) {
+      Item<String> item = shards.get((start + i) % shards.size()).dequeue();
+      if (item != null) {
+        return item;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public Item<String> dequeueWithLease(long leaseMillis) {
+    int start = nextShard();
+    for (int i = 0; i < shards.size(); i++) {
+      Item<String> item = shards.get((start + i) % shards.size()).dequeueWithLease(leaseMillis);
+      if (item != null) {
+        return item;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public Item<String> dequeue(long timeout, TimeUnit unit) {
+    long deadline = Utils.currentTimeMillis() + unit.toMillis(timeout);
+    while (true) {
+      Item<String> item = dequeue();
+      if (item != null) {
+        return item;
+      }
+
+      long remainingMillis = deadline - Utils.currentTimeMillis();
+      if (remainingMillis <= 0) {
+        return null;
+      }
+
+      // Wait on one shard at a time, then check all of them again
+      long waitMillis = Math.min(remainingMillis, TimeUnit.SECONDS.toMillis(1));
+      item = shards.get(nextShard()).dequeue(waitMillis, TimeUnit.MILLISECONDS);
+      if (item != null) {
+        return item;
+      }
+    }
+  }
+
+  @Override
+  public List<Item<String>> dequeueBatch(int max) {
+    List<Item<String>> items = Lists.newArrayList();
+    int start = nextShard();
+    for (int i = 0; i < shards.size() && items.size() < max; i++) {
+      items.addAll(shards.get((start + i) % shards.size()).dequeueBatch(max - items.size()));
+    }
+    return items;
+  }
+
+  @Override
+  public void release(Item<String> item) {
+    shardFor(item).release(item);
+  }
+
+  @Override
+  public void releaseAll(Collection<Item<String>> items) {
+    ListMultimap<Integer, Item<String>> byShard = groupByShard(items);
+    for (Integer shard : byShard.keySet()) {
+      shards.get(shard).releaseAll(byShard.get(shard));
+    }
+  }
+
+  @Override
+  public boolean requeue(Item<String> item) {
+    return shardFor(item).requeue(item);
+  }
+
+  @Override
+  public int requeueAll(Collection<Item<String>> items) {
+    ListMultimap<Integer, Item<String>> byShard = groupByShard(items);
+    int count = 0;
+    for (Integer shard : byShard.keySet()) {
+      count += shards.get(shard).requeueAll(byShard.get(shard));
+    }
+    return count;
+  }
+
+  @Override
+  public boolean requeue(Item<String> item, long delay, TimeUnit unit) {
+    return shardFor(item).requeue(item, delay, unit);
+  }
+
+  @Override
+  public boolean requeue(Item<String> item, Backoff backoff) {
+    return shardFor(item).requeue(item, backoff);
+  }
+
+  @Override
+  public boolean extendLease(Item<String> item, long millis) {
+    return shardFor(item).extendLease(item, millis);
+  }
+
+  @Override
+  public int extendLeaseAll(Collection<Item<String>> items, long millis) {
+    ListMultimap<Integer, Item<String>> byShard = groupByShard(items);
+    int count = 0;
+    for (Integer shard : byShard.keySet()) {
+      count += shards.get(shard).extendLeaseAll(byShard.get(shard), millis);
+    }
+    return count;
+  }
+
+  @Override
+  public long sweep(long abandonedMillis) {
+    long count = 0;
+    for (WorkQueue<String> shard : shards) {
+      count += shard.sweep(abandonedMillis);
+    }
+    return count;
+  }
+
+  @Override
+  public int sweep(long abandonedMillis, int limit) {
+    int count = 0;
+    int start = nextShard();
+    for (int i = 0; i < shards.size() && count < limit; i++) {
+      count += shards.get((start + i) % shards.size()).sweep(abandonedMillis, limit - count);
+    }
+    return count;
+  }
+
+  @Override
+  public String getName() {
+    return queueName;
+  }
+
+  /**
+   * Sums depth and working count over the shards, and reports the oldest
+   * lease age of any shard. Shards which do not report gauges are skipped.
+   */
+  @Override
+  public Sample sampleGauges() {
+    long depth = 0;
+    long workingCount = 0;
+    Long oldestLeaseAgeMillis = null;
+    for (WorkQueue<String> shard : shards) {
+      if (shard instanceof QueueGauges) {
+        Sample sample = ((QueueGauges) shard).sampleGauges();
+        depth += sample.getDepth();
+        workingCount += sample.getWorkingCount();
+        if (sample.getWorkingCount() > 0 && (oldestLeaseAgeMillis == null
+            || sample.getOldestLeaseAgeMillis() > oldestLeaseAgeMillis)) {
+          oldestLeaseAgeMillis = sample.getOldestLeaseAgeMillis();
+        }
+      }
+    }
+    return new Sample(depth, workingCount, oldestLeaseAgeMillis == null ? 0 : oldestLeaseAgeMillis);
+  }
+
+  private int nextShard() {
+    return (next.getAndIncrement() & Integer.MAX_VALUE) % shards.size();
+  }
+
+  private int shardIndex(Item<String> item) {
+    return (item.getKey().hashCode() & Integer.MAX_VALUE) % shards.size();
+  }
+
+  private WorkQueue<String> shardFor(Item<String> item) {
+    return shards.get(shardIndex(item));
+  }
+
+  private ListMultimap<Integer, Item<String>> groupByShard(Collection<Item<String>> items) {
+    ListMultimap<Integer, Item<String>> byShard = ArrayListMultimap.create();
+    for (Item<String> item : items) {
+      byShard.put(shardIndex(item), item);
+    }
+    return byShard;
+  }
+}
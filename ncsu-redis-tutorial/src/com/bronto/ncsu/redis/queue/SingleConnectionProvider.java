@@ -0,0 +1,29 @@
+package com.bronto.ncsu.redis.queue;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * Shares a single connection between threads by letting only one thread use
+ * it at a time.
+ */
+public class SingleConnectionProvider implements ConnectionProvider {
+  private final Jedis conn;
+  private final ReentrantLock lock = new ReentrantLock();
+
+  public SingleConnectionProvider(Jedis conn) {
+    this.conn = conn;
+  }
+
+  @Override
+  public Jedis getConnection() {
+    lock.lock();
+    return conn;
+  }
+
+  @Override
+  public void returnConnection(Jedis conn) {
+    lock.unlock();
+  }
+}
@@ -0,0 +1,438 @@
+package com.bronto.ncsu.redis.queue;
+
+import com.bronto.ncsu.redis.util.Utils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import redis.clients.jedis.Jedis;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A reliable work queue backed by a Redis stream and a consumer group, as an
+ * alternative to the list, sorted set and hash of ReliableWorkQueue. Each
+ * item is a stream entry holding its key and value. Dequeue reads new
+ * entries for this queue's consumer, which puts them in the group's pending
+ * entries, release acknowledges and deletes them, and sweep claims entries
+ * which have been pending too long with XAUTOCLAIM and adds them to the end
+ * of the stream again. A limited sweep carries on scanning the pending
+ * entries from where the previous one stopped, so entries which are pending
+ * but not yet abandoned do not keep it from reaching those behind them.
+ * Released entries are deleted, so the stream only holds items which are
+ * waiting or dequeued. Requires Redis 6.2 or later.
+ *
+ * The stream commands are run from Lua scripts since this version of Jedis
+ * does not support them.
+ *
+ * Release, requeue and lease operations need the entry id of a dequeued
+ * item, which this queue remembers, so they must be called on the queue
+ * which dequeued the item. Other queues ignore the item. The queue forgets
+ * items which it finds are no longer pending, because it swept them itself
+ * or failed to extend their lease, and getMissedCount counts the releases,
+ * requeues and lease extensions which found their item gone.
+ *
+ * Streams track how long an entry has been pending rather than a lease
+ * deadline, so leases are not supported: dequeueWithLease behaves as
+ * dequeue and extending a lease restarts the time the item has been pending,
+ * whatever the lease. Sweeps should allow for the longest processing time.
+ *
+ * Optionally, the stream is trimmed to about maxLen entries as items are
+ * added, dropping the oldest entries even if they have not been processed.
+ * Trimming loses work: a waiting item which is trimmed is never dequeued,
+ * and a dequeued one can no longer be requeued or swept. Only set maxLen for
+ * items which may be lost, such as samples superseded by later ones. Sweeps
+ * and requeues acknowledge trimmed entries so they do not stay pending.
+ *
+ * Each queue reads as a named consumer of the group, and the group keeps a
+ * consumer until it is deleted. Give a process the same consumer name each
+ * time it starts, so the group does not collect a consumer per run, and
+ * close the queue when done with it to requeue the items still pending for
+ * its consumer and delete the consumer.
+ *
+ * Delayed items are kept in a sorted set as in ReliableWorkQueue, with their
+ * key and value joined by a NUL byte, and added to the stream by dequeue once
+ * they are due. A blocking dequeue polls, backing off up to MAX_POLL_MILLIS
+ * between attempts, since a script can not block.
+ */
+public class StreamWorkQueue implements WorkQueue<String>, QueueGauges, Closeable {
+  private static final LuaScript CREATE = LuaScript.fromResource("stream_create.lua");
+  private static final LuaScript ENQUEUE = LuaScript.fromResource("stream_enqueue.lua");
+  private static final LuaScript DEQUEUE = LuaScript.fromResource("stream_dequeue.lua");
+  private static final LuaScript RELEASE = LuaScript.fromResource("stream_release.lua");
+  private static final LuaScript REQUEUE = LuaScript.fromResource("stream_requeue.lua");
+  private static final LuaScript EXTEND_LEASE = LuaScript.fromResource("stream_extend.lua");
+  private static final LuaScript SWEEP = LuaScript.fromResource("stream_sweep.lua");
+  private static final LuaScript GAUGES = LuaScript.fromResource("stream_gauges.lua");
+  private static final LuaScript SCHEDULE = LuaScript.fromResource("schedule.lua");
+  private static final LuaScript CLOSE = LuaScript.fromResource("stream_close.lua");
+
+  private static final String GROUP = "workers";
+  private static final String SWEEPER = "sweeper";
+
+  // Maximum number of items requeued by one sweep script call
+  private static final int SWEEP_CHUNK_SIZE = 1000;
+
+  // Maximum number of delayed items added to the stream by one dequeue
+  private static final int PROMOTE_CHUNK_SIZE = 100;
+
+  private static final long MAX_POLL_MILLIS = 50;
+
+  private static final String START_CURSOR = "0-0";
+
+  private final ConnectionProvider connections;
+  private final String queueName;
+  private final String delayedKey;
+  private final String attemptsKey;
+  private final String maxLen;
+  private final String consumer;
+
+  // Entry ids of the items this queue has dequeued, by item key
+  private final ConcurrentMap<String, String> entryIds = Maps.newConcurrentMap();
+  private final AtomicLong missedCount = new AtomicLong();
+
+  // Where the next limited sweep carries on scanning the pending entries
+  private volatile String sweepCursor = START_CURSOR;
+
+  /**
+   * Creates a queue which reads as a new, randomly named consumer.
+   *
+   * @param connections
+   * @param queueName
+   */
+  public StreamWorkQueue(ConnectionProvider connections, String queueName) {
+    this(connections, queueName, 0);
+  }
+
+  /**
+   * Creates a queue which reads as a new, randomly named consumer and whose
+   * stream is trimmed to about maxLen entries. Items trimmed from the stream
+   * are lost, whether they are waiting or dequeued.
+   *
+   * @param connections
+   * @param queueName
+   * @param maxLen the maximum length of the stream, or 0 for no limit
+   */
+  public StreamWorkQueue(ConnectionProvider connections, String queueName, long maxLen) {
+    this(connections, queueName, "consumer-" + Utils.randomBytesString(8), maxLen);
+  }
+
+  /**
+   * Creates a queue which reads as the given consumer. Items pending for the
+   * consumer from an earlier run are requeued by a sweep, or by close.
+   *
+   * @param connections
+   * @param queueName
+   * @param consumer the name of the consumer, unique among the queue's
+   *     running consumers
+   * @param maxLen the maximum length of the stream, or 0 for no limit
+   */
+  public StreamWorkQueue(ConnectionProvider connections, String queueName, String consumer, long maxLen) {
+    Preconditions.checkArgument(maxLen >= 0, "negative maxLen");
+    Preconditions.checkArgument(!SWEEPER.equals(consumer), "consumer name is reserved for sweeps");
+    this.connections = connections;
+    this.queueName = queueName;
+    this.consumer = Preconditions.checkNotNull(consumer);
+    this.delayedKey = queueName + "delayed";
+    this.attemptsKey = queueName + "attempts";
+    this.maxLen = String.valueOf(maxLen);
+    eval(CREATE, ImmutableList.of(queueName), ImmutableList.of(GROUP));
+  }
+
+  @Override
+  public void enqueue(Item<String> item) {
+    enqueueAll(ImmutableList.of(item));
+  }
+
+  @Override
+  public void enqueueAll(Collection<Item<String>> items) {
+    if (items.isEmpty()) {
+      return;
+    }
+
+    List<String> args = Lists.newArrayListWithCapacity(items.size() * 2 + 1);
+    args.add(maxLen);
+    for (Item<String> item : items) {
+      args.add(item.getKey());
+      args.add(item.getValue());
+    }
+    eval(ENQUEUE, ImmutableList.of(queueName), args);
+  }
+
+  @Override
+  public void enqueueAt(Item<String> item, long timeMillis) {
+    enqueueAfter(item, timeMillis - Utils.currentTimeMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void enqueueAfter(Item<String> item, long delay, TimeUnit unit) {
+    Preconditions.checkArgument(item.getKey().indexOf('\0') < 0, "Item keys may not contain NUL");
+    eval(SCHEDULE, ImmutableList.of(delayedKey),
+        ImmutableList.of(String.valueOf(unit.toMillis(delay)), "0", item.getKey() + '\0' + item.getValue()));
+  }
+
+  @Override
+  public Item<String> dequeue() {
+    List<Item<String>> items = dequeueBatch(1);
+    return items.isEmpty() ? null : items.get(0);
+  }
+
+  /**
+   * Dequeues as dequeue, since leases are not supported.
+   */
+  @Override
+  public Item<String> dequeueWithLease(long leaseMillis) {
+    return dequeue();
+  }
+
+  @Override
+  public Item<String> dequeue(long timeout, TimeUnit unit) {
+    long deadline = Utils.currentTimeMillis() + unit.toMillis(timeout);
+    long pollMillis = 1;
+    while (true) {
+      Item<String> item = dequeue();
+      if (item != null) {
+        return item;
+      }
+
+      long remainingMillis = deadline - Utils.currentTimeMillis();
+      if (remainingMillis <= 0) {
+        return null;
+      }
+      try {
+        Thread.sleep(Math.min(pollMillis, remainingMillis));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+      pollMillis = Math.min(pollMillis * 2, MAX_POLL_MILLIS);
+    }
+  }
+
+  @Override
+  public List<Item<String>> dequeueBatch(int max) {
+    if (max <= 0) {
+      return Collections.emptyList();
+    }
+
+    @SuppressWarnings("unchecked")
+    List<String> result = (List<String>) eval(DEQUEUE, ImmutableList.of(queueName, delayedKey),
+        ImmutableList.of(GROUP, consumer, String.valueOf(max), String.valueOf(PROMOTE_CHUNK_SIZE), maxLen));
+
+    List<Item<String>> items = Lists.newArrayListWithCapacity(result.size() / 3);
+    for (int i = 0; i < result.size(); i += 3) {
+      entryIds.put(result.get(i + 1), result.get(i));
+      items.add(new Item<String>(result.get(i + 1), result.get(i + 2)));
+    }
+    return items;
+  }
+
+  @Override
+  public void release(Item<String> item) {
+    releaseAll(ImmutableList.of(item));
+  }
+
+  @Override
+  public void releaseAll(Collection<Item<String>> items) {
+    List<String> args = Lists.newArrayListWithCapacity(items.size() * 2 + 1);
+    args.add(GROUP);
+    for (Item<String> item : items) {
+      String id = entryIds.remove(item.getKey());
+      if (id != null) {
+        args.add(id);
+        args.add(item.getKey());
+      }
+    }
+    if (args.size() > 1) {
+      Long count = (Long) eval(RELEASE, ImmutableList.of(queueName, attemptsKey), args);
+      missedCount.addAndGet((args.size() - 1) / 2 - count);
+    }
+  }
+
+  @Override
+  public boolean requeue(Item<String> item) {
+    return requeueAll(ImmutableList.of(item)) == 1;
+  }
+
+  @Override
+  public int requeueAll(Collection<Item<String>> items) {
+    return requeue(items, "-1", "1", "0");
+  }
+
+  @Override
+  public boolean requeue(Item<String> item, long delay, TimeUnit unit) {
+    return requeue(item, Backoff.fixed(delay, unit));
+  }
+
+  @Override
+  public boolean requeue(Item<String> item, Backoff backoff) {
+    return requeue(ImmutableList.of(item), String.valueOf(backoff.getInitialMillis()),
+        String.valueOf(backoff.getMultiplier()), String.valueOf(backoff.getMaxMillis())) == 1;
+  }
+
+  private int requeue(Collection<Item<String>> items, String initialMillis, String multiplier,
+      String maxMillis) {
+    List<String> args = Lists.newArrayListWithCapacity(items.size() + 5);
+    args.add(GROUP);
+    args.add(maxLen);
+    args.add(initialMillis);
+    args.add(multiplier);
+    args.add(maxMillis);
+    for (Item<String> item : items) {
+      String id = entryIds.remove(item.getKey());
+      if (id != null) {
+        args.add(id);
+      }
+    }
+    if (args.size() == 5) {
+      return 0;
+    }
+    Long count = (Long) eval(REQUEUE, ImmutableList.of(queueName, delayedKey, attemptsKey), args);
+    missedCount.addAndGet(args.size() - 5 - count);
+    return count.intValue();
+  }
+
+  /**
+   * Restarts the time the item has been pending. The lease is ignored.
+   */
+  @Override
+  public boolean extendLease(Item<String> item, long millis) {
+    return extendLeaseAll(ImmutableList.of(item), millis) == 1;
+  }
+
+  @Override
+  public int extendLeaseAll(Collection<Item<String>> items, long millis) {
+    List<String> args = Lists.newArrayListWithCapacity(items.size() + 2);
+    args.add(GROUP);
+    args.add(consumer);
+    Map<String, String> keys = Maps.newHashMap();
+    for (Item<String> item : items) {
+      String id = entryIds.get(item.getKey());
+      if (id != null) {
+        args.add(id);
+        keys.put(id, item.getKey());
+      }
+    }
+    if (args.size() == 2) {
+      return 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    List<String> claimed = (List<String>) eval(EXTEND_LEASE, ImmutableList.of(queueName), args);
+    keys.keySet().removeAll(claimed);
+    // The rest are no longer pending, so forget them
+    for (Map.Entry<String, String> missed : keys.entrySet()) {
+      entryIds.remove(missed.getValue(), missed.getKey());
+    }
+    missedCount.addAndGet(keys.size());
+    return claimed.size();
+  }
+
+  /**
+   * Requeues every item which has been pending for at least abandonedMillis,
+   * in one pass over the pending entries.
+   */
+  @Override
+  public long sweep(long abandonedMillis) {
+    long total = 0;
+    String cursor = START_CURSOR;
+    do {
+      List<String> result = sweep(abandonedMillis, SWEEP_CHUNK_SIZE, cursor);
+      cursor = result.get(0);
+      total += (result.size() - 1) / 2;
+    } while (!START_CURSOR.equals(cursor) && !Thread.currentThread().isInterrupted());
+    return total;
+  }
+
+  /**
+   * Requeues up to limit items which have been pending for at least
+   * abandonedMillis, scanning a bounded number of pending entries from where
+   * the previous call stopped. A call may requeue fewer than limit items
+   * when the entries it scanned were not abandoned, or it reached the end of
+   * the pending entries, even though the next call would find more.
+   */
+  @Override
+  public int sweep(long abandonedMillis, int limit) {
+    if (limit <= 0) {
+      return 0;
+    }
+    List<String> result = sweep(abandonedMillis, limit, sweepCursor);
+    sweepCursor = result.get(0);
+    return (result.size() - 1) / 2;
+  }
+
+  /**
+   * Runs a sweep from the cursor, forgetting any items this queue had
+   * dequeued which it requeued.
+   *
+   * @return the cursor to carry on from, then the old entry id and key of
+   *     each item requeued
+   */
+  private List<String> sweep(long abandonedMillis, int limit, String cursor) {
+    @SuppressWarnings("unchecked")
+    List<String> result = (List<String>) eval(SWEEP, ImmutableList.of(queueName), ImmutableList.of(GROUP, SWEEPER,
+        String.valueOf(abandonedMillis), String.valueOf(limit), maxLen, cursor));
+    for (int i = 1; i < result.size(); i += 2) {
+      entryIds.remove(result.get(i + 1), result.get(i));
+    }
+    return result;
+  }
+
+  /**
+   * Gets the number of items this queue was asked to release, requeue or
+   * extend the lease of which were no longer pending, because they had been
+   * swept or trimmed from the stream. Their work may be done again, by
+   * whoever dequeued them next, or have been lost.
+   *
+   * @return
+   */
+  public long getMissedCount() {
+    return missedCount.get();
+  }
+
+  /**
+   * Requeues every item still pending for this queue's consumer, including
+   * any left from an earlier run under the same name, and deletes the
+   * consumer from the group. Items being processed should be released
+   * first, since they are handed out again.
+   */
+  @Override
+  public void close() {
+    eval(CLOSE, ImmutableList.of(queueName), ImmutableList.of(GROUP, consumer, maxLen));
+    entryIds.clear();
+  }
+
+  @Override
+  public String getName() {
+    return queueName;
+  }
+
+  /**
+   * Reads the gauges. The oldest lease age is the time the oldest pending
+   * entry has been pending.
+   */
+  @Override
+  public Sample sampleGauges() {
+    @SuppressWarnings("unchecked")
+    List<Long> result = (List<Long>) eval(GAUGES, ImmutableList.of(queueName, delayedKey), ImmutableList.of(GROUP));
+    return new Sample(result.get(0), result.get(1), result.get(2));
+  }
+
+  private Object eval(LuaScript script, List<String> keys, List<String> args) {
+    Jedis conn = connections.getConnection();
+    try {
+      return script.eval(conn, keys, args);
+    } finally {
+      connections.returnConnection(conn);
+    }
+  }
+}
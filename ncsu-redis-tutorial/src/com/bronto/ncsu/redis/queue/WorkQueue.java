@@ -1,5 +1,9 @@
 package com.bronto.ncsu.redis.queue;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 /**
  * A work queue. Reliable implementations will keep track of which items have
  * been checked out for processing (dequeued), but not completed (released).
@@ -8,6 +12,17 @@ package com.bronto.ncsu.redis.queue;
  * been checked out for a long time and may have been abandoned by a crashed
  * worker.
  *
+ * Each dequeued item has a lease deadline. Items dequeued with dequeue have a
+ * lease of zero, so their deadline is the time they were dequeued. Items
+ * dequeued with dequeueWithLease, or whose lease is extended, have a later
+ * deadline. sweep requeues items whose deadline passed more than the given
+ * time ago, so queues may mix items with very different processing times.
+ *
+ * Items may also be scheduled: enqueued or requeued with a delay, they are
+ * held back and then added to the end of the queue once the delay has
+ * passed. Requeueing a failed item with a Backoff delays it longer each time
+ * it fails, so consumers do not dequeue it again straight away.
+ *
  * See ReliableWorkQueue to work on your implementation.
  *
  * @param <T>
@@ -22,16 +37,69 @@ public interface WorkQueue<T> {
   void enqueue(Item<T> item);
 
   /**
-   * Dequeues the item at the head of the queue. If the queue is empty, returns null.
+   * Adds the given items to the end of the queue in iteration order. This
+   * is equivalent to calling enqueue for each item but implementations may
+   * do so in fewer round trips.
    *
-   * <p><b>Enhancement:</b> <i>Implement pre-fetching. Dequeue items before
-   * they are needed so the caller does not have to wait. Make sure items are
-   * not pre-fetched too early, otherwise they be considered abandoned.</i></p>
+   * @param items the items to enqueue
+   */
+  void enqueueAll(Collection<Item<T>> items);
+
+  /**
+   * Adds a new item to the end of the queue at the given time. Until then
+   * it is held back and can not be dequeued.
+   *
+   * @param item the item to enqueue
+   * @param timeMillis the time in milliseconds since the epoch
+   */
+  void enqueueAt(Item<T> item, long timeMillis);
+
+  /**
+   * Adds a new item to the end of the queue once the given delay has passed.
+   *
+   * @param item the item to enqueue
+   * @param delay the delay
+   * @param unit the unit of the delay
+   */
+  void enqueueAfter(Item<T> item, long delay, TimeUnit unit);
+
+  /**
+   * Dequeues the item at the head of the queue. If the queue is empty, returns null.
    *
    * @return the dequeued item or null
    */
   Item<T> dequeue();
 
+  /**
+   * Dequeues the item at the head of the queue with a lease of the given
+   * length. The item will not be swept until leaseMillis plus the sweep's
+   * abandonedMillis have passed. If the queue is empty, returns null.
+   *
+   * @param leaseMillis the lease in milliseconds
+   * @return the dequeued item or null
+   */
+  Item<T> dequeueWithLease(long leaseMillis);
+
+  /**
+   * Dequeues the item at the head of the queue. If the queue is empty, waits
+   * up to the given time for an item to be enqueued. Returns null if no item
+   * becomes available in time.
+   *
+   * @param timeout the maximum time to wait
+   * @param unit the unit of the timeout
+   * @return the dequeued item or null
+   */
+  Item<T> dequeue(long timeout, TimeUnit unit);
+
+  /**
+   * Dequeues up to max items from the head of the queue. Returns fewer items
+   * if the queue does not hold enough, or an empty list if it is empty.
+   *
+   * @param max the maximum number of items to dequeue
+   * @return the dequeued items in queue order
+   */
+  List<Item<T>> dequeueBatch(int max);
+
   /**
    * Releases the given item which is currently dequeued. This marks the item
    * as complete and removes it from the queue. If the item is not currently
@@ -41,22 +109,103 @@ public interface WorkQueue<T> {
    */
   void release(Item<T> item);
 
+  /**
+   * Releases each of the given items as in release.
+   *
+   * @param items
+   */
+  void releaseAll(Collection<Item<T>> items);
+
   /**
    * Requeues the given item which must be currently dequeued. The item is
    * requeued to the end of the queue. If the item is not currently dequeued
    * do nothing.
    *
    * @param item
+   * @return true if the item was dequeued and has been requeued
+   */
+  boolean requeue(Item<T> item);
+
+  /**
+   * Requeues each of the given items as in requeue.
+   *
+   * @param items
+   * @return the number of items requeued
+   */
+  int requeueAll(Collection<Item<T>> items);
+
+  /**
+   * Requeues the given item which must be currently dequeued, adding it to
+   * the end of the queue once the given delay has passed. If the item is not
+   * currently dequeued do nothing.
+   *
+   * @param item
+   * @param delay
+   * @param unit
+   * @return true if the item was dequeued and has been requeued
+   */
+  boolean requeue(Item<T> item, long delay, TimeUnit unit);
+
+  /**
+   * Requeues the given item which must be currently dequeued, delaying it
+   * by the backoff for the number of times it has been requeued with a delay
+   * since it was enqueued. If the item is not currently dequeued do nothing.
+   *
+   * @param item
+   * @param backoff
+   * @return true if the item was dequeued and has been requeued
+   */
+  boolean requeue(Item<T> item, Backoff backoff);
+
+  /**
+   * Extends the lease on the given item which is currently dequeued, so a
+   * worker taking a long time over an item can keep it from being swept.
+   * The item's lease deadline is set to millis from now, so it will not be
+   * swept for at least millis plus the sweep's abandonedMillis. If the item
+   * is not currently dequeued do nothing.
+   *
+   * @param item
+   * @param millis
+   * @return true if the item is dequeued and its lease was extended
+   */
+  boolean extendLease(Item<T> item, long millis);
+
+  /**
+   * Extends the lease on each of the given items as in extendLease.
+   *
+   * @param items
+   * @param millis
+   * @return the number of items whose lease was extended
+   */
+  int extendLeaseAll(Collection<Item<T>> items, long millis);
+
+  /**
+   * Requeue any items whose lease deadline passed more than the given number
+   * of milliseconds ago. For items dequeued without a lease this is the time
+   * since they were dequeued.
+   *
+   * <p>Implementations may do this in a series of bounded steps as in
+   * sweep(long, int). If the calling thread is interrupted the sweep stops
+   * after the current step; items not yet requeued are left for the next
+   * sweep.</p>
+   *
+   * @param abandonedMillis
+   * @return the number of items requeued
    */
-  void requeue(Item<T> item);
+  long sweep(long abandonedMillis);
 
   /**
-   * Requeue any items which have been dequeued for longer than the given
-   * number of milliseconds.
+   * Requeue up to limit of the items whose lease deadline passed more than
+   * the given number of milliseconds ago, oldest deadline first. The cost of a call is
+   * bounded by the limit rather than the number of abandoned items, so a
+   * large backlog can be reclaimed incrementally by calling this repeatedly
+   * until it returns less than the limit.
    *
    * @param abandonedMillis
+   * @param limit the maximum number of items to requeue
+   * @return the number of items requeued
    */
-  void sweep(long abandonedMillis);
+  int sweep(long abandonedMillis, int limit);
 
   /**
    * Gets the name of the queue.
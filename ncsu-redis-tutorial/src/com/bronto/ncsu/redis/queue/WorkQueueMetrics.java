@@ -0,0 +1,86 @@
+package com.bronto.ncsu.redis.queue;
+
+import java.util.Map;
+
+import javax.management.MXBean;
+
+/**
+ * Counters, gauges and latencies of a work queue. Also the management
+ * interface used when the metrics are registered with JMX.
+ */
+@MXBean
+public interface WorkQueueMetrics {
+
+  String getName();
+
+  /**
+   * Gets the number of items enqueued.
+   */
+  long getEnqueueCount();
+
+  /**
+   * Gets the number of items dequeued.
+   */
+  long getDequeueCount();
+
+  /**
+   * Gets the number of dequeue calls which found the queue empty.
+   */
+  long getEmptyDequeueCount();
+
+  /**
+   * Gets the number of items released.
+   */
+  long getReleaseCount();
+
+  /**
+   * Gets the number of items requeued by consumers.
+   */
+  long getRequeueCount();
+
+  /**
+   * Gets the number of abandoned items requeued by sweeps.
+   */
+  long getSweptCount();
+
+  /**
+   * Gets the number of leases extended.
+   */
+  long getLeaseExtendCount();
+
+  /**
+   * Gets the number of operations which threw an exception.
+   */
+  long getErrorCount();
+
+  /**
+   * Gets the number of items waiting to be dequeued when last sampled.
+   */
+  long getDepth();
+
+  /**
+   * Gets the number of dequeued items when last sampled.
+   */
+  long getWorkingCount();
+
+  /**
+   * Gets the time since the earliest lease deadline when last sampled.
+   */
+  long getOldestLeaseAgeMillis();
+
+  /**
+   * Gets a summary of the latency percentiles of each operation.
+   *
+   * @return summaries keyed by operation name
+   */
+  Map<String, String> getLatencySummaries();
+
+  /**
+   * Gets a latency percentile of an operation.
+   *
+   * @param operation
+   * @param percentile between 0 and 100
+   * @return the latency in microseconds
+   */
+  double getLatencyMicros(String operation, double percentile);
+}
@@ -0,0 +1,63 @@
+-- Replays or purges dead letters. Replayed items are moved to the end of the
+-- queue, and purged items are deleted along with their values. Either way
+-- their attempt counts are deleted. Returns the number of items moved or
+-- deleted.
+--
+-- If item keys are given only those dead letters are taken, otherwise up to
+-- the given number of the oldest. Dead letters may be inline entries, which
+-- can not be removed by key, so the list is scanned for the given keys.
+--
+-- KEYS[1] dead letter list, KEYS[2] queue list, KEYS[3] values hash,
+-- KEYS[4] attempts hash
+-- ARGV[1] 'replay' or 'purge', ARGV[2] maximum number of items,
+-- ARGV[3..n] item keys
+local entries = {}
+if #ARGV > 2 then
+  local wanted = {}
+  for i = 3, #ARGV do
+    wanted[ARGV[i]] = true
+  end
+  local found = {}
+  local len = redis.call('LLEN', KEYS[1])
+  for start = 0, len - 1, 1000 do
+    for _, entry in ipairs(redis.call('LRANGE', KEYS[1], start, start + 999)) do
+      local key = entry
+      local sep = string.find(entry, '\0', 1, true)
+      if sep then
+        key = string.sub(entry, 1, sep - 1)
+      end
+      if wanted[key] then
+        wanted[key] = nil
+        found[#found + 1] = entry
+      end
+    end
+  end
+  for _, entry in ipairs(found) do
+    if redis.call('LREM', KEYS[1], 1, entry) == 1 then
+      entries[#entries + 1] = entry
+    end
+  end
+else
+  for i = 1, tonumber(ARGV[2]) do
+    local entry = redis.call('RPOP', KEYS[1])
+    if not entry then
+      break
+    end
+    entries[#entries + 1] = entry
+  end
+end
+
+for _, entry in ipairs(entries) do
+  local key = entry
+  local sep = string.find(entry, '\0', 1, true)
+  if sep then
+    key = string.sub(entry, 1, sep - 1)
+  end
+  redis.call('HDEL', KEYS[4], key)
+  if ARGV[1] == 'replay' then
+    redis.call('LPUSH', KEYS[2], entry)
+  elseif not sep then
+    redis.call('HDEL', KEYS[3], key)
+  end
+end
+return #entries
@@ -0,0 +1,72 @@
+-- Moves up to the given number of items from the head of the queue into the
+-- working set and returns their keys and values as a flat list of
+-- key, value pairs. Returns an empty list if the queue is empty. Each item is
+-- scored by its lease deadline, the current time plus the lease.
+--
+-- An entry holding a NUL byte is an inline item, its key and value joined by
+-- the NUL. Its value is not in the values hash, and the whole entry goes into
+-- the working set, so dequeuing it needs no hash lookup or write. The other
+-- scripts find dequeued items as in find_member.lua.
+--
+-- Keys moved into the claiming list by a blocking dequeue were at the head of
+-- the queue, so they are taken first. This also picks up any key left there
+-- by a consumer which failed between its blocking pop and claiming the item.
+--
+-- First, up to the given number of delayed items which are due are moved to
+-- the end of the queue, earliest first. If there are no delayed items this
+-- costs a single lookup of the empty delayed set.
+--
+-- If a maximum number of attempts is given, each item's attempt count is
+-- incremented as it is dequeued. An item which has used up its attempts is
+-- moved to the dead letter list instead of being returned. At most the
+-- given number of delayed items are also dead lettered by one call.
+--
+-- KEYS[1] queue list, KEYS[2] working zset, KEYS[3] values hash,
+-- KEYS[4] claiming list, KEYS[5] delayed zset, KEYS[6] attempts hash,
+-- KEYS[7] dead letter list
+-- ARGV[1] lease in milliseconds, ARGV[2] maximum number of items,
+-- ARGV[3] maximum number of delayed items to move or dead letter,
+-- ARGV[4] maximum number of attempts, or 0 for no limit
+
+-- Use the server clock so scores do not depend on client clock skew. Scripts
+-- which read the clock must replicate their effects rather than the script.
+if redis.replicate_commands then
+  redis.replicate_commands()
+end
+local time = redis.call('TIME')
+local now = time[1] * 1000 + math.floor(time[2] / 1000)
+local due = redis.call('ZRANGEBYSCORE', KEYS[5], '-inf', now, 'LIMIT', 0, ARGV[3])
+if #due > 0 then
+  redis.call('LPUSH', KEYS[1], unpack(due))
+  redis.call('ZREM', KEYS[5], unpack(due))
+end
+local deadline = now + tonumber(ARGV[1])
+local max = tonumber(ARGV[2])
+local maxDead = tonumber(ARGV[3])
+local maxAttempts = tonumber(ARGV[4])
+local result = {}
+local dead = 0
+while #result < max * 2 and dead < maxDead do
+  local entry = redis.call('RPOP', KEYS[4]) or redis.call('RPOP', KEYS[1])
+  if not entry then
+    break
+  end
+  local key = entry
+  local sep = string.find(entry, '\0', 1, true)
+  if sep then
+    key = string.sub(entry, 1, sep - 1)
+  end
+  if maxAttempts > 0 and redis.call('HINCRBY', KEYS[6], key, 1) > maxAttempts then
+    redis.call('LPUSH', KEYS[7], entry)
+    dead = dead + 1
+  else
+    redis.call('ZADD', KEYS[2], deadline, entry)
+    result[#result + 1] = key
+    if sep then
+      result[#result + 1] = string.sub(entry, sep + 1)
+    else
+      result[#result + 1] = redis.call('HGET', KEYS[3], entry)
+    end
+  end
+end
+return result
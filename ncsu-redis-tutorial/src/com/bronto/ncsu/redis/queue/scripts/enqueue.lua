@@ -0,0 +1,63 @@
+-- Adds items to the head of the queue. The values of items which are not
+-- stored inline are written to the values hash by the same call, before
+-- their keys are pushed, so consumers never see a key without its value.
+--
+-- Optionally, the depth of the queue, counting claimed and delayed items as
+-- in the gauges, is limited. Either nothing is enqueued if the items would
+-- take the queue over the limit, or the oldest items are dropped from the
+-- tail of the queue, with their values and attempt counts, until the queue
+-- is back within it.
+--
+-- Returns the number of items enqueued, which is 0 if they were rejected,
+-- the depth of the queue afterwards and the number of items dropped.
+--
+-- KEYS[1] queue list, KEYS[2] values hash, KEYS[3] claiming list,
+-- KEYS[4] delayed zset, KEYS[5] attempts hash
+-- ARGV[1] maximum depth, or 0 for no limit, ARGV[2] 'reject' or 'drop',
+-- ARGV[3] the number n of values to store, ARGV[4..2n+3] their keys and
+-- values, ARGV[2n+4..] item keys or inline entries in the order enqueued
+
+-- unpack is limited by the Lua stack size, so each command is given a
+-- bounded number of arguments
+local CHUNK_SIZE = 1000
+
+local maxDepth = tonumber(ARGV[1])
+local first = 2 * tonumber(ARGV[3]) + 4
+local count = #ARGV - first + 1
+local depth = redis.call('LLEN', KEYS[1]) + redis.call('LLEN', KEYS[3]) + redis.call('ZCARD', KEYS[4])
+if maxDepth > 0 and ARGV[2] == 'reject' and depth + count > maxDepth then
+  return {0, depth, 0}
+end
+
+for i = 4, first - 1, 2 * CHUNK_SIZE do
+  redis.call('HMSET', KEYS[2], unpack(ARGV, i, math.min(i + 2 * CHUNK_SIZE - 1, first - 1)))
+end
+for i = first, #ARGV, CHUNK_SIZE do
+  redis.call('LPUSH', KEYS[1], unpack(ARGV, i, math.min(i + CHUNK_SIZE - 1, #ARGV)))
+end
+depth = depth + count
+
+local dropped = 0
+if maxDepth > 0 and ARGV[2] == 'drop' then
+  -- Only items requeued with a delay or counted by dequeue have attempts
+  local counted = redis.call('EXISTS', KEYS[5]) == 1
+  while depth > maxDepth do
+    local entry = redis.call('RPOP', KEYS[1])
+    if not entry then
+      break
+    end
+    local key = entry
+    local sep = string.find(entry, '\0', 1, true)
+    if sep then
+      key = string.sub(entry, 1, sep - 1)
+    else
+      redis.call('HDEL', KEYS[2], key)
+    end
+    if counted then
+      redis.call('HDEL', KEYS[5], key)
+    end
+    depth = depth - 1
+    dropped = dropped + 1
+  end
+end
+return {count, depth, dropped}
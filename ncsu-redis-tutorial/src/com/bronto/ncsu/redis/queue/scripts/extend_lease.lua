@@ -0,0 +1,29 @@
+-- Sets the lease deadline of dequeued items to the current time plus the
+-- given lease. Items which are not currently dequeued are ignored. Returns
+-- the number of items updated.
+--
+-- Items are given as in find_member.lua.
+--
+-- KEYS[1] working zset
+-- ARGV[1] lease in milliseconds, ARGV[2] 1 to search the working set for
+-- inline entries, otherwise 0, ARGV[3..n] item key and expected inline entry
+-- pairs
+
+-- Use the server clock so scores do not depend on client clock skew. Scripts
+-- which read the clock must replicate their effects rather than the script.
+if redis.replicate_commands then
+  redis.replicate_commands()
+end
+local time = redis.call('TIME')
+local now = time[1] * 1000 + math.floor(time[2] / 1000)
+local deadline = now + tonumber(ARGV[1])
+local search = ARGV[2] == '1'
+local count = 0
+for i = 3, #ARGV, 2 do
+  local member = findMember(KEYS[1], ARGV[i], ARGV[i + 1], search)
+  if member then
+    redis.call('ZADD', KEYS[1], deadline, member)
+    count = count + 1
+  end
+end
+return count
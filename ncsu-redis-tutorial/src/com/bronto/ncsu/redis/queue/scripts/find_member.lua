@@ -0,0 +1,33 @@
+-- Library for the scripts which settle dequeued items, prepended to them.
+--
+-- Dequeued items are in the working set by key if their values are in the
+-- values hash, or as their whole inline entry, the key and value joined by
+-- a NUL, if they were queued inline. These scripts take each item as its
+-- key and the inline entry the caller expects it to have, or an empty
+-- string if the caller does not expect it to be inline.
+
+-- Finds the working set member of a dequeued item, trying its key and then
+-- the expected entry. If neither is dequeued and search is true, the working
+-- set is scanned for an inline entry with the key, for callers which hold a
+-- different value from the one dequeued or do not inline values themselves.
+-- Returns nil if the item is not dequeued.
+local function findMember(working, key, entry, search)
+  if redis.call('ZSCORE', working, key) then
+    return key
+  end
+  if entry ~= '' and redis.call('ZSCORE', working, entry) then
+    return entry
+  end
+  if search then
+    local prefix = key .. '\0'
+    local len = redis.call('ZCARD', working)
+    for start = 0, len - 1, 1000 do
+      for _, member in ipairs(redis.call('ZRANGE', working, start, start + 999)) do
+        if string.sub(member, 1, #prefix) == prefix then
+          return member
+        end
+      end
+    end
+  end
+  return nil
+end
@@ -0,0 +1,17 @@
+-- Returns the number of items waiting in the queue, including delayed items
+-- which are not yet due, the number of items
+-- dequeued and the number of milliseconds since the earliest lease deadline
+-- in the working set (0 if it is empty, negative if no lease has expired).
+--
+-- KEYS[1] queue list, KEYS[2] working zset, KEYS[3] claiming list,
+-- KEYS[4] delayed zset
+local depth = redis.call('LLEN', KEYS[1]) + redis.call('LLEN', KEYS[3]) + redis.call('ZCARD', KEYS[4])
+local working = redis.call('ZCARD', KEYS[2])
+local oldest = redis.call('ZRANGE', KEYS[2], 0, 0, 'WITHSCORES')
+local age = 0
+if #oldest > 0 then
+  local time = redis.call('TIME')
+  local now = time[1] * 1000 + math.floor(time[2] / 1000)
+  age = now - tonumber(oldest[2])
+end
+return {depth, working, age}
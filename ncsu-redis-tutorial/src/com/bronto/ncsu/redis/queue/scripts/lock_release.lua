@@ -0,0 +1,9 @@
+-- Deletes a lock if it is held by the given owner. Returns 1 if the lock was
+-- released, 0 otherwise.
+--
+-- KEYS[1] lock
+-- ARGV[1] owner id
+if redis.call('GET', KEYS[1]) == ARGV[1] then
+  return redis.call('DEL', KEYS[1])
+end
+return 0
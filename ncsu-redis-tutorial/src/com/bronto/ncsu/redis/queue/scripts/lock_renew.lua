@@ -0,0 +1,9 @@
+-- Extends a lock's time to live if it is held by the given owner. Returns 1
+-- if the lock was extended, 0 if it is held by someone else or has expired.
+--
+-- KEYS[1] lock
+-- ARGV[1] owner id, ARGV[2] time to live in milliseconds
+if redis.call('GET', KEYS[1]) == ARGV[1] then
+  return redis.call('PEXPIRE', KEYS[1], ARGV[2])
+end
+return 0
@@ -0,0 +1,46 @@
+-- Moves up to the given number of items from the priority lists into the
+-- working set and returns their keys and stored values as a flat list of
+-- key, value pairs. Lists are tried in the order given, so the caller
+-- chooses which priority is served first. Each item is scored by its lease
+-- deadline, the current time plus the lease.
+--
+-- First, up to the given number of delayed items which are due are moved to
+-- the end of the list for their priority, the first byte of their stored
+-- value, as in dequeue.lua.
+--
+-- KEYS[1] working zset, KEYS[2] values hash, KEYS[3] delayed zset,
+-- KEYS[4..n] priority lists from the lowest priority to the highest
+-- ARGV[1] lease in milliseconds, ARGV[2] maximum number of items,
+-- ARGV[3] maximum number of delayed items to move, ARGV[4..n] priorities in
+-- the order to take items from their lists
+
+-- Use the server clock so scores do not depend on client clock skew. Scripts
+-- which read the clock must replicate their effects rather than the script.
+if redis.replicate_commands then
+  redis.replicate_commands()
+end
+local time = redis.call('TIME')
+local now = time[1] * 1000 + math.floor(time[2] / 1000)
+local due = redis.call('ZRANGEBYSCORE', KEYS[3], '-inf', now, 'LIMIT', 0, ARGV[3])
+for _, key in ipairs(due) do
+  local value = redis.call('HGET', KEYS[2], key)
+  local list = math.min(4 + (value and string.byte(value, 1) or 0), #KEYS)
+  redis.call('LPUSH', KEYS[list], key)
+  redis.call('ZREM', KEYS[3], key)
+end
+
+local deadline = now + tonumber(ARGV[1])
+local max = tonumber(ARGV[2])
+local result = {}
+local i = 4
+while i <= #ARGV and #result < max * 2 do
+  local key = redis.call('RPOP', KEYS[4 + tonumber(ARGV[i])])
+  if key then
+    redis.call('ZADD', KEYS[1], deadline, key)
+    result[#result + 1] = key
+    result[#result + 1] = redis.call('HGET', KEYS[2], key)
+  else
+    i = i + 1
+  end
+end
+return result
@@ -0,0 +1,27 @@
+-- Adds items to the head of a priority list. Their values are written to the
+-- values hash by the same call, before their keys are pushed, so consumers
+-- never see a key without its value and a client failing part way leaves
+-- neither behind. Returns the number of items enqueued.
+--
+-- KEYS[1] priority list, KEYS[2] values hash
+-- ARGV key and stored value pairs, in the order enqueued
+
+-- unpack is limited by the Lua stack size, so each command is given a
+-- bounded number of arguments
+local CHUNK_SIZE = 1000
+
+for i = 1, #ARGV, 2 * CHUNK_SIZE do
+  redis.call('HMSET', KEYS[2], unpack(ARGV, i, math.min(i + 2 * CHUNK_SIZE - 1, #ARGV)))
+end
+local keys = {}
+for i = 1, #ARGV, 2 do
+  keys[#keys + 1] = ARGV[i]
+  if #keys == CHUNK_SIZE then
+    redis.call('LPUSH', KEYS[1], unpack(keys))
+    keys = {}
+  end
+end
+if #keys > 0 then
+  redis.call('LPUSH', KEYS[1], unpack(keys))
+end
+return #ARGV / 2
@@ -0,0 +1,18 @@
+-- Returns the number of items waiting in all priority lists and the delayed
+-- set, the number of items dequeued and the number of milliseconds since the
+-- earliest lease deadline in the working set, as in gauges.lua.
+--
+-- KEYS[1] working zset, KEYS[2] delayed zset, KEYS[3..n] priority lists
+local depth = redis.call('ZCARD', KEYS[2])
+for i = 3, #KEYS do
+  depth = depth + redis.call('LLEN', KEYS[i])
+end
+local working = redis.call('ZCARD', KEYS[1])
+local oldest = redis.call('ZRANGE', KEYS[1], 0, 0, 'WITHSCORES')
+local age = 0
+if #oldest > 0 then
+  local time = redis.call('TIME')
+  local now = time[1] * 1000 + math.floor(time[2] / 1000)
+  age = now - tonumber(oldest[2])
+end
+return {depth, working, age}
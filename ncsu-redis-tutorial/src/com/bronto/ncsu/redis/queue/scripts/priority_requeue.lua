@@ -0,0 +1,18 @@
+-- Moves dequeued items from the working set back to the end of the list for
+-- their priority, which is the first byte of their stored value. Items which
+-- are not currently dequeued are ignored. Returns the number of items
+-- requeued.
+--
+-- KEYS[1] working zset, KEYS[2] values hash, KEYS[3..n] priority lists from
+-- the lowest priority to the highest
+-- ARGV item keys
+local count = 0
+for _, key in ipairs(ARGV) do
+  if redis.call('ZREM', KEYS[1], key) == 1 then
+    local value = redis.call('HGET', KEYS[2], key)
+    local list = math.min(3 + (value and string.byte(value, 1) or 0), #KEYS)
+    redis.call('LPUSH', KEYS[list], key)
+    count = count + 1
+  end
+end
+return count
@@ -0,0 +1,31 @@
+-- Removes dequeued items from the working set and deletes their values and
+-- attempt counts. Items which are not currently dequeued are ignored.
+-- Returns the number of items released.
+--
+-- Items are given as in find_member.lua. Inline items have no value in the
+-- values hash, so only the values of items dequeued by key are deleted.
+--
+-- KEYS[1] working zset, KEYS[2] values hash, KEYS[3] attempts hash
+-- ARGV[1] 1 to search the working set for inline entries, otherwise 0,
+-- ARGV[2..n] item key and expected inline entry pairs
+
+-- Items have attempt counts if dequeue counts attempts or they were requeued
+-- with a delay, so the attempts hash only goes unused by queues doing neither
+local counted = redis.call('EXISTS', KEYS[3]) == 1
+local search = ARGV[1] == '1'
+local count = 0
+for i = 2, #ARGV, 2 do
+  local key = ARGV[i]
+  local member = findMember(KEYS[1], key, ARGV[i + 1], search)
+  if member then
+    redis.call('ZREM', KEYS[1], member)
+    if member == key then
+      redis.call('HDEL', KEYS[2], key)
+    end
+    if counted then
+      redis.call('HDEL', KEYS[3], key)
+    end
+    count = count + 1
+  end
+end
+return count
@@ -0,0 +1,22 @@
+-- Moves dequeued items from the working set back to the end of the queue.
+-- Items which are not currently dequeued are ignored. Returns the number of
+-- items requeued.
+--
+-- Items are given as in find_member.lua, and go back to the queue as they
+-- were dequeued, by key or as inline entries.
+--
+-- KEYS[1] working zset, KEYS[2] queue list
+-- ARGV[1] 1 to search the working set for inline entries, otherwise 0,
+-- ARGV[2..n] item key and expected inline entry pairs
+
+local search = ARGV[1] == '1'
+local count = 0
+for i = 2, #ARGV, 2 do
+  local member = findMember(KEYS[1], ARGV[i], ARGV[i + 1], search)
+  if member then
+    redis.call('ZREM', KEYS[1], member)
+    redis.call('LPUSH', KEYS[2], member)
+    count = count + 1
+  end
+end
+return count
@@ -0,0 +1,48 @@
+-- Moves dequeued items from the working set to the delayed set, to be moved
+-- to the end of the queue by dequeue once they are due. Each item is delayed
+-- by the initial delay times the multiplier to the power of its previous
+-- attempts, up to the maximum delay. Unless dequeue already counts attempts,
+-- the item's attempt count is incremented here.
+-- Items which are not currently dequeued are ignored. Returns the number of
+-- items requeued.
+--
+-- Items are given as in find_member.lua, and are delayed as they were
+-- dequeued, by key or as inline entries.
+--
+-- KEYS[1] working zset, KEYS[2] delayed zset, KEYS[3] attempts hash
+-- ARGV[1] initial delay in milliseconds, ARGV[2] multiplier, ARGV[3] maximum
+-- delay in milliseconds, ARGV[4] 1 if dequeue counts attempts, otherwise 0,
+-- ARGV[5] 1 to search the working set for inline entries, otherwise 0,
+-- ARGV[6..n] item key and expected inline entry pairs
+
+-- Use the server clock so scores do not depend on client clock skew. Scripts
+-- which read the clock must replicate their effects rather than the script.
+if redis.replicate_commands then
+  redis.replicate_commands()
+end
+
+local time = redis.call('TIME')
+local now = time[1] * 1000 + math.floor(time[2] / 1000)
+local initial = tonumber(ARGV[1])
+local multiplier = tonumber(ARGV[2])
+local max = tonumber(ARGV[3])
+local counted = ARGV[4] == '1'
+local search = ARGV[5] == '1'
+local count = 0
+for i = 6, #ARGV, 2 do
+  local key = ARGV[i]
+  local member = findMember(KEYS[1], key, ARGV[i + 1], search)
+  if member then
+    redis.call('ZREM', KEYS[1], member)
+    local attempts
+    if counted then
+      attempts = tonumber(redis.call('HGET', KEYS[3], key) or 1)
+    else
+      attempts = redis.call('HINCRBY', KEYS[3], key, 1)
+    end
+    local delay = math.min(max, math.floor(initial * multiplier ^ (attempts - 1)))
+    redis.call('ZADD', KEYS[2], now + delay, member)
+    count = count + 1
+  end
+end
+return count
@@ -0,0 +1,27 @@
+-- Adds items to the delayed set, scored by the time they are due, the
+-- current time plus the given delay, and stores the values of those which
+-- are not inline in the same call. Dequeue moves them to the end of the
+-- queue once they are due.
+--
+-- KEYS[1] delayed zset, KEYS[2] values hash, which may be left out if no
+-- values are stored
+-- ARGV[1] delay in milliseconds, ARGV[2] number n of values to store,
+-- ARGV[3..2n+2] key and value pairs to store in the values hash,
+-- ARGV[2n+3..] item keys or inline entries
+
+-- Use the server clock so scores do not depend on client clock skew. Scripts
+-- which read the clock must replicate their effects rather than the script.
+if redis.replicate_commands then
+  redis.replicate_commands()
+end
+local time = redis.call('TIME')
+local now = time[1] * 1000 + math.floor(time[2] / 1000)
+local due = now + math.max(0, tonumber(ARGV[1]))
+local hashed = tonumber(ARGV[2])
+for i = 3, hashed * 2 + 2, 2 do
+  redis.call('HSET', KEYS[2], ARGV[i], ARGV[i + 1])
+end
+for i = hashed * 2 + 3, #ARGV do
+  redis.call('ZADD', KEYS[1], due, ARGV[i])
+end
+return #ARGV - hashed * 2 - 2
@@ -0,0 +1,42 @@
+-- Requeues every entry pending for a consumer as a new entry at the end of
+-- the stream, deleting the old ones, and then deletes the consumer from the
+-- group. Entries trimmed from the stream while pending are acknowledged.
+-- Returns the number of items requeued.
+--
+-- KEYS[1] stream
+-- ARGV[1] group, ARGV[2] consumer, ARGV[3] maximum length of the stream, or
+-- 0 for no limit
+
+-- Entry ids are generated from the server clock, so replicate the effects
+if redis.replicate_commands then
+  redis.replicate_commands()
+end
+if redis.call('EXISTS', KEYS[1]) == 0 then
+  return 0
+end
+local CHUNK_SIZE = 1000
+local maxLen = tonumber(ARGV[3])
+local count = 0
+while true do
+  local pending = redis.call('XPENDING', KEYS[1], ARGV[1], '-', '+', CHUNK_SIZE, ARGV[2])
+  if #pending == 0 then
+    break
+  end
+  for _, entry in ipairs(pending) do
+    local id = entry[1]
+    local entries = redis.call('XRANGE', KEYS[1], id, id)
+    if #entries > 0 then
+      local fields = entries[1][2]
+      if maxLen > 0 then
+        redis.call('XADD', KEYS[1], 'MAXLEN', '~', maxLen, '*', 'k', fields[2], 'v', fields[4])
+      else
+        redis.call('XADD', KEYS[1], '*', 'k', fields[2], 'v', fields[4])
+      end
+      redis.call('XDEL', KEYS[1], id)
+      count = count + 1
+    end
+    redis.call('XACK', KEYS[1], ARGV[1], id)
+  end
+end
+redis.call('XGROUP', 'DELCONSUMER', KEYS[1], ARGV[1], ARGV[2])
+return count
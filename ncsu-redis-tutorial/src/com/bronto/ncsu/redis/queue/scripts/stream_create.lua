@@ -0,0 +1,12 @@
+-- Creates the consumer group of a stream, creating the stream too if it
+-- does not exist. The group starts from the beginning of the stream, so
+-- items added before it was created are delivered. Does nothing if the
+-- group already exists.
+--
+-- KEYS[1] stream
+-- ARGV[1] group
+local result = redis.pcall('XGROUP', 'CREATE', KEYS[1], ARGV[1], '0', 'MKSTREAM')
+if type(result) == 'table' and result.err and not string.find(result.err, 'BUSYGROUP', 1, true) then
+  return result
+end
+return 0
@@ -0,0 +1,45 @@
+-- Reads up to the given number of new entries from a stream for a consumer
+-- of its group, which adds them to the group's pending entries, and returns
+-- their entry ids, item keys and values as a flat list of triples.
+--
+-- First, up to the given number of delayed items which are due are added to
+-- the end of the stream, earliest first. Delayed items are members of the
+-- delayed set made of their key and value joined by a NUL byte.
+--
+-- KEYS[1] stream, KEYS[2] delayed zset
+-- ARGV[1] group, ARGV[2] consumer, ARGV[3] maximum number of items,
+-- ARGV[4] maximum number of delayed items to add, ARGV[5] maximum length of
+-- the stream, or 0 for no limit
+
+-- Use the server clock so scores do not depend on client clock skew. Scripts
+-- which read the clock must replicate their effects rather than the script.
+if redis.replicate_commands then
+  redis.replicate_commands()
+end
+local time = redis.call('TIME')
+local now = time[1] * 1000 + math.floor(time[2] / 1000)
+local maxLen = tonumber(ARGV[5])
+local due = redis.call('ZRANGEBYSCORE', KEYS[2], '-inf', now, 'LIMIT', 0, ARGV[4])
+for _, member in ipairs(due) do
+  local sep = string.find(member, '\0', 1, true)
+  local key = string.sub(member, 1, sep - 1)
+  local value = string.sub(member, sep + 1)
+  if maxLen > 0 then
+    redis.call('XADD', KEYS[1], 'MAXLEN', '~', maxLen, '*', 'k', key, 'v', value)
+  else
+    redis.call('XADD', KEYS[1], '*', 'k', key, 'v', value)
+  end
+  redis.call('ZREM', KEYS[2], member)
+end
+
+local result = {}
+local reply = redis.call('XREADGROUP', 'GROUP', ARGV[1], ARGV[2], 'COUNT', ARGV[3], 'STREAMS', KEYS[1], '>')
+if reply then
+  for _, entry in ipairs(reply[1][2]) do
+    local fields = entry[2]
+    result[#result + 1] = entry[1]
+    result[#result + 1] = fields[2]
+    result[#result + 1] = fields[4]
+  end
+end
+return result
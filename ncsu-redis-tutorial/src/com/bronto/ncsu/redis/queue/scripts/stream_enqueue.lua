@@ -0,0 +1,22 @@
+-- Adds items to the end of a stream, each as an entry with the item key in
+-- field k and the value in field v. If a maximum length is given the stream
+-- is trimmed to about that length, dropping its oldest entries. Returns the
+-- number of items added.
+--
+-- KEYS[1] stream
+-- ARGV[1] maximum length, or 0 for no limit, ARGV[2..n] item key and value
+-- pairs
+
+-- Entry ids are generated from the server clock, so replicate the effects
+if redis.replicate_commands then
+  redis.replicate_commands()
+end
+local maxLen = tonumber(ARGV[1])
+for i = 2, #ARGV, 2 do
+  if maxLen > 0 then
+    redis.call('XADD', KEYS[1], 'MAXLEN', '~', maxLen, '*', 'k', ARGV[i], 'v', ARGV[i + 1])
+  else
+    redis.call('XADD', KEYS[1], '*', 'k', ARGV[i], 'v', ARGV[i + 1])
+  end
+end
+return (#ARGV - 1) / 2
@@ -0,0 +1,12 @@
+-- Claims pending entries for the given consumer, which restarts the time
+-- they have been idle. Entries which are not pending are ignored. Returns
+-- the ids of the entries claimed.
+--
+-- KEYS[1] stream
+-- ARGV[1] group, ARGV[2] consumer, ARGV[3..n] entry ids
+local ids = {}
+for i = 3, #ARGV do
+  ids[#ids + 1] = ARGV[i]
+end
+ids[#ids + 1] = 'JUSTID'
+return redis.call('XCLAIM', KEYS[1], ARGV[1], ARGV[2], 0, unpack(ids))
@@ -0,0 +1,16 @@
+-- Returns the number of items waiting in a stream and its delayed set, the
+-- number of entries pending for its group and the number of milliseconds
+-- the oldest pending entry has been idle.
+--
+-- Released entries are deleted, so every entry in the stream is either
+-- waiting or pending.
+--
+-- KEYS[1] stream, KEYS[2] delayed zset
+-- ARGV[1] group
+local pending = redis.call('XPENDING', KEYS[1], ARGV[1])[1]
+local depth = redis.call('XLEN', KEYS[1]) - pending + redis.call('ZCARD', KEYS[2])
+local age = 0
+if pending > 0 then
+  age = redis.call('XPENDING', KEYS[1], ARGV[1], '-', '+', 1)[1][3]
+end
+return {depth, pending, age}
@@ -0,0 +1,20 @@
+-- Acknowledges pending entries and deletes them from the stream, and
+-- deletes the attempt counts of their items. Entries which are not pending
+-- are ignored. Returns the number of entries released.
+--
+-- KEYS[1] stream, KEYS[2] attempts hash
+-- ARGV[1] group, ARGV[2..n] entry id and item key pairs
+
+-- Only items requeued with a delay have attempt counts
+local counted = redis.call('EXISTS', KEYS[2]) == 1
+local count = 0
+for i = 2, #ARGV, 2 do
+  if redis.call('XACK', KEYS[1], ARGV[1], ARGV[i]) == 1 then
+    redis.call('XDEL', KEYS[1], ARGV[i])
+    if counted then
+      redis.call('HDEL', KEYS[2], ARGV[i + 1])
+    end
+    count = count + 1
+  end
+end
+return count
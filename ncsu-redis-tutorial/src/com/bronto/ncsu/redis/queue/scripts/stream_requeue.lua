@@ -0,0 +1,53 @@
+-- Acknowledges pending entries and adds their items to the end of the
+-- stream as new entries, deleting the old ones. Entries which are not
+-- pending, or were trimmed from the stream, are ignored. Returns the number
+-- of items requeued.
+--
+-- If an initial delay is given the items are added to the delayed set
+-- instead, as in requeue_delayed.lua, each delayed by the initial delay
+-- times the multiplier to the power of its previous attempts, up to the
+-- maximum delay, and their attempt counts are incremented.
+--
+-- KEYS[1] stream, KEYS[2] delayed zset, KEYS[3] attempts hash
+-- ARGV[1] group, ARGV[2] maximum length of the stream, or 0 for no limit,
+-- ARGV[3] initial delay in milliseconds, or -1 to requeue immediately,
+-- ARGV[4] multiplier, ARGV[5] maximum delay in milliseconds,
+-- ARGV[6..n] entry ids
+
+-- Use the server clock so scores do not depend on client clock skew. Scripts
+-- which read the clock must replicate their effects rather than the script.
+if redis.replicate_commands then
+  redis.replicate_commands()
+end
+local time = redis.call('TIME')
+local now = time[1] * 1000 + math.floor(time[2] / 1000)
+local maxLen = tonumber(ARGV[2])
+local initial = tonumber(ARGV[3])
+local multiplier = tonumber(ARGV[4])
+local max = tonumber(ARGV[5])
+local count = 0
+for i = 6, #ARGV do
+  local id = ARGV[i]
+  local entries = redis.call('XRANGE', KEYS[1], id, id)
+  if #entries == 0 then
+    -- Trimmed from the stream while pending, so the item is lost. Drop it
+    -- from the pending entries rather than leave it there for good.
+    redis.call('XACK', KEYS[1], ARGV[1], id)
+  elseif redis.call('XACK', KEYS[1], ARGV[1], id) == 1 then
+    local fields = entries[1][2]
+    if initial < 0 then
+      if maxLen > 0 then
+        redis.call('XADD', KEYS[1], 'MAXLEN', '~', maxLen, '*', 'k', fields[2], 'v', fields[4])
+      else
+        redis.call('XADD', KEYS[1], '*', 'k', fields[2], 'v', fields[4])
+      end
+    else
+      local attempts = redis.call('HINCRBY', KEYS[3], fields[2], 1)
+      local delay = math.min(max, math.floor(initial * multiplier ^ (attempts - 1)))
+      redis.call('ZADD', KEYS[2], now + delay, fields[2] .. '\0' .. fields[4])
+    end
+    redis.call('XDEL', KEYS[1], id)
+    count = count + 1
+  end
+end
+return count
@@ -0,0 +1,68 @@
+-- Claims up to the given number of pending entries which have been idle for
+-- at least the given time, and requeues them as new entries at the end of
+-- the stream, deleting the old ones. Returns the cursor to carry on from,
+-- which is 0-0 once the end of the pending entries is reached, followed by
+-- the old entry id and item key of each item requeued.
+--
+-- Each XAUTOCLAIM scans at most ten times its count of pending entries from
+-- the cursor, and a call makes at most MAX_CLAIMS of them, so the cost of a
+-- call is bounded by the limit. Scanning carries on from the cursor, so
+-- entries which are pending but not yet abandoned do not keep the sweep from
+-- reaching those behind them.
+--
+-- Entries trimmed from the stream while pending can not be requeued. Redis 7
+-- drops them from the pending entries itself. Redis 6.2 claims them for the
+-- sweeper and returns them as nil, without their ids, so once the other
+-- entries are acknowledged any still pending for the sweeper were trimmed,
+-- and are acknowledged too.
+--
+-- KEYS[1] stream
+-- ARGV[1] group, ARGV[2] consumer to claim entries for, ARGV[3] minimum idle
+-- time in milliseconds, ARGV[4] maximum number of items, ARGV[5] maximum
+-- length of the stream, or 0 for no limit, ARGV[6] cursor to start from
+
+-- Entry ids are generated from the server clock, so replicate the effects
+if redis.replicate_commands then
+  redis.replicate_commands()
+end
+local MAX_CLAIMS = 10
+local limit = tonumber(ARGV[4])
+local maxLen = tonumber(ARGV[5])
+local cursor = ARGV[6]
+local result = {}
+local ids = {}
+local trimmed = 0
+for _ = 1, MAX_CLAIMS do
+  local reply = redis.call('XAUTOCLAIM', KEYS[1], ARGV[1], ARGV[2], ARGV[3], cursor, 'COUNT', limit - #ids)
+  cursor = reply[1]
+  for _, entry in ipairs(reply[2]) do
+    if entry and entry[2] then
+      local fields = entry[2]
+      if maxLen > 0 then
+        redis.call('XADD', KEYS[1], 'MAXLEN', '~', maxLen, '*', 'k', fields[2], 'v', fields[4])
+      else
+        redis.call('XADD', KEYS[1], '*', 'k', fields[2], 'v', fields[4])
+      end
+      ids[#ids + 1] = entry[1]
+      result[#result + 1] = entry[1]
+      result[#result + 1] = fields[2]
+    else
+      trimmed = trimmed + 1
+    end
+  end
+  if #ids >= limit or cursor == '0-0' then
+    break
+  end
+end
+
+if #ids > 0 then
+  redis.call('XACK', KEYS[1], ARGV[1], unpack(ids))
+  redis.call('XDEL', KEYS[1], unpack(ids))
+end
+if trimmed > 0 then
+  for _, pending in ipairs(redis.call('XPENDING', KEYS[1], ARGV[1], '-', '+', trimmed, ARGV[2])) do
+    redis.call('XACK', KEYS[1], ARGV[1], pending[1])
+  end
+end
+table.insert(result, 1, cursor)
+return result
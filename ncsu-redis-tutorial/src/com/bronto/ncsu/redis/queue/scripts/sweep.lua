@@ -0,0 +1,21 @@
+-- Moves up to the given number of items whose lease deadline passed at least
+-- the given grace period ago from the working set back to the end of the
+-- queue, oldest deadline first. Returns the number of items requeued.
+-- Items go back as they were dequeued, by key or as inline entries.
+--
+-- KEYS[1] working zset, KEYS[2] queue list
+-- ARGV[1] grace period in milliseconds, ARGV[2] maximum number of items
+
+-- Use the server clock so scores do not depend on client clock skew. Scripts
+-- which read the clock must replicate their effects rather than the script.
+if redis.replicate_commands then
+  redis.replicate_commands()
+end
+local time = redis.call('TIME')
+local now = time[1] * 1000 + math.floor(time[2] / 1000)
+local keys = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', now - tonumber(ARGV[1]), 'LIMIT', 0, ARGV[2])
+for _, key in ipairs(keys) do
+  redis.call('LPUSH', KEYS[2], key)
+  redis.call('ZREM', KEYS[1], key)
+end
+return #keys
@@ -0,0 +1,175 @@
+package com.bronto.ncsu.redis.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.bronto.ncsu.redis.codec.Codecs;
+import com.bronto.ncsu.redis.queue.AsyncWorkQueue;
+import com.bronto.ncsu.redis.queue.CommandPipeline;
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.ReliableWorkQueue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+public class AsyncTests extends TestBase {
+
+  private CommandPipeline pipeline;
+
+  @After
+  public void closePipeline() {
+    if (pipeline != null) {
+      pipeline.close();
+    }
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    AsyncWorkQueue<String> queue = createAsyncQueue(createReliableQueue(randomQueueName()));
+    Item<String> item1 = createItem("foo001");
+    Item<String> item2 = createItem("foo002");
+    Item<String> item3 = createItem("foo003");
+    queue.enqueueAsync(item1).get();
+    queue.enqueueAllAsync(ImmutableList.of(item2, item3)).get();
+
+    assertEquals(item1, queue.dequeueAsync().get());
+    assertEquals(ImmutableList.of(item2, item3), queue.dequeueBatchAsync(5).get());
+    assertNull(queue.dequeueAsync().get());
+
+    assertTrue(queue.extendLeaseAsync(item1, 1000).get());
+    queue.requeueAsync(item1).get();
+    queue.releaseAllAsync(ImmutableList.of(item2, item3)).get();
+    assertFalse(queue.extendLeaseAsync(item2, 1000).get());
+    assertEquals(item1, queue.dequeueAsync().get());
+  }
+
+  // Tests that the async queue shares its items with the synchronous one
+  @Test
+  public void testSharesQueueWithReliableQueue() throws Exception {
+    ReliableWorkQueue<String> syncQueue = new ReliableWorkQueue<String>(connections(), randomQueueName(),
+        Codecs.utf8(), 16);
+    AsyncWorkQueue<String> queue = createAsyncQueue(syncQueue);
+    Item<String> inline = createItem("foo001");
+    Item<String> hashed = createItem("a value too long to store inline");
+    queue.enqueueAllAsync(ImmutableList.of(inline, hashed)).get();
+
+    assertEquals(ImmutableList.of(inline, hashed), syncQueue.dequeueBatch(2));
+    syncQueue.requeue(hashed);
+    queue.releaseAsync(inline).get();
+    assertEquals(hashed, queue.dequeueAsync().get());
+    assertEquals(1, syncQueue.sampleGauges().getWorkingCount());
+
+    Thread.sleep(10);
+    assertEquals(Integer.valueOf(1), queue.sweepAsync(0, 10).get());
+    assertEquals(hashed, syncQueue.dequeue());
+  }
+
+  // Tests that calls made while a batch is in flight share the next one
+  @Test
+  public void testConcurrentCallsAreCoalesced() throws Exception {
+    AsyncWorkQueue<String> queue = createAsyncQueue(createReliableQueue(randomQueueName()));
+    List<ListenableFuture<Void>> enqueues = Lists.newArrayList();
+    Set<Item<String>> items = Sets.newHashSet();
+    for (int i = 0; i < 1000; i++) {
+      Item<String> item = createItem("foo" + i);
+      items.add(item);
+      enqueues.add(queue.enqueueAsync(item));
+    }
+    Futures.allAsList(enqueues).get();
+
+    List<ListenableFuture<Item<String>>> dequeues = Lists.newArrayList();
+    for (int i = 0; i < 1000; i++) {
+      dequeues.add(queue.dequeueAsync());
+    }
+    assertEquals(items, Sets.newHashSet(Futures.allAsList(dequeues).get()));
+
+    assertEquals(2000, pipeline.getCallCount());
+    assertTrue(pipeline.getBatchCount() < 1000);
+  }
+
+  // Tests that a call fails alone without failing the rest of its batch
+  @Test
+  public void testErrorFailsOnlyItsCall() throws Exception {
+    final String queueName = randomQueueName();
+    AsyncWorkQueue<String> queue = createAsyncQueue(createReliableQueue(queueName));
+    withConnection(new JedisOperation<String>() {
+      @Override
+      public String execute(Jedis conn) {
+        return conn.set(queueName + "working", "not a zset");
+      }
+    });
+
+    Item<String> item = createItem("foo001");
+    ListenableFuture<Void> enqueue = queue.enqueueAsync(item);
+    ListenableFuture<Item<String>> dequeue = queue.dequeueAsync();
+    enqueue.get();
+    try {
+      dequeue.get();
+      fail("dequeue should fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof JedisDataException);
+    }
+  }
+
+  // Tests that calls are retried once their script is loaded
+  @Test
+  public void testScriptFlush() throws Exception {
+    AsyncWorkQueue<String> queue = createAsyncQueue(createReliableQueue(randomQueueName()));
+    Item<String> item = createItem("foo001");
+    queue.enqueueAsync(item).get();
+    withConnection(new JedisOperation<String>() {
+      @Override
+      public String execute(Jedis conn) {
+        return conn.scriptFlush();
+      }
+    });
+
+    ListenableFuture<Item<String>> dequeue = queue.dequeueAsync();
+    ListenableFuture<Item<String>> empty = queue.dequeueAsync();
+    assertEquals(item, dequeue.get());
+    assertNull(empty.get());
+  }
+
+  @Test
+  public void testClose() throws Exception {
+    AsyncWorkQueue<String> queue = createAsyncQueue(createReliableQueue(randomQueueName()));
+    ListenableFuture<Void> enqueue = queue.enqueueAsync(createItem("foo001"));
+    pipeline.close();
+
+    // Calls submitted before close are still sent
+    enqueue.get();
+    try {
+      queue.dequeueAsync().get();
+      fail("dequeue should fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  private ReliableWorkQueue<String> createReliableQueue(String name) {
+    return new ReliableWorkQueue<String>(connections(), name, Codecs.utf8());
+  }
+
+  private AsyncWorkQueue<String> createAsyncQueue(ReliableWorkQueue<String> queue) {
+    if (pipeline == null) {
+      pipeline = new CommandPipeline(connections());
+    }
+    return new AsyncWorkQueue<String>(queue, pipeline);
+  }
+}
@@ -0,0 +1,158 @@
+package com.bronto.ncsu.redis.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.bronto.ncsu.redis.codec.Codecs;
+import com.bronto.ncsu.redis.queue.AsyncWorkQueue;
+import com.bronto.ncsu.redis.queue.CommandPipeline;
+import com.bronto.ncsu.redis.queue.DepthLimit;
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.QueueFullException;
+import com.bronto.ncsu.redis.queue.ReliableWorkQueue;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import redis.clients.jedis.Jedis;
+
+public class BackpressureTests extends TestBase {
+
+  @Test
+  public void testReject() {
+    ReliableWorkQueue<String> queue = createLimitedQueue(randomQueueName(), DepthLimit.reject(3));
+    Item<String> item1 = createItem("foo001");
+    Item<String> item2 = createItem("foo002");
+    Item<String> item3 = createItem("foo003");
+    queue.enqueueAll(ImmutableList.of(item1, item2));
+
+    // A batch which does not fit is not enqueued at all
+    try {
+      queue.enqueueAll(ImmutableList.of(createItem("foo004"), createItem("foo005")));
+      fail("enqueue should be rejected");
+    } catch (QueueFullException e) {
+      // Expected
+    }
+    queue.enqueue(item3);
+    assertEquals(3, queue.sampleGauges().getDepth());
+
+    // Dequeued items do not count
+    assertEquals(item1, queue.dequeue());
+    Item<String> item4 = createItem("foo004");
+    queue.enqueue(item4);
+    assertEquals(ImmutableList.of(item2, item3, item4), queue.dequeueBatch(5));
+  }
+
+  @Test
+  public void testDropOldest() {
+    final String queueName = randomQueueName();
+    ReliableWorkQueue<String> queue = new ReliableWorkQueue<String>(connections(), null, queueName,
+        Codecs.utf8(), 8, 0, DepthLimit.dropOldest(2));
+    final Item<String> hashed = createItem("a value too long to store inline");
+    Item<String> item2 = createItem("foo002");
+    Item<String> item3 = createItem("foo003");
+    queue.enqueue(hashed);
+    queue.enqueueAll(ImmutableList.of(item2, item3));
+
+    assertEquals(ImmutableList.of(item2, item3), queue.dequeueBatch(5));
+    // The dropped item's value is deleted
+    assertFalse(withConnection(new JedisOperation<Boolean>() {
+      @Override
+      public Boolean execute(Jedis conn) {
+        return conn.hexists(queueName + "values", hashed.getKey());
+      }
+    }));
+  }
+
+  @Test
+  public void testBlockUntilRoom() throws Exception {
+    final ReliableWorkQueue<String> queue = createLimitedQueue(randomQueueName(),
+        DepthLimit.block(1, 5, TimeUnit.SECONDS));
+    Item<String> item1 = createItem("foo001");
+    Item<String> item2 = createItem("foo002");
+    queue.enqueue(item1);
+
+    Future<Item<String>> consumer = ex.submit(new Callable<Item<String>>() {
+      @Override
+      public Item<String> call() throws Exception {
+        Thread.sleep(200);
+        return queue.dequeue();
+      }
+    });
+    Stopwatch sw = Stopwatch.createStarted();
+    queue.enqueue(item2);
+    assertTrue(sw.elapsed(TimeUnit.MILLISECONDS) >= 150);
+    assertEquals(item1, consumer.get());
+    assertEquals(item2, queue.dequeue());
+  }
+
+  @Test
+  public void testBlockTimesOut() {
+    ReliableWorkQueue<String> queue = createLimitedQueue(randomQueueName(),
+        DepthLimit.block(1, 100, TimeUnit.MILLISECONDS));
+    queue.enqueue(createItem("foo001"));
+
+    Stopwatch sw = Stopwatch.createStarted();
+    try {
+      queue.enqueue(createItem("foo002"));
+      fail("enqueue should time out");
+    } catch (QueueFullException e) {
+      assertTrue(sw.elapsed(TimeUnit.MILLISECONDS) >= 100);
+    }
+    assertEquals(1, queue.sampleGauges().getDepth());
+  }
+
+  @Test
+  public void testCachedDepth() throws Exception {
+    String queueName = randomQueueName();
+    ReliableWorkQueue<String> producer = createLimitedQueue(queueName, DepthLimit.reject(10));
+    ReliableWorkQueue<String> consumer = createLimitedQueue(queueName, DepthLimit.reject(10));
+    producer.enqueueAll(ImmutableList.of(createItem("foo001"), createItem("foo002"), createItem("foo003")));
+    producer.enqueue(createItem("foo004"));
+    assertEquals(4, producer.getCachedDepth());
+    assertEquals(6, producer.getRemainingCapacity());
+
+    // The producer does not see the dequeue until its cached depth expires
+    consumer.dequeue();
+    assertEquals(4, producer.getCachedDepth());
+    Thread.sleep(150);
+    assertEquals(3, producer.getCachedDepth());
+    assertEquals(Long.MAX_VALUE, new ReliableWorkQueue<String>(connections(), queueName, Codecs.utf8())
+        .getRemainingCapacity());
+  }
+
+  @Test
+  public void testAsyncReject() throws Exception {
+    ReliableWorkQueue<String> queue = createLimitedQueue(randomQueueName(), DepthLimit.reject(1));
+    CommandPipeline pipeline = new CommandPipeline(connections());
+    try {
+      AsyncWorkQueue<String> asyncQueue = new AsyncWorkQueue<String>(queue, pipeline);
+      Item<String> item = createItem("foo001");
+      asyncQueue.enqueueAsync(item).get();
+      try {
+        asyncQueue.enqueueAsync(createItem("foo002")).get();
+        fail("enqueue should be rejected");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof QueueFullException);
+      }
+      assertEquals(item, queue.dequeue());
+      assertNull(queue.dequeue());
+    } finally {
+      pipeline.close();
+    }
+  }
+
+  private ReliableWorkQueue<String> createLimitedQueue(String name, DepthLimit depthLimit) {
+    return new ReliableWorkQueue<String>(connections(), null, name, Codecs.utf8(), 0, 0, depthLimit);
+  }
+}
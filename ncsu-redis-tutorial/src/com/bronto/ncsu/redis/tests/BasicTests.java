@@ -110,4 +110,33 @@ public class BasicTests extends TestBase {
         ImmutableSet.of(queue.dequeue(), queue.dequeue())
     );
   }
+
+  // Tests that a limited sweep requeues the oldest items first and can be
+  // resumed by calling it again
+  @Test
+  public void testSweepWithLimit() throws Exception {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    Item<String> item1 = createItem("foo001");
+    Item<String> item2 = createItem("foo002");
+    Item<String> item3 = createItem("foo003");
+
+    queue.enqueue(item1);
+    queue.enqueue(item2);
+    queue.enqueue(item3);
+
+    queue.dequeue();
+    Thread.sleep(10);
+    queue.dequeue();
+    Thread.sleep(10);
+    queue.dequeue();
+    Thread.sleep(500);
+
+    assertEquals(2, queue.sweep(500, 2));
+    assertEquals(1, queue.sweep(500, 2));
+    assertEquals(0, queue.sweep(500));
+
+    assertEquals(item1, queue.dequeue());
+    assertEquals(item2, queue.dequeue());
+    assertEquals(item3, queue.dequeue());
+  }
 }
@@ -0,0 +1,65 @@
+package com.bronto.ncsu.redis.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.WorkQueue;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.List;
+
+public class BatchTests extends TestBase {
+
+  @Test
+  public void testDequeueBatchEmptyQueue() {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    assertTrue(queue.dequeueBatch(10).isEmpty());
+  }
+
+  // Tests that batches keep FIFO order and stop at the end of the queue
+  @Test
+  public void testEnqueueAllDequeueBatch() {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    List<Item<String>> items = ImmutableList.of(
+        createItem("foo001"), createItem("foo002"), createItem("foo003"));
+
+    queue.enqueueAll(items);
+
+    assertEquals(items.subList(0, 2), queue.dequeueBatch(2));
+    assertEquals(items.subList(2, 3), queue.dequeueBatch(2));
+    assertTrue(queue.dequeueBatch(2).isEmpty());
+  }
+
+  @Test
+  public void testReleaseAll() {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    queue.enqueueAll(ImmutableList.of(createItem("foo001"), createItem("foo002")));
+
+    List<Item<String>> items = queue.dequeueBatch(2);
+    queue.releaseAll(items);
+
+    // Released items should not be requeued
+    queue.requeueAll(items);
+    assertNull(queue.dequeue());
+  }
+
+  @Test
+  public void testRequeueAllGoesToEnd() {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    List<Item<String>> items = ImmutableList.of(
+        createItem("foo001"), createItem("foo002"), createItem("foo003"));
+    queue.enqueueAll(items);
+
+    // Requeue the first two items twice. The second requeue should do nothing.
+    List<Item<String>> batch = queue.dequeueBatch(2);
+    queue.requeueAll(batch);
+    queue.requeueAll(batch);
+
+    assertEquals(ImmutableList.of(items.get(2), items.get(0), items.get(1)), queue.dequeueBatch(10));
+  }
+}
@@ -0,0 +1,73 @@
+package com.bronto.ncsu.redis.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.WorkQueue;
+
+import com.google.common.base.Stopwatch;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class BlockingDequeueTests extends TestBase {
+
+  @Test
+  public void testTimesOutOnEmptyQueue() {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+
+    Stopwatch sw = Stopwatch.createStarted();
+    assertNull(queue.dequeue(1, TimeUnit.SECONDS));
+    assertTrue(sw.elapsed(TimeUnit.MILLISECONDS) >= 1000);
+  }
+
+  // Tests that a timeout shorter than a second is not rounded up
+  @Test
+  public void testShortTimeout() {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+
+    Stopwatch sw = Stopwatch.createStarted();
+    assertNull(queue.dequeue(100, TimeUnit.MILLISECONDS));
+    long elapsed = sw.elapsed(TimeUnit.MILLISECONDS);
+    assertTrue(elapsed >= 100 && elapsed < 300);
+  }
+
+  @Test
+  public void testReturnsImmediatelyWhenNotEmpty() {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    queue.enqueue(createItem("foo001"));
+
+    assertEquals("foo001", queue.dequeue(1, TimeUnit.SECONDS).getValue());
+  }
+
+  // Tests that a waiting consumer gets an item as soon as it is enqueued
+  @Test
+  public void testWakesOnEnqueue() throws Exception {
+    final WorkQueue<String> consumer = createQueue(randomQueueName());
+    WorkQueue<String> producer = createQueue(consumer.getName());
+
+    Future<Item<String>> future = ex.submit(new Callable<Item<String>>() {
+      @Override
+      public Item<String> call() {
+        return consumer.dequeue(5, TimeUnit.SECONDS);
+      }
+    });
+
+    Thread.sleep(200);
+    Item<String> item = createItem("foo001");
+    Stopwatch sw = Stopwatch.createStarted();
+    producer.enqueue(item);
+
+    assertEquals(item, future.get());
+    assertTrue(sw.elapsed(TimeUnit.MILLISECONDS) < 1000);
+
+    // The item should be in the working state so it can be released
+    consumer.release(item);
+    assertNull(consumer.dequeue());
+  }
+}
@@ -0,0 +1,167 @@
+package com.bronto.ncsu.redis.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.bronto.ncsu.redis.codec.Codecs;
+import com.bronto.ncsu.redis.queue.CommandPipeline;
+import com.bronto.ncsu.redis.queue.ConnectionProvider;
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.ReliableWorkQueue;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+public class CoalescingTests extends TestBase {
+
+  private CommandPipeline pipeline;
+
+  @After
+  public void closePipeline() {
+    if (pipeline != null) {
+      pipeline.close();
+    }
+  }
+
+  @Test
+  public void testQueueOverPipeline() {
+    pipeline = new CommandPipeline(connections());
+    ReliableWorkQueue<String> queue = createCoalescingQueue(randomQueueName());
+    Item<String> item1 = createItem("foo001");
+    Item<String> item2 = createItem("foo002");
+    queue.enqueue(item1);
+    queue.enqueueAll(ImmutableList.of(item2));
+
+    assertEquals(item1, queue.dequeue());
+    queue.requeue(item1);
+    assertEquals(item2, queue.dequeue(1, TimeUnit.SECONDS));
+    queue.release(item2);
+    assertEquals(item1, queue.dequeue());
+    assertEquals(1, queue.sampleGauges().getWorkingCount());
+    assertTrue(pipeline.getCallCount() >= 8);
+  }
+
+  // Tests that script errors are thrown to the caller as without a pipeline
+  @Test
+  public void testErrorsAreThrown() {
+    pipeline = new CommandPipeline(connections());
+    final String queueName = randomQueueName();
+    ReliableWorkQueue<String> queue = createCoalescingQueue(queueName);
+    withConnection(new JedisOperation<String>() {
+      @Override
+      public String execute(Jedis conn) {
+        return conn.set(queueName + "working", "not a zset");
+      }
+    });
+
+    queue.enqueue(createItem("foo001"));
+    try {
+      queue.dequeue();
+      fail("dequeue should fail");
+    } catch (JedisDataException e) {
+      // Expected
+    }
+  }
+
+  // Tests that calls from threads arriving within the window share a batch
+  @Test
+  public void testWindowCoalescesCalls() throws Exception {
+    pipeline = new CommandPipeline(connections(), 1000, 200, TimeUnit.MILLISECONDS);
+    final ReliableWorkQueue<String> queue = createCoalescingQueue(randomQueueName());
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Future<Item<String>>> enqueues = Lists.newArrayList();
+    for (int i = 0; i < 10; i++) {
+      final Item<String> item = createItem("foo" + i);
+      enqueues.add(ex.submit(new Callable<Item<String>>() {
+        @Override
+        public Item<String> call() throws Exception {
+          start.await();
+          queue.enqueue(item);
+          return item;
+        }
+      }));
+    }
+    start.countDown();
+
+    Set<Item<String>> items = Sets.newHashSet();
+    for (Future<Item<String>> enqueue : enqueues) {
+      items.add(enqueue.get());
+    }
+    assertTrue(pipeline.getBatchCount() < 10);
+    assertEquals(items, Sets.newHashSet(queue.dequeueBatch(10)));
+    assertNull(queue.dequeue());
+  }
+
+  // Tests that a full batch is sent without waiting out the window
+  @Test
+  public void testFullBatchIsSentAtOnce() throws Exception {
+    pipeline = new CommandPipeline(connections(), 1, 10, TimeUnit.SECONDS);
+    ReliableWorkQueue<String> queue = createCoalescingQueue(randomQueueName());
+    Stopwatch sw = Stopwatch.createStarted();
+    queue.enqueue(createItem("foo001"));
+    assertTrue(queue.dequeue() != null);
+    assertTrue(sw.elapsed(TimeUnit.SECONDS) < 5);
+  }
+
+  // Tests that callers fail rather than wait forever once the writer dies,
+  // here because the provider throws while giving up a broken connection
+  @Test
+  public void testWriterFailureFailsCalls() throws Exception {
+    pipeline = new CommandPipeline(new ConnectionProvider() {
+      @Override
+      public Jedis getConnection() {
+        // Nothing listens on this port
+        return new Jedis("localhost", 1);
+      }
+
+      @Override
+      public void returnConnection(Jedis conn) {
+        throw new IllegalStateException("provider failed");
+      }
+    });
+    final ReliableWorkQueue<String> queue = createCoalescingQueue(randomQueueName());
+    Future<?> enqueue = ex.submit(new Runnable() {
+      @Override
+      public void run() {
+        queue.enqueue(createItem("foo001"));
+      }
+    });
+    try {
+      enqueue.get(5, TimeUnit.SECONDS);
+      fail("enqueue should fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    assertTrue(pipeline.isFailed());
+
+    // Later calls are rejected at once
+    try {
+      queue.enqueue(createItem("foo002"));
+      fail("enqueue should fail");
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+  }
+
+  private ReliableWorkQueue<String> createCoalescingQueue(String name) {
+    return new ReliableWorkQueue<String>(connections(), pipeline, name, Codecs.utf8(), 0, 0);
+  }
+}
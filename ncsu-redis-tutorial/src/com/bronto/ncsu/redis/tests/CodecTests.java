@@ -0,0 +1,130 @@
+package com.bronto.ncsu.redis.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import com.bronto.ncsu.redis.codec.Codec;
+import com.bronto.ncsu.redis.codec.Codecs;
+import com.bronto.ncsu.redis.codec.RecordCodec;
+import com.bronto.ncsu.redis.codec.RecordReader;
+import com.bronto.ncsu.redis.codec.RecordWriter;
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.ReliableWorkQueue;
+import com.bronto.ncsu.redis.queue.WorkQueue;
+import com.bronto.ncsu.redis.util.Utils;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class CodecTests extends TestBase {
+
+  private static final Codec<Job> JOB_CODEC = new RecordCodec<Job>() {
+    @Override
+    protected void write(Job job, RecordWriter out) {
+      out.writeVarint(job.id);
+      out.writeSignedVarint(job.delta);
+      out.writeString(job.name);
+      out.writeBytes(job.payload);
+    }
+
+    @Override
+    protected Job read(RecordReader in) {
+      return new Job(in.readVarint(), in.readSignedVarint(), in.readString(), in.readBytes());
+    }
+  };
+
+  @Test
+  public void testRecordRoundTrip() {
+    List<Job> jobs = ImmutableList.of(
+        new Job(0, 0, "", new byte[0]),
+        new Job(127, -1, "ascii", Utils.randomBytes(16)),
+        new Job(Long.MAX_VALUE, Long.MIN_VALUE, "caf\u00e9 \ud83d\ude00", Utils.randomBytes(1)),
+        new Job(-1, Long.MAX_VALUE, Strings.repeat("x", 100000), Utils.randomBytes(100000)));
+    for (Job job : jobs) {
+      assertEquals(job, JOB_CODEC.decode(JOB_CODEC.encode(job)));
+    }
+  }
+
+  @Test
+  public void testRecordIsCompact() {
+    // One byte for each small integer, a length byte and the characters of
+    // the name, and a length byte for the empty payload
+    assertEquals(1 + 1 + (1 + 4) + 1, JOB_CODEC.encode(new Job(1, -1, "name", new byte[0])).length);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTruncatedRecord() {
+    byte[] bytes = JOB_CODEC.encode(new Job(1, 1, "name", new byte[8]));
+    JOB_CODEC.decode(Arrays.copyOf(bytes, bytes.length - 1));
+  }
+
+  @Test
+  public void testBinaryQueue() {
+    WorkQueue<byte[]> queue = new ReliableWorkQueue<byte[]>(connections(), randomQueueName(), Codecs.bytes());
+    // Every byte value, including ones which are not valid UTF-8
+    byte[] value = new byte[256];
+    for (int i = 0; i < value.length; i++) {
+      value[i] = (byte) i;
+    }
+    queue.enqueue(new Item<byte[]>(randomKey(), value));
+    queue.enqueueAll(ImmutableList.of(new Item<byte[]>(randomKey(), new byte[0])));
+
+    Item<byte[]> item = queue.dequeue();
+    assertArrayEquals(value, item.getValue());
+    assertArrayEquals(new byte[0], queue.dequeue().getValue());
+    assertNull(queue.dequeue());
+
+    queue.requeue(item);
+    assertArrayEquals(value, queue.dequeueBatch(10).get(0).getValue());
+  }
+
+  @Test
+  public void testRecordQueue() {
+    WorkQueue<Job> queue = new ReliableWorkQueue<Job>(connections(), randomQueueName(), JOB_CODEC);
+    Job job = new Job(42, -7, "caf\u00e9", Utils.randomBytes(32));
+    queue.enqueue(new Item<Job>(randomKey(), job));
+
+    Item<Job> item = queue.dequeue();
+    assertEquals(job, item.getValue());
+    queue.release(item);
+    assertNull(queue.dequeue());
+    assertFalse(queue.extendLease(item, 1000));
+  }
+
+  private static final class Job {
+    private final long id;
+    private final long delta;
+    private final String name;
+    private final byte[] payload;
+
+    private Job(long id, long delta, String name, byte[] payload) {
+      this.id = id;
+      this.delta = delta;
+      this.name = name;
+      this.payload = payload;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Job)) {
+        return false;
+      }
+      Job other = (Job) obj;
+      return id == other.id && delta == other.delta && name.equals(other.name)
+          && Arrays.equals(payload, other.payload);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(id, delta, name);
+    }
+  }
+}
@@ -0,0 +1,178 @@
+package com.bronto.ncsu.redis.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.bronto.ncsu.redis.queue.Backoff;
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.QueueConsumerRuntime;
+import com.bronto.ncsu.redis.queue.WorkQueue;
+
+import com.google.common.collect.Sets;
+
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConsumerRuntimeTests extends TestBase {
+
+  private static final Backoff BACKOFF = Backoff.fixed(10, TimeUnit.MILLISECONDS);
+
+  @Test
+  public void testHandlesAndReleasesItems() throws Exception {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    final Set<String> handled = Sets.newConcurrentHashSet();
+    final CountDownLatch done = new CountDownLatch(100);
+    for (int i = 0; i < 100; i++) {
+      queue.enqueue(createItem("foo" + i));
+    }
+
+    QueueConsumerRuntime<String> runtime = new QueueConsumerRuntime<String>(queue,
+        new QueueConsumerRuntime.Handler<String>() {
+          @Override
+          public void handle(Item<String> item) {
+            handled.add(item.getValue());
+            done.countDown();
+          }
+        }, 8, BACKOFF);
+    runtime.start();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    runtime.close();
+
+    assertEquals(100, handled.size());
+    assertEquals(100, runtime.getReleasedCount());
+    // Released items are not swept back
+    assertEquals(0, queue.sweep(0));
+    assertNull(queue.dequeue());
+  }
+
+  @Test
+  public void testFailedItemsAreRetried() throws Exception {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    final Set<String> failed = Sets.newConcurrentHashSet();
+    final CountDownLatch done = new CountDownLatch(10);
+    for (int i = 0; i < 10; i++) {
+      queue.enqueue(createItem("foo" + i));
+    }
+
+    QueueConsumerRuntime<String> runtime = new QueueConsumerRuntime<String>(queue,
+        new QueueConsumerRuntime.Handler<String>() {
+          @Override
+          public void handle(Item<String> item) throws Exception {
+            // Fail the first attempt at each item
+            if (failed.add(item.getValue())) {
+              throw new Exception("failed " + item.getValue());
+            }
+            done.countDown();
+          }
+        }, 4, BACKOFF);
+    runtime.start();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    runtime.close();
+
+    assertEquals(10, runtime.getFailedCount());
+    assertEquals(10, runtime.getRequeuedCount());
+    assertEquals(10, runtime.getReleasedCount());
+    assertNull(queue.dequeue());
+  }
+
+  // Tests that an item whose handler throws an Error is requeued, and that
+  // its slot is freed for the next item
+  @Test
+  public void testHandlerErrorRequeuesItem() throws Exception {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    final AtomicInteger attempts = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(1);
+    queue.enqueue(createItem("foo001"));
+
+    QueueConsumerRuntime<String> runtime = new QueueConsumerRuntime<String>(queue,
+        new QueueConsumerRuntime.Handler<String>() {
+          @Override
+          public void handle(Item<String> item) {
+            if (attempts.incrementAndGet() == 1) {
+              throw new AssertionError("failed " + item.getValue());
+            }
+            done.countDown();
+          }
+        }, 1, BACKOFF);
+    runtime.start();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    runtime.close();
+
+    assertEquals(1, runtime.getFailedCount());
+    assertEquals(1, runtime.getRequeuedCount());
+    assertEquals(1, runtime.getReleasedCount());
+    assertNull(queue.dequeue());
+  }
+
+  @Test
+  public void testConcurrencyLimit() throws Exception {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(30);
+    for (int i = 0; i < 30; i++) {
+      queue.enqueue(createItem("foo" + i));
+    }
+
+    // Handlers run on a larger executor than the limit allows for
+    QueueConsumerRuntime<String> runtime = new QueueConsumerRuntime<String>(queue,
+        new QueueConsumerRuntime.Handler<String>() {
+          @Override
+          public void handle(Item<String> item) throws Exception {
+            int now = running.incrementAndGet();
+            int max;
+            while (now > (max = maxRunning.get()) && !maxRunning.compareAndSet(max, now)) {
+              // Retry
+            }
+            Thread.sleep(20);
+            running.decrementAndGet();
+            done.countDown();
+          }
+        }, ex, 3, BACKOFF);
+    runtime.start();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    runtime.close();
+
+    assertEquals(3, maxRunning.get());
+  }
+
+  // Tests that close waits for running handlers and leaves queued items
+  @Test
+  public void testGracefulDrain() throws Exception {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch finish = new CountDownLatch(1);
+    Item<String> item1 = createItem("foo001");
+    Item<String> item2 = createItem("foo002");
+    queue.enqueue(item1);
+
+    final QueueConsumerRuntime<String> runtime = new QueueConsumerRuntime<String>(queue,
+        new QueueConsumerRuntime.Handler<String>() {
+          @Override
+          public void handle(Item<String> item) throws Exception {
+            started.countDown();
+            finish.await();
+          }
+        }, 1, BACKOFF);
+    runtime.start();
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    queue.enqueue(item2);
+
+    runtime.shutdown();
+    assertFalse(runtime.awaitTermination(100, TimeUnit.MILLISECONDS));
+    assertEquals(1, runtime.getRunningCount());
+    finish.countDown();
+    assertTrue(runtime.awaitTermination(10, TimeUnit.SECONDS));
+    runtime.close();
+
+    assertEquals(1, runtime.getReleasedCount());
+    assertEquals(item2, queue.dequeue());
+    assertNull(queue.dequeue());
+  }
+}
@@ -0,0 +1,134 @@
+package com.bronto.ncsu.redis.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.bronto.ncsu.redis.codec.Codecs;
+import com.bronto.ncsu.redis.queue.Backoff;
+import com.bronto.ncsu.redis.queue.DeadLetters;
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.ReliableWorkQueue;
+import com.bronto.ncsu.redis.queue.WorkQueue;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class DeadLetterTests extends TestBase {
+
+  private static final int MAX_ATTEMPTS = 3;
+
+  @Test
+  public void testItemDiesAfterMaxAttempts() throws Exception {
+    WorkQueue<String> queue = createQueue(randomQueueName(), MAX_ATTEMPTS);
+    DeadLetters<String> deadLetters = deadLetters(queue);
+    Item<String> poison = createItem("foo001");
+    queue.enqueue(poison);
+
+    // Failures by requeue and by abandonment both count
+    queue.requeue(queue.dequeue());
+    queue.requeue(queue.dequeue());
+    assertEquals(poison, queue.dequeue());
+    Thread.sleep(10);
+    assertEquals(1, queue.sweep(0));
+
+    assertNull(queue.dequeue());
+    assertEquals(1, deadLetters.getDeadLetterCount());
+    assertEquals(ImmutableList.of(poison), deadLetters.inspectDeadLetters(10));
+  }
+
+  // Tests that a poison item does not keep a healthy one from being served
+  @Test
+  public void testPoisonItemIsSkipped() {
+    WorkQueue<String> queue = createQueue(randomQueueName(), 1);
+    Item<String> poison = createItem("foo001");
+    Item<String> healthy = createItem("foo002");
+    queue.enqueue(poison);
+    queue.requeue(queue.dequeue());
+    queue.enqueue(healthy);
+
+    assertEquals(ImmutableList.of(healthy), queue.dequeueBatch(2));
+    assertEquals(1, deadLetters(queue).getDeadLetterCount());
+  }
+
+  @Test
+  public void testReplayResetsAttempts() {
+    WorkQueue<String> queue = createQueue(randomQueueName(), 1);
+    DeadLetters<String> deadLetters = deadLetters(queue);
+    Item<String> item1 = createItem("foo001");
+    Item<String> item2 = createItem("foo002");
+    kill(queue, item1);
+    kill(queue, item2);
+
+    assertEquals(1, deadLetters.replayDeadLetters(ImmutableList.of(item2)));
+    assertEquals(0, deadLetters.replayDeadLetters(ImmutableList.of(item2)));
+    assertEquals(item2, queue.dequeue());
+    queue.release(item2);
+
+    assertEquals(1, deadLetters.replayDeadLetters(10));
+    assertEquals(item1, queue.dequeue());
+    assertEquals(0, deadLetters.getDeadLetterCount());
+  }
+
+  @Test
+  public void testPurge() {
+    WorkQueue<String> queue = createQueue(randomQueueName(), 1);
+    DeadLetters<String> deadLetters = deadLetters(queue);
+    Item<String> item1 = createItem("foo001");
+    Item<String> item2 = createItem("foo002");
+    Item<String> item3 = createItem("foo003");
+    kill(queue, item1);
+    kill(queue, item2);
+    kill(queue, item3);
+
+    assertEquals(1, deadLetters.purgeDeadLetters(ImmutableList.of(item2)));
+    assertEquals(ImmutableList.of(item1, item3), deadLetters.inspectDeadLetters(10));
+    assertEquals(2, deadLetters.purgeDeadLetters(10));
+    assertEquals(0, deadLetters.getDeadLetterCount());
+    assertEquals(0, deadLetters.replayDeadLetters(10));
+  }
+
+  // Tests that backoff delays follow the attempts counted by dequeue
+  @Test
+  public void testBackoffUsesDequeueAttempts() throws Exception {
+    WorkQueue<String> queue = createQueue(randomQueueName(), 5);
+    Backoff backoff = new Backoff(100, 4, 1000);
+    Item<String> item = createItem("foo001");
+    queue.enqueue(item);
+
+    queue.requeue(queue.dequeue(), backoff);
+    Thread.sleep(200);
+    queue.requeue(queue.dequeue(), backoff);
+    Thread.sleep(200);
+    assertNull(queue.dequeue());
+    Thread.sleep(300);
+    assertEquals(item, queue.dequeue());
+  }
+
+  @Test
+  public void testInlineDeadLetters() {
+    String queueName = randomQueueName();
+    ReliableWorkQueue<String> queue = new ReliableWorkQueue<String>(connections(), queueName, Codecs.utf8(), 64, 1);
+    Item<String> item = createItem("foo001");
+    queue.enqueue(item);
+    queue.requeue(queue.dequeue(), 0, TimeUnit.MILLISECONDS);
+
+    assertNull(queue.dequeue());
+    assertEquals(ImmutableList.of(item), queue.inspectDeadLetters(10));
+    assertEquals(1, queue.replayDeadLetters(ImmutableList.of(item)));
+    assertEquals(item, queue.dequeue());
+  }
+
+  private static void kill(WorkQueue<String> queue, Item<String> item) {
+    queue.enqueue(item);
+    queue.requeue(queue.dequeue());
+    assertNull(queue.dequeue());
+  }
+
+  @SuppressWarnings("unchecked")
+  private static DeadLetters<String> deadLetters(WorkQueue<String> queue) {
+    return (DeadLetters<String>) queue;
+  }
+}
@@ -0,0 +1,130 @@
+package com.bronto.ncsu.redis.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.bronto.ncsu.redis.queue.Backoff;
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.QueueGauges;
+import com.bronto.ncsu.redis.queue.WorkQueue;
+import com.bronto.ncsu.redis.util.Utils;
+
+import com.google.common.base.Stopwatch;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import redis.clients.jedis.Jedis;
+
+public class DelayedTests extends TestBase {
+
+  @Test
+  public void testEnqueueAfter() throws Exception {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    Item<String> later = createItem("foo001");
+    Item<String> now = createItem("foo002");
+    queue.enqueueAfter(later, 200, TimeUnit.MILLISECONDS);
+    queue.enqueue(now);
+
+    assertEquals(now, queue.dequeue());
+    assertNull(queue.dequeue());
+    assertEquals(1, ((QueueGauges) queue).sampleGauges().getDepth());
+
+    Thread.sleep(300);
+    assertEquals(later, queue.dequeue());
+    queue.release(later);
+    assertNull(queue.dequeue());
+  }
+
+  @Test
+  public void testEnqueueAt() throws Exception {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    Item<String> item = createItem("foo001");
+    queue.enqueueAt(item, Utils.currentTimeMillis() + 200);
+
+    assertNull(queue.dequeue());
+    Thread.sleep(300);
+    assertEquals(item, queue.dequeue());
+  }
+
+  // Tests that a consumer blocked on an empty queue picks up a delayed item
+  // once it is due
+  @Test
+  public void testBlockingDequeueGetsDueItem() {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    Item<String> item = createItem("foo001");
+    queue.enqueueAfter(item, 300, TimeUnit.MILLISECONDS);
+
+    Stopwatch sw = Stopwatch.createStarted();
+    assertEquals(item, queue.dequeue(5, TimeUnit.SECONDS));
+    long elapsedMillis = sw.elapsed(TimeUnit.MILLISECONDS);
+    assertTrue(elapsedMillis >= 250 && elapsedMillis < 2000);
+  }
+
+  @Test
+  public void testRequeueWithDelay() throws Exception {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    Item<String> item = createItem("foo001");
+    queue.enqueue(item);
+
+    queue.requeue(queue.dequeue(), 200, TimeUnit.MILLISECONDS);
+    assertNull(queue.dequeue());
+    // Requeueing an item which is not dequeued does nothing
+    queue.requeue(item, 0, TimeUnit.MILLISECONDS);
+    assertNull(queue.dequeue());
+
+    Thread.sleep(300);
+    assertEquals(item, queue.dequeue());
+  }
+
+  @Test
+  public void testBackoffGrowsWithAttempts() throws Exception {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    Backoff backoff = new Backoff(100, 4, 1000);
+    Item<String> item = createItem("foo001");
+    queue.enqueue(item);
+
+    // First attempt waits 100ms
+    queue.requeue(queue.dequeue(), backoff);
+    Thread.sleep(200);
+    assertEquals(item, queue.dequeue());
+
+    // Second attempt waits 400ms
+    queue.requeue(item, backoff);
+    Thread.sleep(200);
+    assertNull(queue.dequeue());
+    Thread.sleep(300);
+    assertEquals(item, queue.dequeue());
+  }
+
+  // Tests that release forgets an item's attempts
+  @Test
+  public void testReleaseClearsAttempts() {
+    final String queueName = randomQueueName();
+    WorkQueue<String> queue = createQueue(queueName);
+    Item<String> item = createItem("foo001");
+    queue.enqueue(item);
+    queue.requeue(queue.dequeue(), Backoff.fixed(0, TimeUnit.MILLISECONDS));
+    queue.release(queue.dequeue());
+
+    assertEquals(Boolean.FALSE, withConnection(new JedisOperation<Boolean>() {
+      @Override
+      public Boolean execute(Jedis conn) {
+        return conn.exists(queueName + "attempts");
+      }
+    }));
+  }
+
+  @Test
+  public void testBackoffDelays() {
+    Backoff backoff = Backoff.exponential(100, 1000, TimeUnit.MILLISECONDS);
+    assertEquals(100, backoff.getDelayMillis(1));
+    assertEquals(200, backoff.getDelayMillis(2));
+    assertEquals(800, backoff.getDelayMillis(4));
+    assertEquals(1000, backoff.getDelayMillis(5));
+    assertEquals(1000, backoff.getDelayMillis(Integer.MAX_VALUE));
+    assertEquals(50, Backoff.fixed(50, TimeUnit.MILLISECONDS).getDelayMillis(10));
+  }
+}
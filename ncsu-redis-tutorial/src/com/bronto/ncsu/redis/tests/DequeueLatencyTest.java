@@ -1,50 +1,123 @@
 package com.bronto.ncsu.redis.tests;
 
+import com.bronto.ncsu.redis.codec.Codecs;
+import com.bronto.ncsu.redis.util.LatencyHistogram;
 import com.bronto.ncsu.redis.util.Utils;
 import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.PrefetchingWorkQueue;
+import com.bronto.ncsu.redis.queue.ReliableWorkQueue;
 import com.bronto.ncsu.redis.queue.WorkQueue;
 
-import com.google.common.base.Stopwatch;
-
 import org.junit.Test;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import redis.clients.jedis.Jedis;
 
 public class DequeueLatencyTest extends TestBase {
 
   private static final int TEST_SIZE = 10000;
 
+  private static final int PREFETCH_CAPACITY = 1000;
+  private static final long PREFETCH_MAX_HOLD_MILLIS = 1000;
+
+  private static final int INLINE_MAX_BYTES = 64;
+
+  // Interval between dequeues in the fixed rate test
+  private static final long FIXED_RATE_INTERVAL_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
   @Test
   public void testDequeueLatency() throws Exception {
-    WorkQueue<String> queue = createQueue(randomQueueName());
+    final String queueName = randomQueueName();
+    final WorkQueue<String> queue = createQueue(queueName);
     List<String> values = Utils.randomByteStrings(16, TEST_SIZE);
 
+    // Before: the original dequeue, one round trip for each of RPOP, ZADD and HGET
+    enqueueAll(queue, values);
+    LatencyHistogram before = withConnection(new JedisOperation<LatencyHistogram>() {
+      @Override
+      public LatencyHistogram execute(Jedis conn) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < TEST_SIZE; i++) {
+          long start = System.nanoTime();
+          String key = conn.rpop(queueName);
+          conn.zadd(queueName + "working", System.currentTimeMillis(), key);
+          String data = conn.hget(queueName + "values", key);
+          histogram.record(System.nanoTime() - start);
+          queue.release(new Item<String>(key, data));
+        }
+        return histogram;
+      }
+    });
+
+    // After: the queue's dequeue
     enqueueAll(queue, values);
+    LatencyHistogram after = measureDequeues(queue);
+
+    report("before (3 round trips)", before);
+    report("after", after);
+  }
 
-    List<Long> timings = new ArrayList<Long>(TEST_SIZE);
+  @Test
+  public void testInlineDequeueLatency() throws Exception {
+    WorkQueue<String> queue = new ReliableWorkQueue<String>(connections(), randomQueueName(), Codecs.utf8(),
+        INLINE_MAX_BYTES);
+    enqueueAll(queue, Utils.randomByteStrings(16, TEST_SIZE));
+    report("inline values", measureDequeues(queue));
+  }
+
+  @Test
+  public void testPrefetchingDequeueLatency() throws Exception {
+    PrefetchingWorkQueue<String> queue = new PrefetchingWorkQueue<String>(
+        createQueue(randomQueueName()), PREFETCH_CAPACITY, PREFETCH_MAX_HOLD_MILLIS);
+    try {
+      enqueueAll(queue, Utils.randomByteStrings(16, TEST_SIZE));
+      report("prefetching", measureDequeues(queue));
+    } finally {
+      queue.close();
+    }
+  }
+
+  // Dequeues at a fixed rate, as a consumer fed by a steady producer would.
+  // When a dequeue overruns the interval the dequeues which should have been
+  // issued meanwhile are accounted for, so stalls are not hidden.
+  @Test
+  public void testFixedRateDequeueLatency() throws Exception {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    enqueueAll(queue, Utils.randomByteStrings(16, TEST_SIZE));
+
+    LatencyHistogram histogram = new LatencyHistogram();
+    long next = System.nanoTime();
     for (int i = 0; i < TEST_SIZE; i++) {
-      Stopwatch sw = Stopwatch.createStarted();
+      long wait = next - System.nanoTime();
+      if (wait > 0) {
+        LockSupport.parkNanos(wait);
+      }
+
+      long start = System.nanoTime();
       Item<String> item = queue.dequeue();
-      sw.stop();
-      timings.add(sw.elapsed(TimeUnit.NANOSECONDS));
+      histogram.recordWithExpectedInterval(System.nanoTime() - start, FIXED_RATE_INTERVAL_NANOS);
       queue.release(item);
+      next += FIXED_RATE_INTERVAL_NANOS;
     }
 
-    long totalTime = 0;
-    for (long t : timings) {
-      totalTime += t;
-    }
+    report("fixed rate", histogram);
+  }
 
-    long avg = totalTime / timings.size();
-    long residualSquaredSum = 0;
-    for (long t : timings) {
-      long residual = t - avg;
-      residualSquaredSum += residual * residual;
+  private static LatencyHistogram measureDequeues(WorkQueue<String> queue) {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < TEST_SIZE; i++) {
+      long start = System.nanoTime();
+      Item<String> item = queue.dequeue();
+      histogram.record(System.nanoTime() - start);
+      queue.release(item);
     }
-    double stddev = Math.sqrt(residualSquaredSum / timings.size());
+    return histogram;
+  }
 
-    System.out.println(String.format("avg=%.3fµs, stddev=%.3fµs", avg / 1e3, stddev / 1e3));
+  private static void report(String label, LatencyHistogram histogram) {
+    System.out.println(String.format("%s: avg=%.3fus, %s", label, histogram.getMean() / 1e3, histogram.summary()));
   }
 }
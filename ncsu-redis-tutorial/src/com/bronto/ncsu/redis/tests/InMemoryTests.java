@@ -0,0 +1,135 @@
+package com.bronto.ncsu.redis.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.bronto.ncsu.redis.queue.InMemoryWorkQueue;
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.QueueGauges;
+import com.bronto.ncsu.redis.queue.WorkQueue;
+import com.bronto.ncsu.redis.util.Utils;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests of InMemoryWorkQueue which do not need Redis. The other tests run
+ * against it too when run with -Dworkqueue.backend=memory.
+ */
+public class InMemoryTests extends TestBase {
+
+  private static final int TEST_SIZE = 100000;
+  private static final int CONSUMERS = 8;
+
+  @Test
+  public void testReliableSemantics() throws Exception {
+    WorkQueue<String> queue = new InMemoryWorkQueue<String>(randomQueueName());
+    Item<String> first = createItem("foo001");
+    Item<String> second = createItem("foo002");
+    queue.enqueueAll(ImmutableList.of(first, second));
+
+    assertEquals(first, queue.dequeue());
+    queue.requeue(first);
+    queue.requeue(first);
+    assertEquals(second, queue.dequeue());
+    queue.release(second);
+    queue.requeue(second);
+    assertEquals(first, queue.dequeue());
+    assertNull(queue.dequeue());
+
+    assertTrue(queue.extendLease(first, 60000));
+    Thread.sleep(10);
+    assertEquals(0, queue.sweep(0));
+    assertFalse(queue.extendLease(second, 60000));
+
+    QueueGauges.Sample sample = ((QueueGauges) queue).sampleGauges();
+    assertEquals(0, sample.getDepth());
+    assertEquals(1, sample.getWorkingCount());
+    assertTrue(sample.getOldestLeaseAgeMillis() < 0);
+  }
+
+  // Consumers requeue each item once and then extend its lease and release
+  // it, while a sweeper requeues everything it can. No item may be lost.
+  @Test
+  public void testConcurrentSweepsLoseNothing() throws Exception {
+    final WorkQueue<String> queue = new InMemoryWorkQueue<String>(randomQueueName());
+    enqueueAll(queue, Utils.randomByteStrings(8, TEST_SIZE));
+
+    final Set<String> requeued = Sets.newConcurrentHashSet();
+    final Set<String> released = Sets.newConcurrentHashSet();
+    final AtomicBoolean done = new AtomicBoolean();
+    List<Future<?>> consumers = new ArrayList<Future<?>>();
+    for (int i = 0; i < CONSUMERS; i++) {
+      consumers.add(ex.submit(new Runnable() {
+        @Override
+        public void run() {
+          Item<String> item;
+          while ((item = queue.dequeue(100, TimeUnit.MILLISECONDS)) != null) {
+            if (requeued.add(item.getKey())) {
+              queue.requeue(item);
+            } else {
+              queue.extendLease(item, 1);
+              // A copy swept back into the queue after the item was released
+              // comes out without its value
+              if (item.getValue() != null) {
+                released.add(item.getValue());
+              }
+              queue.release(item);
+            }
+          }
+        }
+      }));
+    }
+    Future<?> sweeper = ex.submit(new Runnable() {
+      @Override
+      public void run() {
+        while (!done.get()) {
+          queue.sweep(0, 100);
+        }
+      }
+    });
+
+    for (Future<?> consumer : consumers) {
+      consumer.get();
+    }
+    done.set(true);
+    sweeper.get();
+    queue.sweep(0);
+
+    assertEquals(TEST_SIZE, released.size());
+    QueueGauges.Sample sample = ((QueueGauges) queue).sampleGauges();
+    assertEquals(0, sample.getDepth());
+    assertEquals(0, sample.getWorkingCount());
+  }
+
+  @Test
+  public void testLargeBatch() {
+    WorkQueue<String> queue = new InMemoryWorkQueue<String>(randomQueueName());
+    List<Item<String>> items = new ArrayList<Item<String>>();
+    for (int i = 0; i < TEST_SIZE; i++) {
+      items.add(new Item<String>(String.valueOf(i), "foo"));
+    }
+
+    queue.enqueueAll(items);
+    int count = 0;
+    Item<String> item;
+    while ((item = queue.dequeue()) != null) {
+      assertEquals(items.get(count++), item);
+      queue.release(item);
+    }
+
+    assertEquals(TEST_SIZE, count);
+    assertEquals(0, ((QueueGauges) queue).sampleGauges().getWorkingCount());
+  }
+}
@@ -0,0 +1,133 @@
+package com.bronto.ncsu.redis.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.bronto.ncsu.redis.codec.Codecs;
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.ReliableWorkQueue;
+import com.bronto.ncsu.redis.queue.WorkQueue;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import redis.clients.jedis.Jedis;
+
+public class InlineTests extends TestBase {
+
+  private static final int INLINE_MAX_BYTES = 64;
+
+  @Test
+  public void testSmallValuesSkipTheHash() {
+    String queueName = randomQueueName();
+    WorkQueue<String> queue = createInlineQueue(queueName);
+    Item<String> small = createItem("foo001");
+    Item<String> large = createItem(Strings.repeat("x", INLINE_MAX_BYTES + 1));
+    queue.enqueue(small);
+    queue.enqueueAll(ImmutableList.of(createItem("foo002"), large));
+
+    assertEquals(1, hashSize(queueName));
+    // Dequeuing an inline item does not write its value to the hash
+    assertEquals(small, queue.dequeue());
+    assertEquals(1, hashSize(queueName));
+    assertEquals("foo002", queue.dequeue().getValue());
+    assertEquals(large, queue.dequeue());
+    assertNull(queue.dequeue());
+  }
+
+  @Test
+  public void testInlineItemLifecycle() throws Exception {
+    String queueName = randomQueueName();
+    WorkQueue<String> queue = createInlineQueue(queueName);
+    Item<String> item1 = createItem("foo001");
+    Item<String> item2 = createItem("foo002");
+    queue.enqueueAll(ImmutableList.of(item1, item2));
+
+    // Requeue, then requeue again which should be ignored
+    Item<String> item = queue.dequeue();
+    queue.requeue(item);
+    queue.requeue(item);
+    assertEquals(item2, queue.dequeue());
+    assertEquals(item1, queue.dequeue());
+    assertNull(queue.dequeue());
+
+    assertTrue(queue.extendLease(item1, 60000));
+    Thread.sleep(10);
+    assertEquals(1, queue.sweep(0));
+    assertEquals(item2, queue.dequeue(1, TimeUnit.SECONDS));
+
+    queue.releaseAll(ImmutableList.of(item1, item2));
+    assertEquals(0, ((ReliableWorkQueue<String>) queue).sampleGauges().getWorkingCount());
+    assertEquals(0, hashSize(queueName));
+  }
+
+  // Tests that a queue without inlining can consume inline items, and that
+  // an inlining queue releases items it did not inline
+  @Test
+  public void testMixedClients() {
+    String queueName = randomQueueName();
+    WorkQueue<String> inline = createInlineQueue(queueName);
+    WorkQueue<String> plain = createQueue(queueName);
+    Item<String> inlined = createItem("foo001");
+    Item<String> hashed = createItem("foo002");
+    inline.enqueue(inlined);
+    plain.enqueue(hashed);
+
+    assertEquals(ImmutableSet.of(inlined, hashed), ImmutableSet.of(plain.dequeue(), inline.dequeue()));
+    inline.releaseAll(ImmutableList.of(inlined, hashed));
+    assertEquals(0, ((ReliableWorkQueue<String>) inline).sampleGauges().getWorkingCount());
+    assertEquals(0, hashSize(queueName));
+  }
+
+  // Tests that dequeued inline items are found by key, whatever value the
+  // caller holds and however the queue settling them is configured
+  @Test
+  public void testInlineItemsFoundByKey() {
+    String queueName = randomQueueName();
+    WorkQueue<String> inline = createInlineQueue(queueName);
+    WorkQueue<String> plain = createQueue(queueName);
+    Item<String> item1 = createItem("foo001");
+    Item<String> item2 = createItem("foo002");
+    Item<String> item3 = createItem("foo003");
+    inline.enqueueAll(ImmutableList.of(item1, item2, item3));
+    assertEquals(ImmutableList.of(item1, item2, item3), inline.dequeueBatch(3));
+
+    // Released by a queue which does not inline
+    plain.release(item1);
+    // Released through an item whose value has changed
+    inline.release(new Item<String>(item2.getKey(), "changed"));
+    // Requeued through an item with no value
+    assertTrue(plain.extendLease(new Item<String>(item3.getKey(), null), 60000));
+    plain.requeue(new Item<String>(item3.getKey(), null));
+
+    assertEquals(item3, inline.dequeue());
+    inline.release(item3);
+    assertNull(inline.dequeue());
+    assertEquals(0, ((ReliableWorkQueue<String>) inline).sampleGauges().getWorkingCount());
+    assertEquals(0, hashSize(queueName));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsKeysWithNul() {
+    createInlineQueue(randomQueueName()).enqueue(new Item<String>("foo\0bar", "foo001"));
+  }
+
+  private WorkQueue<String> createInlineQueue(String name) {
+    return new ReliableWorkQueue<String>(connections(), name, Codecs.utf8(), INLINE_MAX_BYTES);
+  }
+
+  private long hashSize(final String queueName) {
+    return withConnection(new JedisOperation<Long>() {
+      @Override
+      public Long execute(Jedis conn) {
+        return conn.hlen(queueName + "values");
+      }
+    });
+  }
+}
@@ -0,0 +1,65 @@
+package com.bronto.ncsu.redis.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.bronto.ncsu.redis.util.ItemIds;
+import com.bronto.ncsu.redis.util.Utils;
+
+import com.google.common.collect.Sets;
+
+import org.junit.Test;
+
+import java.util.Set;
+
+public class ItemIdsTests {
+
+  @Test
+  public void testKeysAreUniqueAndOrdered() {
+    ItemIds ids = new ItemIds(7);
+    Set<String> seen = Sets.newHashSet();
+    String previous = "";
+    // More than fit in one millisecond
+    for (int i = 0; i < 100000; i++) {
+      String key = ids.next();
+      assertEquals(11, key.length());
+      assertTrue(seen.add(key));
+      assertTrue(key.compareTo(previous) > 0);
+      previous = key;
+    }
+  }
+
+  @Test
+  public void testRandomKeys() {
+    Set<String> seen = Sets.newHashSet();
+    String previous = "";
+    for (int i = 0; i < 100000; i++) {
+      String key = ItemIds.nextKey();
+      assertEquals(21, key.length());
+      assertTrue(seen.add(key));
+      // Ordered by the millisecond, in the first 7 characters
+      assertTrue(key.substring(0, 7).compareTo(previous) >= 0);
+      previous = key.substring(0, 7);
+    }
+  }
+
+  @Test
+  public void testFormatAndParse() {
+    for (long id : new long[] {0, 1, 63, 64, Long.MAX_VALUE, Long.MIN_VALUE, -1}) {
+      assertEquals(id, ItemIds.parse(ItemIds.format(id)));
+    }
+  }
+
+  @Test
+  public void testTimestamp() {
+    long before = Utils.currentTimeMillis();
+    long id = new ItemIds(0).nextId();
+    assertTrue(ItemIds.timestampOf(id) >= before);
+    assertTrue(ItemIds.timestampOf(id) <= Utils.currentTimeMillis());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParseRejectsOtherKeys() {
+    ItemIds.parse(Utils.randomBytesString(16));
+  }
+}
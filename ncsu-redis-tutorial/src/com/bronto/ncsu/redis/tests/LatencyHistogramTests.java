@@ -0,0 +1,68 @@
+package com.bronto.ncsu.redis.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.bronto.ncsu.redis.util.LatencyHistogram;
+
+import org.junit.Test;
+
+public class LatencyHistogramTests {
+
+  @Test
+  public void testPercentilesWithinPrecision() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long i = 1; i <= 100000; i++) {
+      histogram.record(i * 1000);
+    }
+
+    assertEquals(100000, histogram.getTotalCount());
+    assertEquals(100000000, histogram.getMax());
+    assertWithin(50000000, histogram.getValueAtPercentile(50));
+    assertWithin(99000000, histogram.getValueAtPercentile(99));
+    assertWithin(99900000, histogram.getValueAtPercentile(99.9));
+    assertEquals(100000000, histogram.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void testSmallValuesAreExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long i = 0; i < 100; i++) {
+      histogram.record(i);
+    }
+    assertEquals(49, histogram.getValueAtPercentile(50));
+    assertEquals(0, histogram.getMin());
+  }
+
+  // Tests that a stall during fixed rate measurement is counted against the
+  // requests which should have been issued during it
+  @Test
+  public void testCoordinatedOmissionCorrection() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < 99; i++) {
+      histogram.recordWithExpectedInterval(100, 1000);
+    }
+    histogram.recordWithExpectedInterval(100000, 1000);
+
+    // The stall adds 99 missing values spread between 1000 and 99000
+    assertEquals(199, histogram.getTotalCount());
+    assertTrue(histogram.getValueAtPercentile(75) > 1000);
+  }
+
+  @Test
+  public void testAdd() {
+    LatencyHistogram a = new LatencyHistogram();
+    LatencyHistogram b = new LatencyHistogram();
+    a.record(10);
+    b.record(1000000);
+    a.add(b);
+
+    assertEquals(2, a.getTotalCount());
+    assertEquals(10, a.getMin());
+    assertEquals(1000000, a.getMax());
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    assertTrue("expected " + expected + " but was " + actual, Math.abs(actual - expected) <= expected / 50);
+  }
+}
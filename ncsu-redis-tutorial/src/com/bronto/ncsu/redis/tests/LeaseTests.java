@@ -0,0 +1,94 @@
+package com.bronto.ncsu.redis.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.LeaseHeartbeat;
+import com.bronto.ncsu.redis.queue.WorkQueue;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+public class LeaseTests extends TestBase {
+
+  private static final long ABANDONED_MILLIS = 300;
+
+  @Test
+  public void testExtendLeasePreventsSweep() throws Exception {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    queue.enqueue(createItem("foo001"));
+    Item<String> item = queue.dequeue();
+
+    Thread.sleep(ABANDONED_MILLIS);
+    assertTrue(queue.extendLease(item, 1000));
+    queue.sweep(ABANDONED_MILLIS);
+
+    // The item should still be in the working state
+    assertNull(queue.dequeue());
+    queue.release(item);
+  }
+
+  // Tests that items dequeued with different leases are swept according to
+  // their own deadlines
+  @Test
+  public void testDequeueWithLease() throws Exception {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    Item<String> shortLease = createItem("foo001");
+    Item<String> longLease = createItem("foo002");
+    queue.enqueueAll(ImmutableList.of(shortLease, longLease));
+
+    assertEquals(shortLease, queue.dequeue());
+    assertEquals(longLease, queue.dequeueWithLease(5000));
+
+    Thread.sleep(ABANDONED_MILLIS);
+    assertEquals(1, queue.sweep(0));
+    assertEquals(shortLease, queue.dequeue());
+    assertNull(queue.dequeue());
+  }
+
+  @Test
+  public void testExtendLeaseIgnoresItemsNotDequeued() {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    Item<String> queued = createItem("foo001");
+    Item<String> released = createItem("foo002");
+    queue.enqueueAll(ImmutableList.of(released, queued));
+    queue.release(queue.dequeue());
+
+    assertFalse(queue.extendLease(queued, 1000));
+    assertEquals(0, queue.extendLeaseAll(ImmutableList.of(queued, released), 1000));
+
+    // The queued item should still be at the head of the queue
+    assertEquals(queued, queue.dequeue());
+  }
+
+  // Tests that held items survive sweeps for longer than the sweep timeout
+  @Test
+  public void testHeartbeatKeepsItemsLeased() throws Exception {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    queue.enqueueAll(ImmutableList.of(createItem("foo001"), createItem("foo002")));
+
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    LeaseHeartbeat<String> heartbeat = new LeaseHeartbeat<String>(queue, scheduler, ABANDONED_MILLIS / 3, 0);
+    try {
+      for (Item<String> item : queue.dequeueBatch(2)) {
+        heartbeat.hold(item);
+      }
+      heartbeat.start();
+
+      for (int i = 0; i < 5; i++) {
+        Thread.sleep(ABANDONED_MILLIS / 2);
+        assertEquals(0, queue.sweep(ABANDONED_MILLIS));
+      }
+    } finally {
+      heartbeat.close();
+      scheduler.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package com.bronto.ncsu.redis.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.bronto.ncsu.redis.queue.InstrumentedWorkQueue;
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.QueueGauges;
+import com.bronto.ncsu.redis.queue.WorkQueue;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class MetricsTests extends TestBase {
+
+  @Test
+  public void testCounters() throws Exception {
+    InstrumentedWorkQueue<String> queue = new InstrumentedWorkQueue<String>(createQueue(randomQueueName()));
+    queue.enqueue(createItem("foo001"));
+    queue.enqueueAll(ImmutableList.of(createItem("foo002"), createItem("foo003")));
+
+    queue.release(queue.dequeue());
+    queue.requeue(queue.dequeue());
+    List<Item<String>> batch = queue.dequeueBatch(10);
+    assertEquals(2, batch.size());
+    assertNull(queue.dequeue());
+    Thread.sleep(10);
+    assertEquals(2, queue.sweep(0));
+    // Swept items are no longer dequeued, so requeueing them does nothing
+    assertFalse(queue.requeue(batch.get(0)));
+    assertEquals(0, queue.requeueAll(batch));
+
+    assertEquals(3, queue.getEnqueueCount());
+    assertEquals(4, queue.getDequeueCount());
+    assertEquals(1, queue.getEmptyDequeueCount());
+    assertEquals(1, queue.getReleaseCount());
+    assertEquals(1, queue.getRequeueCount());
+    assertEquals(2, queue.getSweptCount());
+    assertEquals(0, queue.getErrorCount());
+  }
+
+  @Test
+  public void testLatencyRecordedPerThread() throws Exception {
+    final InstrumentedWorkQueue<String> queue =
+        new InstrumentedWorkQueue<String>(createQueue(randomQueueName()));
+    Thread other = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        queue.enqueue(createItem("foo001"));
+      }
+    });
+    other.start();
+    other.join();
+    queue.enqueue(createItem("foo002"));
+
+    assertEquals(2, queue.getLatency(InstrumentedWorkQueue.Operation.ENQUEUE).getTotalCount());
+    assertEquals(0, queue.getLatency(InstrumentedWorkQueue.Operation.DEQUEUE).getTotalCount());
+    assertTrue(queue.getLatencyMicros("enqueue", 100) > 0);
+    assertTrue(queue.getLatencySummaries().containsKey("enqueue"));
+    assertFalse(queue.getLatencySummaries().containsKey("dequeue"));
+  }
+
+  // Tests that short lived threads do not each leave histograms behind
+  @Test
+  public void testHistogramsBounded() throws Exception {
+    final InstrumentedWorkQueue<String> queue =
+        new InstrumentedWorkQueue<String>(createQueue(randomQueueName()));
+    for (int i = 0; i < 200; i++) {
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          queue.dequeue();
+        }
+      });
+      thread.start();
+      thread.join();
+    }
+
+    assertEquals(200, queue.getLatency(InstrumentedWorkQueue.Operation.DEQUEUE).getTotalCount());
+    assertTrue(queue.getStripeCount() <= 16);
+  }
+
+  @Test
+  public void testGauges() throws Exception {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    queue.enqueueAll(ImmutableList.of(createItem("foo001"), createItem("foo002"), createItem("foo003")));
+    queue.dequeue();
+    Thread.sleep(50);
+
+    QueueGauges.Sample sample = ((QueueGauges) queue).sampleGauges();
+    assertEquals(2, sample.getDepth());
+    assertEquals(1, sample.getWorkingCount());
+    assertTrue(sample.getOldestLeaseAgeMillis() >= 50);
+
+    queue.dequeueWithLease(60000);
+    sample = ((QueueGauges) queue).sampleGauges();
+    assertEquals(2, sample.getWorkingCount());
+    assertTrue(sample.getOldestLeaseAgeMillis() >= 50);
+  }
+
+  @Test
+  public void testGaugeSampler() throws Exception {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    InstrumentedWorkQueue<String> queue =
+        new InstrumentedWorkQueue<String>(createQueue(randomQueueName()), scheduler, 10);
+    try {
+      queue.enqueueAll(ImmutableList.of(createItem("foo001"), createItem("foo002")));
+      queue.dequeue();
+      queue.start();
+      Thread.sleep(200);
+
+      assertEquals(1, queue.getDepth());
+      assertEquals(1, queue.getWorkingCount());
+    } finally {
+      queue.close();
+      scheduler.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testRegisterMBean() throws Exception {
+    InstrumentedWorkQueue<String> queue = new InstrumentedWorkQueue<String>(createQueue(randomQueueName()));
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = queue.registerMBean();
+    try {
+      queue.enqueue(createItem("foo001"));
+      assertEquals(1L, server.getAttribute(name, "EnqueueCount"));
+      assertEquals(queue.getName(), server.getAttribute(name, "Name"));
+    } finally {
+      queue.close();
+    }
+    assertFalse(server.isRegistered(name));
+  }
+}
@@ -0,0 +1,118 @@
+package com.bronto.ncsu.redis.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.bronto.ncsu.redis.codec.Codecs;
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.PrefetchingWorkQueue;
+import com.bronto.ncsu.redis.queue.ReliableWorkQueue;
+import com.bronto.ncsu.redis.queue.WorkQueue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Test;
+
+import java.util.List;
+
+public class PrefetchingTests extends TestBase {
+
+  private static final int CAPACITY = 100;
+  private static final long MAX_HOLD_MILLIS = 200;
+
+  @Test
+  public void testQueueIsFirstInFirstOut() throws Exception {
+    String queueName = randomQueueName();
+    List<Item<String>> items = ImmutableList.of(
+        createItem("foo001"), createItem("foo002"), createItem("foo003"));
+    createQueue(queueName).enqueueAll(items);
+
+    PrefetchingWorkQueue<String> queue = prefetching(queueName);
+    try {
+      for (Item<String> item : items) {
+        Item<String> dequeued = queue.dequeue();
+        assertEquals(item, dequeued);
+        queue.release(dequeued);
+      }
+      assertNull(queue.dequeue());
+    } finally {
+      queue.close();
+    }
+  }
+
+  // Tests that items still buffered on close go back to the queue
+  @Test
+  public void testCloseRequeuesBufferedItems() throws Exception {
+    String queueName = randomQueueName();
+    WorkQueue<String> queue = createQueue(queueName);
+    Item<String> item1 = createItem("foo001");
+    Item<String> item2 = createItem("foo002");
+    Item<String> item3 = createItem("foo003");
+    queue.enqueueAll(ImmutableList.of(item1, item2, item3));
+
+    PrefetchingWorkQueue<String> prefetching = prefetching(queueName);
+    assertEquals(item1, prefetching.dequeue());
+
+    // Give the prefetcher a chance to buffer the remaining items
+    Thread.sleep(100);
+    prefetching.close();
+
+    assertEquals(ImmutableSet.of(item2, item3), ImmutableSet.copyOf(queue.dequeueBatch(10)));
+  }
+
+  // Tests that buffered items which were swept meanwhile are not handed out
+  // as well as dequeued again
+  @Test
+  public void testSweptItemsAreNotHandedOut() throws Exception {
+    String queueName = randomQueueName();
+    WorkQueue<String> queue = createQueue(queueName);
+    PrefetchingWorkQueue<String> prefetching =
+        new PrefetchingWorkQueue<String>(queue, CAPACITY, 60000);
+    try {
+      Item<String> item1 = createItem("foo001");
+      Item<String> item2 = createItem("foo002");
+      queue.enqueue(item1);
+      Thread.sleep(100);
+      assertEquals(1, queue.sweep(0));
+      assertEquals(item1, prefetching.dequeueWithLease(60000));
+      assertNull(queue.dequeue());
+
+      queue.enqueue(item2);
+      Thread.sleep(100);
+      assertEquals(1, queue.sweep(0));
+      assertEquals(ImmutableList.of(item2), prefetching.dequeueBatch(5));
+      assertNull(queue.dequeue());
+    } finally {
+      prefetching.close();
+    }
+  }
+
+  // Tests that items buffered for a long time keep their leases without
+  // using up attempts
+  @Test
+  public void testBufferedItemLeasesAreRenewed() throws Exception {
+    String queueName = randomQueueName();
+    ReliableWorkQueue<String> queue = new ReliableWorkQueue<String>(connections(), queueName, Codecs.utf8(), 0, 1);
+    PrefetchingWorkQueue<String> prefetching =
+        new PrefetchingWorkQueue<String>(queue, CAPACITY, MAX_HOLD_MILLIS);
+    try {
+      queue.enqueue(createItem("foo001"));
+
+      // Wait for the item to be prefetched and held for several times
+      // maxHoldMillis. It is never abandoned for longer than maxHoldMillis.
+      Thread.sleep(MAX_HOLD_MILLIS * 3);
+      assertEquals(0, queue.sweep(MAX_HOLD_MILLIS));
+      Item<String> item = prefetching.dequeue();
+      assertEquals("foo001", item.getValue());
+      prefetching.release(item);
+      assertEquals(0, queue.getDeadLetterCount());
+    } finally {
+      prefetching.close();
+    }
+  }
+
+  private PrefetchingWorkQueue<String> prefetching(String queueName) {
+    return new PrefetchingWorkQueue<String>(createQueue(queueName), CAPACITY, MAX_HOLD_MILLIS);
+  }
+}
@@ -0,0 +1,141 @@
+package com.bronto.ncsu.redis.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.bronto.ncsu.redis.codec.Codecs;
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.PriorityWorkQueue;
+import com.bronto.ncsu.redis.queue.QueueGauges;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class PriorityTests extends TestBase {
+
+  @Test
+  public void testHighestPriorityFirst() {
+    PriorityWorkQueue<String> queue = createPriorityQueue(randomQueueName(), 3);
+    Item<String> low = createItem("foo001");
+    Item<String> medium1 = createItem("foo002");
+    Item<String> medium2 = createItem("foo003");
+    Item<String> high = createItem("foo004");
+    queue.enqueue(low);
+    queue.enqueueAll(ImmutableList.of(medium1, medium2), 1);
+    queue.enqueue(high, 2);
+
+    assertEquals(high, queue.dequeue());
+    assertEquals(ImmutableList.of(medium1, medium2, low), queue.dequeueBatch(5));
+    assertNull(queue.dequeue());
+  }
+
+  @Test
+  public void testRequeueAndSweepKeepPriority() throws Exception {
+    PriorityWorkQueue<String> queue = createPriorityQueue(randomQueueName(), 2);
+    Item<String> low = createItem("foo001");
+    Item<String> high = createItem("foo002");
+    queue.enqueue(high, 1);
+    queue.enqueue(low, 0);
+
+    assertEquals(high, queue.dequeue());
+    queue.requeue(high);
+    assertEquals(high, queue.dequeue());
+    assertEquals(low, queue.dequeue());
+
+    Thread.sleep(10);
+    assertEquals(2, queue.sweep(0));
+    assertEquals(high, queue.dequeue());
+
+    assertTrue(queue.extendLease(high, 60000));
+    queue.release(high);
+    assertEquals(low, queue.dequeue(1, TimeUnit.SECONDS));
+    queue.release(low);
+
+    QueueGauges.Sample sample = queue.sampleGauges();
+    assertEquals(0, sample.getDepth());
+    assertEquals(0, sample.getWorkingCount());
+  }
+
+  @Test
+  public void testDelayedItemsKeepPriority() throws Exception {
+    PriorityWorkQueue<String> queue = createPriorityQueue(randomQueueName(), 2);
+    Item<String> low = createItem("foo001");
+    Item<String> high = createItem("foo002");
+    queue.enqueue(low, 0);
+    queue.enqueueAfter(high, 1, 100, TimeUnit.MILLISECONDS);
+
+    assertEquals(low, queue.dequeue());
+    queue.requeue(low, 100, TimeUnit.MILLISECONDS);
+    assertNull(queue.dequeue());
+    assertEquals(2, queue.sampleGauges().getDepth());
+
+    Thread.sleep(200);
+    assertEquals(high, queue.dequeue());
+    assertEquals(low, queue.dequeue());
+  }
+
+  @Test
+  public void testBlockingDequeueWaitsForItem() throws Exception {
+    final PriorityWorkQueue<String> queue = createPriorityQueue(randomQueueName(), 2);
+    final Item<String> item = createItem("foo001");
+    ex.submit(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          return;
+        }
+        queue.enqueue(item, 1);
+      }
+    });
+
+    assertNull(queue.dequeue(10, TimeUnit.MILLISECONDS));
+    assertEquals(item, queue.dequeue(2, TimeUnit.SECONDS));
+  }
+
+  // Tests that weights keep serving a low priority while higher priorities
+  // are busy, and that dequeues fall back to whatever is queued
+  @Test
+  public void testWeightsPreventStarvation() {
+    PriorityWorkQueue<String> queue =
+        new PriorityWorkQueue<String>(connections(), randomQueueName(), Codecs.utf8(), new int[] {1, 3});
+    List<Item<String>> high = new ArrayList<Item<String>>();
+    List<Item<String>> low = new ArrayList<Item<String>>();
+    for (int i = 0; i < 20; i++) {
+      high.add(createItem("high"));
+      low.add(createItem("low"));
+    }
+    queue.enqueueAll(high, 1);
+    queue.enqueueAll(low, 0);
+
+    int lowCount = 0;
+    for (int i = 0; i < 20; i++) {
+      if ("low".equals(queue.dequeue().getValue())) {
+        lowCount++;
+      }
+    }
+    assertEquals(5, lowCount);
+
+    int remaining = 0;
+    while (queue.dequeue() != null) {
+      remaining++;
+    }
+    assertEquals(20, remaining);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsUnknownPriority() {
+    createPriorityQueue(randomQueueName(), 2).enqueue(createItem("foo001"), 2);
+  }
+
+  private PriorityWorkQueue<String> createPriorityQueue(String name, int levels) {
+    return new PriorityWorkQueue<String>(connections(), name, Codecs.utf8(), levels);
+  }
+}
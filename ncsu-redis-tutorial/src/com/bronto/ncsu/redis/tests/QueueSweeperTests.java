@@ -0,0 +1,88 @@
+package com.bronto.ncsu.redis.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.QueueSweeper;
+import com.bronto.ncsu.redis.queue.WorkQueue;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+public class QueueSweeperTests extends TestBase {
+
+  private static final long ABANDONED_MILLIS = 200;
+  private static final long MIN_INTERVAL_MILLIS = 10;
+  private static final long MAX_INTERVAL_MILLIS = 100;
+
+  private ScheduledExecutorService scheduler;
+
+  @Before
+  public void setUpScheduler() {
+    scheduler = Executors.newScheduledThreadPool(2,
+        new ThreadFactoryBuilder()
+            .setNameFormat("SweeperTest-%d")
+            .setDaemon(true)
+            .build());
+  }
+
+  @After
+  public void tearDownScheduler() {
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void testSweepsAbandonedItems() throws Exception {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    Item<String> item = createItem("foo001");
+    queue.enqueue(item);
+    queue.dequeue();
+
+    QueueSweeper sweeper = createSweeper(queue);
+    sweeper.start();
+    try {
+      Thread.sleep(ABANDONED_MILLIS + MAX_INTERVAL_MILLIS * 3);
+      assertEquals(item, queue.dequeue());
+    } finally {
+      sweeper.close();
+    }
+  }
+
+  // Tests that only one of several sweepers for a queue sweeps at a time, and
+  // that another takes over once the leader stops
+  @Test
+  public void testOnlyOneLeader() throws Exception {
+    WorkQueue<String> queue = createQueue(randomQueueName());
+    QueueSweeper sweeper1 = createSweeper(queue);
+    QueueSweeper sweeper2 = createSweeper(queue);
+    sweeper1.start();
+    Thread.sleep(MAX_INTERVAL_MILLIS);
+    sweeper2.start();
+
+    try {
+      Thread.sleep(MAX_INTERVAL_MILLIS * 3);
+      assertTrue(sweeper1.isLeader());
+      assertFalse(sweeper2.isLeader());
+
+      sweeper1.close();
+      Thread.sleep(MAX_INTERVAL_MILLIS * 3);
+      assertTrue(sweeper2.isLeader());
+    } finally {
+      sweeper1.close();
+      sweeper2.close();
+    }
+  }
+
+  private QueueSweeper createSweeper(WorkQueue<String> queue) {
+    return new QueueSweeper(queue, connections(), scheduler,
+        ABANDONED_MILLIS, MIN_INTERVAL_MILLIS, MAX_INTERVAL_MILLIS);
+  }
+}
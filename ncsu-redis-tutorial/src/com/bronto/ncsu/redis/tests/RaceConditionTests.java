@@ -4,17 +4,26 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 
 import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.util.Utils;
 import com.bronto.ncsu.redis.queue.WorkQueue;
 
 import com.google.common.base.Throwables;
+import com.google.common.collect.Sets;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class RaceConditionTests extends TestBase {
 
+  private static final int SHARED_QUEUE_ITEMS = 2000;
+  private static final int SHARED_QUEUE_CONSUMERS = 16;
+
   public void testDoubleRequeueRaceHelper(WorkQueue<String> queue1, WorkQueue<String> queue2) throws Exception {
     queue1.enqueue(createItem("foo001"));
     final Item<String> item = queue1.dequeue();
@@ -48,6 +57,38 @@ public class RaceConditionTests extends TestBase {
     }
   }
 
+  // Tests that a single queue can be shared by many consumer threads without
+  // handing out any item twice
+  @Test
+  public void testSharedQueueConcurrentConsumers() throws Exception {
+    final WorkQueue<String> queue = createQueue(randomQueueName());
+    enqueueAll(queue, Utils.randomByteStrings(16, SHARED_QUEUE_ITEMS));
+
+    final Set<String> dequeued = Sets.newConcurrentHashSet();
+    final AtomicInteger duplicates = new AtomicInteger();
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (int i = 0; i < SHARED_QUEUE_CONSUMERS; i++) {
+      futures.add(ex.submit(new Runnable() {
+        @Override
+        public void run() {
+          Item<String> item;
+          while ((item = queue.dequeue()) != null) {
+            if (!dequeued.add(item.getValue())) {
+              duplicates.incrementAndGet();
+            }
+            queue.release(item);
+          }
+        }
+      }));
+    }
+    for (Future<?> future : futures) {
+      future.get();
+    }
+
+    assertEquals(0, duplicates.get());
+    assertEquals(SHARED_QUEUE_ITEMS, dequeued.size());
+  }
+
   private class Requeuer implements Runnable {
     private final WorkQueue<String> queue;
     private final Item<String> item;
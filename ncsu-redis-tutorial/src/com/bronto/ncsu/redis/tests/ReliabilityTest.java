@@ -2,11 +2,11 @@ package com.bronto.ncsu.redis.tests;
 
 import com.bronto.ncsu.redis.util.Utils;
 import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.QueueGauges;
 import com.bronto.ncsu.redis.queue.WorkQueue;
 
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.Sets;
-import com.google.common.util.concurrent.Uninterruptibles;
 
 import org.junit.Test;
 
@@ -16,8 +16,6 @@ import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import redis.clients.jedis.Jedis;
-
 public class ReliabilityTest extends TestBase {
 
   // Lower this if the test is taking too long to run
@@ -81,12 +79,8 @@ public class ReliabilityTest extends TestBase {
   }
 
   private boolean isQueueEmpty() {
-    return withConnection(new JedisOperation<Boolean>() {
-      @Override
-      public Boolean execute(Jedis conn) {
-        return conn.keys("*" + queueName + "*").isEmpty();
-      }
-    });
+    QueueGauges.Sample sample = ((QueueGauges) createQueue(queueName)).sampleGauges();
+    return sample.getDepth() == 0 && sample.getWorkingCount() == 0;
   }
 
   private void sweep() {
@@ -128,10 +122,9 @@ public class ReliabilityTest extends TestBase {
     @Override
     protected void runWithQueue(WorkQueue<String> queue) {
       while (!unconsumedValues.isEmpty()) {
-        Item<String> item = queue.dequeue();
+        Item<String> item = queue.dequeue(1, TimeUnit.SECONDS);
 
         if (item == null) {
-          Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
           continue;
         }
 
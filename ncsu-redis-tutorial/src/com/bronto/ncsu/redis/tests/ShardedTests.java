@@ -0,0 +1,60 @@
+package com.bronto.ncsu.redis.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.bronto.ncsu.redis.queue.ConnectionProvider;
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.ShardedWorkQueue;
+import com.bronto.ncsu.redis.util.Utils;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+
+public class ShardedTests extends TestBase {
+
+  private static final int SHARD_COUNT = 4;
+
+  @Test
+  public void testDequeuesFromEveryShard() {
+    ShardedWorkQueue queue = createShardedQueue();
+    List<String> values = Utils.randomByteStrings(16, 100);
+    enqueueAll(queue, values);
+
+    Set<String> dequeued = Sets.newHashSet();
+    Item<String> item;
+    while ((item = queue.dequeue()) != null) {
+      assertTrue(dequeued.add(item.getValue()));
+      queue.release(item);
+    }
+    assertEquals(Sets.newHashSet(values), dequeued);
+  }
+
+  @Test
+  public void testRequeueAndSweepAcrossShards() throws Exception {
+    ShardedWorkQueue queue = createShardedQueue();
+    enqueueAll(queue, Utils.randomByteStrings(16, 20));
+
+    List<Item<String>> batch = queue.dequeueBatch(20);
+    assertEquals(20, batch.size());
+    assertNull(queue.dequeue());
+
+    // Requeue half and abandon the rest
+    queue.requeueAll(batch.subList(0, 10));
+    assertEquals(10, queue.dequeueBatch(20).size());
+
+    Thread.sleep(200);
+    assertEquals(20, queue.sweep(100));
+    assertEquals(20, queue.dequeueBatch(20).size());
+  }
+
+  private ShardedWorkQueue createShardedQueue() {
+    return new ShardedWorkQueue(ImmutableList.<ConnectionProvider>of(connections()), randomQueueName(), SHARD_COUNT);
+  }
+}
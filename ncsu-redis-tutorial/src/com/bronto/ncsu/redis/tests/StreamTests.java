@@ -0,0 +1,211 @@
+package com.bronto.ncsu.redis.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.bronto.ncsu.redis.queue.Backoff;
+import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.QueueGauges;
+import com.bronto.ncsu.redis.queue.StreamWorkQueue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import redis.clients.jedis.Jedis;
+
+public class StreamTests extends TestBase {
+
+  @Test
+  public void testFifo() {
+    StreamWorkQueue queue = createStreamQueue(randomQueueName());
+    Item<String> item1 = createItem("foo001");
+    Item<String> item2 = createItem("foo002");
+    Item<String> item3 = createItem("foo003");
+    queue.enqueue(item1);
+    queue.enqueueAll(ImmutableList.of(item2, item3));
+
+    assertEquals(item1, queue.dequeue());
+    assertEquals(ImmutableList.of(item2, item3), queue.dequeueBatch(5));
+    assertNull(queue.dequeue());
+  }
+
+  @Test
+  public void testReleaseDeletesEntries() {
+    final String queueName = randomQueueName();
+    StreamWorkQueue queue = createStreamQueue(queueName);
+    queue.enqueueAll(ImmutableList.of(createItem("foo001"), createItem("foo002")));
+    queue.releaseAll(queue.dequeueBatch(2));
+
+    QueueGauges.Sample sample = queue.sampleGauges();
+    assertEquals(0, sample.getDepth());
+    assertEquals(0, sample.getWorkingCount());
+    assertEquals(Long.valueOf(0), withConnection(new JedisOperation<Long>() {
+      @Override
+      public Long execute(Jedis conn) {
+        return (Long) conn.eval("return redis.call('XLEN', KEYS[1])", ImmutableList.of(queueName),
+            ImmutableList.<String>of());
+      }
+    }));
+  }
+
+  @Test
+  public void testRequeueToEnd() {
+    StreamWorkQueue queue = createStreamQueue(randomQueueName());
+    Item<String> item1 = createItem("foo001");
+    Item<String> item2 = createItem("foo002");
+    queue.enqueueAll(ImmutableList.of(item1, item2));
+
+    queue.requeue(queue.dequeue());
+    // A second requeue is ignored
+    queue.requeue(item1);
+    assertEquals(item2, queue.dequeue());
+    assertEquals(item1, queue.dequeue());
+    assertNull(queue.dequeue());
+  }
+
+  @Test
+  public void testSweep() throws Exception {
+    StreamWorkQueue consumer = createStreamQueue(randomQueueName());
+    StreamWorkQueue sweeper = createStreamQueue(consumer.getName());
+    Item<String> item1 = createItem("foo001");
+    Item<String> item2 = createItem("foo002");
+    consumer.enqueueAll(ImmutableList.of(item1, item2));
+    consumer.dequeueBatch(2);
+
+    Thread.sleep(100);
+    assertTrue(consumer.extendLease(item2, 0));
+    assertEquals(1, sweeper.sweep(50));
+    assertEquals(0, sweeper.sweep(50));
+    assertEquals(item1, sweeper.dequeue());
+
+    // The consumer no longer holds the swept item
+    consumer.release(item1);
+    assertEquals(1, consumer.getMissedCount());
+    assertEquals(2, consumer.sampleGauges().getWorkingCount());
+    sweeper.release(item1);
+    consumer.release(item2);
+    assertEquals(0, consumer.sampleGauges().getWorkingCount());
+  }
+
+  // Tests that a limited sweep gets past pending items which are still live
+  @Test
+  public void testSweepSkipsLiveItems() throws Exception {
+    StreamWorkQueue consumer = createStreamQueue(randomQueueName());
+    StreamWorkQueue sweeper = createStreamQueue(consumer.getName());
+    List<Item<String>> items = Lists.newArrayList();
+    for (int i = 0; i < 31; i++) {
+      items.add(createItem("foo" + i));
+    }
+    consumer.enqueueAll(items);
+    consumer.dequeueBatch(31);
+
+    Thread.sleep(100);
+    assertEquals(30, consumer.extendLeaseAll(items.subList(0, 30), 0));
+    assertEquals(1, sweeper.sweep(50, 1));
+    assertEquals(items.get(30), sweeper.dequeue());
+  }
+
+  // Tests that entries trimmed while pending do not stay pending
+  @Test
+  public void testTrimmedPendingEntries() throws Exception {
+    final String queueName = randomQueueName();
+    StreamWorkQueue queue = createStreamQueue(queueName);
+    queue.enqueueAll(ImmutableList.of(createItem("foo001"), createItem("foo002"), createItem("foo003")));
+    List<Item<String>> items = queue.dequeueBatch(3);
+    withConnection(new JedisOperation<Object>() {
+      @Override
+      public Object execute(Jedis conn) {
+        return conn.eval("return redis.call('XTRIM', KEYS[1], 'MAXLEN', 0)", ImmutableList.of(queueName),
+            ImmutableList.<String>of());
+      }
+    });
+
+    queue.requeue(items.get(0));
+    assertEquals(1, queue.getMissedCount());
+    assertEquals(2, queue.sampleGauges().getWorkingCount());
+    Thread.sleep(100);
+    assertEquals(0, queue.sweep(50));
+    assertEquals(0, queue.sampleGauges().getWorkingCount());
+    assertNull(queue.dequeue());
+  }
+
+  @Test
+  public void testDelayedItems() throws Exception {
+    StreamWorkQueue queue = createStreamQueue(randomQueueName());
+    Item<String> later = createItem("foo001");
+    Item<String> item = createItem("foo002");
+    queue.enqueueAfter(later, 50, TimeUnit.MILLISECONDS);
+    queue.enqueue(item);
+
+    // Due well after the first item, so the two are ordered by their delays
+    queue.requeue(queue.dequeue(), Backoff.fixed(150, TimeUnit.MILLISECONDS));
+    assertNull(queue.dequeue());
+    assertEquals(2, queue.sampleGauges().getDepth());
+
+    Thread.sleep(250);
+    assertEquals(ImmutableList.of(later, item), queue.dequeueBatch(2));
+  }
+
+  @Test
+  public void testBlockingDequeue() {
+    StreamWorkQueue queue = createStreamQueue(randomQueueName());
+    Item<String> item = createItem("foo001");
+    queue.enqueueAfter(item, 100, TimeUnit.MILLISECONDS);
+
+    assertEquals(item, queue.dequeue(2, TimeUnit.SECONDS));
+    assertNull(queue.dequeue(10, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testTrimming() {
+    StreamWorkQueue queue = new StreamWorkQueue(connections(), randomQueueName(), 10);
+    for (int i = 0; i < 1000; i++) {
+      queue.enqueue(createItem("foo" + i));
+    }
+
+    // Trimming is approximate, but removes whole blocks of old entries
+    long depth = queue.sampleGauges().getDepth();
+    assertTrue(depth >= 10 && depth < 1000);
+    assertFalse("foo0".equals(queue.dequeue().getValue()));
+  }
+
+  // Tests that a queue reusing a consumer name requeues the items left
+  // pending by the last run, and that close deletes the consumer
+  @Test
+  public void testCloseReclaimsConsumer() {
+    final String queueName = randomQueueName();
+    StreamWorkQueue crashed = new StreamWorkQueue(connections(), queueName, "worker-1", 0);
+    Item<String> item1 = createItem("foo001");
+    Item<String> item2 = createItem("foo002");
+    crashed.enqueueAll(ImmutableList.of(item1, item2));
+    assertEquals(item1, crashed.dequeue());
+
+    StreamWorkQueue restarted = new StreamWorkQueue(connections(), queueName, "worker-1", 0);
+    assertEquals(item2, restarted.dequeue());
+    restarted.close();
+
+    JedisOperation<Long> consumers = new JedisOperation<Long>() {
+      @Override
+      public Long execute(Jedis conn) {
+        return (Long) conn.eval("return #redis.call('XINFO', 'CONSUMERS', KEYS[1], 'workers')",
+            ImmutableList.of(queueName), ImmutableList.<String>of());
+      }
+    };
+    assertEquals(0L, (long) withConnection(consumers));
+    StreamWorkQueue other = createStreamQueue(queueName);
+    assertEquals(0, other.sampleGauges().getWorkingCount());
+    assertEquals(ImmutableList.of(item1, item2), other.dequeueBatch(5));
+    assertEquals(1L, (long) withConnection(consumers));
+  }
+
+  private StreamWorkQueue createStreamQueue(String name) {
+    return new StreamWorkQueue(connections(), name);
+  }
+}
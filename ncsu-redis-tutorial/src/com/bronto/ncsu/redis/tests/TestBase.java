@@ -1,18 +1,26 @@
 package com.bronto.ncsu.redis.tests;
 
+import com.bronto.ncsu.redis.codec.Codecs;
+import com.bronto.ncsu.redis.queue.ConnectionProvider;
+import com.bronto.ncsu.redis.queue.InMemoryWorkQueue;
 import com.bronto.ncsu.redis.queue.Item;
+import com.bronto.ncsu.redis.queue.PooledConnectionProvider;
 import com.bronto.ncsu.redis.queue.ReliableWorkQueue;
+import com.bronto.ncsu.redis.util.ItemIds;
 import com.bronto.ncsu.redis.util.Utils;
 import com.bronto.ncsu.redis.queue.WorkQueue;
 
 import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -20,7 +28,6 @@ import java.util.concurrent.Future;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.JedisPoolConfig;
 
 public abstract class TestBase {
 
@@ -28,10 +35,16 @@ public abstract class TestBase {
   private static final int REDIS_PORT = 6379;
   private static final int REDIS_DB = 0;
 
-  private static final int KEY_SIZE = 16;
+  // Run with -Dworkqueue.backend=memory to test InMemoryWorkQueue without a
+  // Redis server. Tests which need Redis itself are skipped.
+  private static final boolean IN_MEMORY = "memory".equals(System.getProperty("workqueue.backend"));
+
+  private static final int MAX_CONNECTIONS = 32;
 
   protected ExecutorService ex;
   private JedisPool jedisPool;
+  private final List<JedisPool> extraPools = new ArrayList<JedisPool>();
+  private final ConcurrentMap<String, WorkQueue<String>> memoryQueues = Maps.newConcurrentMap();
 
   @Before
   public void setUp() {
@@ -42,7 +55,7 @@ public abstract class TestBase {
             .build());
 
     jedisPool = new JedisPool(
-        new JedisPoolConfig(), REDIS_HOST, REDIS_PORT, 2000, null, REDIS_DB, null
+        PooledConnectionProvider.poolConfig(MAX_CONNECTIONS), REDIS_HOST, REDIS_PORT, 2000, null, REDIS_DB, null
     );
   }
 
@@ -50,18 +63,60 @@ public abstract class TestBase {
   public void tearDown() {
     ex.shutdownNow();
     jedisPool.close();
+    for (JedisPool pool : extraPools) {
+      pool.close();
+    }
   }
 
   protected final String randomQueueName() {
     return "queue-" + Utils.randomBytesString(16);
   }
 
+  /**
+   * Skips the calling test unless it is running against Redis.
+   */
+  protected static void assumeRedis() {
+    Assume.assumeFalse("needs a Redis server", IN_MEMORY);
+  }
+
+  protected final ConnectionProvider connections() {
+    assumeRedis();
+    return new PooledConnectionProvider(jedisPool);
+  }
+
+  /**
+   * Connects to another Redis server on the same host as the test server,
+   * for tests which spread queues over several servers.
+   */
+  protected final ConnectionProvider connections(int port) {
+    assumeRedis();
+    if (port == REDIS_PORT) {
+      return connections();
+    }
+    JedisPool pool = new JedisPool(
+        PooledConnectionProvider.poolConfig(MAX_CONNECTIONS), REDIS_HOST, port, 2000, null, REDIS_DB, null
+    );
+    extraPools.add(pool);
+    return new PooledConnectionProvider(pool);
+  }
+
   protected final WorkQueue<String> createQueue(String name) {
-    return createQueue(jedisPool.getResource(), name);
+    return createQueue(name, 0);
   }
 
-  private WorkQueue<String> createQueue(Jedis conn, String name) {
-    return new ReliableWorkQueue(conn, name);
+  /**
+   * Creates a queue which moves items to its dead letters once they have
+   * been dequeued maxAttempts times. The queue implements DeadLetters.
+   */
+  protected final WorkQueue<String> createQueue(String name, int maxAttempts) {
+    if (IN_MEMORY) {
+      // Queues with the same name share their items, as they do in Redis
+      WorkQueue<String> queue = new InMemoryWorkQueue<String>(name, maxAttempts);
+      WorkQueue<String> existing = memoryQueues.putIfAbsent(name, queue);
+      return existing != null ? existing : queue;
+    }
+    return new ReliableWorkQueue<String>(new PooledConnectionProvider(jedisPool), name, Codecs.utf8(), 0,
+        maxAttempts);
   }
 
   private static <T> T withConnection(JedisPool pool, TestBase.JedisOperation<T> operation) {
@@ -74,22 +129,20 @@ public abstract class TestBase {
   }
 
   protected final <T> T withConnection(JedisOperation<T> operation) {
+    assumeRedis();
     return withConnection(jedisPool, operation);
   }
 
-  protected final <T> T withQueue(final String queueName, final WorkQueueOperation<T> operation) {
-    return withConnection(new JedisOperation<T>() {
-      @Override
-      public T execute(Jedis conn) {
-        return operation.execute(createQueue(conn, queueName));
-      }
-    });
+  protected final <T> T withQueue(String queueName, WorkQueueOperation<T> operation) {
+    return operation.execute(createQueue(queueName));
   }
 
   protected final void enqueueAll(WorkQueue<String> workQueue, Iterable<String> values) {
+    List<Item<String>> items = new ArrayList<Item<String>>();
     for (String value : values) {
-      workQueue.enqueue(createItem(value));
+      items.add(createItem(value));
     }
+    workQueue.enqueueAll(items);
   }
 
   protected static <T> Item<T> createItem(T value) {
@@ -97,7 +150,7 @@ public abstract class TestBase {
   }
 
   protected static String randomKey() {
-    return Utils.randomBytesString(KEY_SIZE);
+    return ItemIds.nextKey();
   }
 
   protected class WorkerPool {
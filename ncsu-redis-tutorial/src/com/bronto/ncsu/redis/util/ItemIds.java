@@ -0,0 +1,164 @@
+package com.bronto.ncsu.redis.util;
+
+import com.google.common.base.Preconditions;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates compact, time ordered item keys. Each id is a 64-bit number made
+ * of a 42-bit millisecond timestamp, a 10-bit node id and a 12-bit sequence
+ * number, so generators with different node ids never produce the same id.
+ * Node ids must be assigned so that no two processes generating keys for the
+ * same queues share one. Generators sharing a node id collide whenever they
+ * generate ids in the same millisecond, since both sequences start at zero.
+ *
+ * Ids are formatted as 11 characters from an alphabet whose characters are in
+ * ASCII order, so keys sort in the order they were generated. That is about a
+ * third of the size of a 16 byte key encoded as 32 hex characters, and item
+ * keys are stored in the queue list, the working set and the values hash.
+ *
+ * A generator never hands out the same id twice. If more than 4096 ids are
+ * generated in one millisecond, the following ids borrow from the next
+ * millisecond so generation never waits.
+ *
+ * Where node ids can not be assigned, nextKey generates longer keys of the
+ * timestamp followed by 84 random bits instead.
+ */
+public final class ItemIds {
+  // 2015-01-01T00:00:00Z; 42 bits of milliseconds lasts about 139 years
+  private static final long EPOCH_MILLIS = 1420070400000L;
+
+  private static final int NODE_BITS = 10;
+  private static final int SEQUENCE_BITS = 12;
+  private static final int MAX_NODE = (1 << NODE_BITS) - 1;
+  private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+  private static final int KEY_LENGTH = 11;
+  private static final int TIMESTAMP_LENGTH = 7;
+  private static final int RANDOM_LENGTH = 14;
+  private static final char[] ALPHABET =
+      "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz".toCharArray();
+  private static final byte[] DECODE = new byte[128];
+
+  static {
+    Arrays.fill(DECODE, (byte) -1);
+    for (int i = 0; i < ALPHABET.length; i++) {
+      DECODE[ALPHABET[i]] = (byte) i;
+    }
+  }
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private final long node;
+
+  // The timestamp and sequence of the last id, as timestamp << SEQUENCE_BITS | sequence
+  private final AtomicLong last = new AtomicLong();
+
+  /**
+   * @param node between 0 and 1023, unique among the processes generating
+   *     keys for the same queues
+   */
+  public ItemIds(int node) {
+    Preconditions.checkArgument(node >= 0 && node <= MAX_NODE, "node out of range");
+    this.node = node;
+  }
+
+  /**
+   * Generates a 21 character key of the current timestamp followed by 84
+   * random bits, for processes which have no node id of their own. Keys sort
+   * by the millisecond they were generated, but not within it. Two keys
+   * collide only if they are generated in the same millisecond with the same
+   * random bits: even at a million keys a millisecond over all processes,
+   * the odds are about 1 in 2^45 for each millisecond.
+   *
+   * @return
+   */
+  public static String nextKey() {
+    char[] chars = new char[TIMESTAMP_LENGTH + RANDOM_LENGTH];
+    encode(Utils.currentTimeMillis() - EPOCH_MILLIS, chars, 0, TIMESTAMP_LENGTH);
+    // Each long fills at most 10 characters
+    encode(RANDOM.nextLong(), chars, TIMESTAMP_LENGTH, 10);
+    encode(RANDOM.nextLong(), chars, TIMESTAMP_LENGTH + 10, RANDOM_LENGTH - 10);
+    return new String(chars);
+  }
+
+  /**
+   * Generates the next id.
+   *
+   * @return
+   */
+  public long nextId() {
+    long now = (Utils.currentTimeMillis() - EPOCH_MILLIS) << SEQUENCE_BITS;
+    while (true) {
+      long previous = last.get();
+      long current = Math.max(now, previous + 1);
+      if (last.compareAndSet(previous, current)) {
+        long timestamp = current >>> SEQUENCE_BITS;
+        return (timestamp << (NODE_BITS + SEQUENCE_BITS)) | (node << SEQUENCE_BITS) | (current & SEQUENCE_MASK);
+      }
+    }
+  }
+
+  /**
+   * Generates the next id formatted as a key.
+   *
+   * @return
+   */
+  public String next() {
+    return format(nextId());
+  }
+
+  /**
+   * Formats an id as an 11 character key.
+   *
+   * @param id
+   * @return
+   */
+  public static String format(long id) {
+    char[] chars = new char[KEY_LENGTH];
+    encode(id, chars, 0, KEY_LENGTH);
+    return new String(chars);
+  }
+
+  /**
+   * Writes the lowest 6 * length bits of a number as length characters,
+   * most significant first.
+   */
+  private static void encode(long bits, char[] chars, int offset, int length) {
+    for (int i = offset + length - 1; i >= offset; i--) {
+      chars[i] = ALPHABET[(int) (bits & 0x3F)];
+      bits >>>= 6;
+    }
+  }
+
+  /**
+   * Parses a key formatted by format.
+   *
+   * @param key
+   * @return the id
+   * @throws IllegalArgumentException if the key was not formatted by format
+   */
+  public static long parse(String key) {
+    Preconditions.checkArgument(key.length() == KEY_LENGTH, "not an item id: %s", key);
+    long id = 0;
+    for (int i = 0; i < KEY_LENGTH; i++) {
+      char c = key.charAt(i);
+      int digit = c < DECODE.length ? DECODE[c] : -1;
+      Preconditions.checkArgument(digit >= 0 && (i > 0 || digit < 16), "not an item id: %s", key);
+      id = (id << 6) | digit;
+    }
+    return id;
+  }
+
+  /**
+   * Gets the time an id was generated.
+   *
+   * @param id
+   * @return milliseconds since the epoch
+   */
+  public static long timestampOf(long id) {
+    return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH_MILLIS;
+  }
+}
@@ -0,0 +1,186 @@
+package com.bronto.ncsu.redis.util;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of latencies in nanoseconds with a fixed relative precision, in
+ * the style of HdrHistogram. Recording a value is a few arithmetic operations
+ * and an array increment, and never allocates, so it can be used inside tight
+ * timing loops.
+ *
+ * Values are counted in buckets whose width grows with the magnitude of the
+ * value, so every value is stored to within 1 part in 2^(precisionBits - 1).
+ * With the default of 7 bits that is better than 1.6%.
+ *
+ * A histogram is not thread safe. Give each thread its own histogram and
+ * combine them with add.
+ */
+public final class LatencyHistogram {
+  private static final int DEFAULT_PRECISION_BITS = 7;
+  private static final long DEFAULT_HIGHEST_VALUE = 3600L * 1000 * 1000 * 1000;
+
+  private final int precisionBits;
+  private final int subBucketCount;
+  private final int subBucketHalfCount;
+  private final long highestValue;
+  private final long[] counts;
+
+  private long totalCount;
+  private long sum;
+  private long min = Long.MAX_VALUE;
+  private long max;
+
+  /**
+   * Creates a histogram which can hold values up to an hour with better than
+   * 1.6% precision.
+   */
+  public LatencyHistogram() {
+    this(DEFAULT_HIGHEST_VALUE, DEFAULT_PRECISION_BITS);
+  }
+
+  /**
+   * @param highestValue values above this are recorded as this value
+   * @param precisionBits the number of bits of each value which are kept
+   */
+  public LatencyHistogram(long highestValue, int precisionBits) {
+    Preconditions.checkArgument(precisionBits >= 2 && precisionBits <= 20, "precisionBits out of range");
+    Preconditions.checkArgument(highestValue >= 1 << precisionBits, "highestValue too small");
+    this.precisionBits = precisionBits;
+    this.subBucketCount = 1 << precisionBits;
+    this.subBucketHalfCount = subBucketCount / 2;
+    this.highestValue = highestValue;
+    this.counts = new long[indexOf(highestValue) + 1];
+  }
+
+  /**
+   * Records a single value.
+   *
+   * @param value the value in nanoseconds
+   */
+  public void record(long value) {
+    Preconditions.checkArgument(value >= 0, "negative value");
+    long clamped = Math.min(value, highestValue);
+    counts[indexOf(clamped)]++;
+    totalCount++;
+    sum += clamped;
+    min = Math.min(min, clamped);
+    max = Math.max(max, clamped);
+  }
+
+  /**
+   * Records a value measured by a caller which issues requests at a fixed
+   * interval, correcting for coordinated omission. A caller waiting on a slow
+   * request does not issue the requests it was due to make in the meantime,
+   * so those would-be requests are missing from the measurements. They are
+   * added back here: if value exceeds the interval, values of value minus
+   * each multiple of the interval are recorded as well.
+   *
+   * @param value the value in nanoseconds
+   * @param expectedIntervalNanos the interval between requests
+   */
+  public void recordWithExpectedInterval(long value, long expectedIntervalNanos) {
+    record(value);
+    if (expectedIntervalNanos <= 0) {
+      return;
+    }
+    for (long missing = value - expectedIntervalNanos; missing >= expectedIntervalNanos;
+        missing -= expectedIntervalNanos) {
+      record(missing);
+    }
+  }
+
+  /**
+   * Adds all values recorded by another histogram with the same
+   * configuration to this one.
+   *
+   * @param other
+   */
+  public void add(LatencyHistogram other) {
+    Preconditions.checkArgument(other.precisionBits == precisionBits && other.highestValue == highestValue,
+        "histograms have different configurations");
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+    totalCount += other.totalCount;
+    sum += other.sum;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  /**
+   * Removes all recorded values.
+   */
+  public void reset() {
+    Arrays.fill(counts, 0);
+    totalCount = 0;
+    sum = 0;
+    min = Long.MAX_VALUE;
+    max = 0;
+  }
+
+  public long getTotalCount() {
+    return totalCount;
+  }
+
+  public long getMin() {
+    return totalCount == 0 ? 0 : min;
+  }
+
+  public long getMax() {
+    return max;
+  }
+
+  public double getMean() {
+    return totalCount == 0 ? 0 : (double) sum / totalCount;
+  }
+
+  /**
+   * Gets the value below which the given percentage of recorded values fall,
+   * to within the histogram's precision.
+   *
+   * @param percentile between 0 and 100
+   * @return the value in nanoseconds
+   */
+  public long getValueAtPercentile(double percentile) {
+    if (totalCount == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * totalCount));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= target) {
+        return Math.min(highestEquivalentValue(i), max);
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Formats the usual latency percentiles in microseconds.
+   *
+   * @return
+   */
+  public String summary() {
+    return String.format("p50=%.3fus, p90=%.3fus, p99=%.3fus, p99.9=%.3fus, max=%.3fus",
+        getValueAtPercentile(50) / 1e3, getValueAtPercentile(90) / 1e3, getValueAtPercentile(99) / 1e3,
+        getValueAtPercentile(99.9) / 1e3, getMax() / 1e3);
+  }
+
+  private int indexOf(long value) {
+    int shift = Math.max(0, (63 - Long.numberOfLeadingZeros(value | 1)) - (precisionBits - 1));
+    int subBucket = (int) (value >>> shift);
+    return shift == 0 ? subBucket : shift * subBucketHalfCount + subBucket;
+  }
+
+  private long highestEquivalentValue(int index) {
+    if (index < subBucketCount) {
+      return index;
+    }
+    int shift = index / subBucketHalfCount - 1;
+    long subBucket = index - shift * subBucketHalfCount;
+    return (subBucket << shift) + (1L << shift) - 1;
+  }
+}